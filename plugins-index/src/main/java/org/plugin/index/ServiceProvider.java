@@ -0,0 +1,54 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin.index;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a class as a service provider, so that it is listed in the
+ *  {@link ServiceProviderIndex} generated at build time by the
+ *  {@link org.plugin.index.processor.ServiceProviderProcessor} annotation
+ *  processor.
+ *
+ *  The class must be public, concrete, have a public no-argument constructor
+ *  and implement each of its categories. Nested classes must be static.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface ServiceProvider
+{
+  /** The service interfaces (categories) this class is a provider of,
+   *  for example <code>org.plugin.spi.Codec</code>. */
+  Class<?>[] value();
+
+  /** The version of the provider in the format X.Y.Z.FF, where each element
+   *  is optional, as returned by <code>ServiceMetadata.getVersion()</code>. */
+  String version() default "";
+
+  /** The human readable description of the provider, as returned by
+   *  <code>ServiceMetadata.getDescription()</code>. */
+  String title() default "";
+
+  /** The vendor of the provider, as returned by
+   *  <code>ServiceMetadata.getVendorName()</code>. */
+  String vendor() default "";
+}
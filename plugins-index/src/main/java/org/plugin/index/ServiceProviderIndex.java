@@ -0,0 +1,82 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin.index;
+
+/** Index of the service providers of a jar, generated at build time from
+ *  the classes annotated with {@link ServiceProvider}.
+ *
+ *  Implementations are declared in
+ *  <code>META-INF/services/org.plugin.index.ServiceProviderIndex</code>, so
+ *  that the providers of a jar can be listed and instantiated without reading
+ *  the other service declarations or using reflection on each provider class.
+ *  Providers are designated by their position in the index, from 0 to
+ *  <code>size() - 1</code>.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public interface ServiceProviderIndex
+{
+  /** Returns the number of providers in this index. */
+  public int size();
+
+  /** Returns the binary name of the provider class, as accepted by
+   *  {@link Class#forName(String)}.
+   *
+   * @param index The position of the provider.
+   * @return The provider class name.
+   */
+  public String getClassName(int index);
+
+  /** Returns the names of the service interfaces the provider implements.
+   *
+   * @param index The position of the provider.
+   * @return The category class names.
+   */
+  public String[] getCategoryNames(int index);
+
+  /** Returns the version of the provider, as declared with
+   *  {@link ServiceProvider#version()}.
+   *
+   * @param index The position of the provider.
+   * @return The version, or null if it was not declared.
+   */
+  public String getVersion(int index);
+
+  /** Returns the description of the provider, as declared with
+   *  {@link ServiceProvider#title()}.
+   *
+   * @param index The position of the provider.
+   * @return The title, or null if it was not declared.
+   */
+  public String getTitle(int index);
+
+  /** Returns the vendor of the provider, as declared with
+   *  {@link ServiceProvider#vendor()}.
+   *
+   * @param index The position of the provider.
+   * @return The vendor, or null if it was not declared.
+   */
+  public String getVendor(int index);
+
+  /** Creates a new instance of the provider by calling its constructor
+   *  directly.
+   *
+   * @param index The position of the provider.
+   * @return The new provider instance.
+   * @throws IndexOutOfBoundsException If there is no provider at this position.
+   */
+  public Object newInstance(int index);
+}
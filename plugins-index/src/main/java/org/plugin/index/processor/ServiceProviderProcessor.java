@@ -0,0 +1,442 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin.index.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+import org.plugin.index.ServiceProvider;
+import org.plugin.index.ServiceProviderIndex;
+
+/** Annotation processor generating the {@link ServiceProviderIndex} of the
+ *  classes annotated with {@link ServiceProvider}.
+ *
+ *  The generated index class creates the providers by calling their
+ *  constructors directly, and carries their categories and metadata as
+ *  constants. The processor also generates the declaration of the index in
+ *  <code>META-INF/services/org.plugin.index.ServiceProviderIndex</code>, as
+ *  well as the <code>META-INF/services</code> declaration of each category,
+ *  so that the providers remain visible to {@link java.util.ServiceLoader};
+ *  these declarations must therefore not also be written by hand.
+ *
+ *  The index class is named <code>GeneratedServiceProviderIndex</code> and
+ *  placed in the package of the first provider by name, unless another fully
+ *  qualified name is given with the <code>plugin.index.class</code> option.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+@SupportedAnnotationTypes("org.plugin.index.ServiceProvider")
+@SupportedOptions(ServiceProviderProcessor.OPTION_CLASS)
+public class ServiceProviderProcessor extends AbstractProcessor
+{
+  /** The option giving the fully qualified name of the generated index class. */
+  public static final String OPTION_CLASS = "plugin.index.class";
+  /** The simple name of the generated index class, when not set with the option. */
+  public static final String DEFAULT_CLASS_NAME = "GeneratedServiceProviderIndex";
+
+  private static final String SERVICES_DIRECTORY = "META-INF/services/";
+
+  /** The providers found, by binary name. */
+  private final Map<String, Provider> providers = new LinkedHashMap<String, Provider>();
+  /** True once the index was generated. */
+  private boolean generated;
+
+  @Override
+  public SourceVersion getSupportedSourceVersion()
+  {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+  {
+    boolean found = false;
+    for (Element element : roundEnv.getElementsAnnotatedWith(ServiceProvider.class))
+    {
+      if (generated)
+      {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+            "Provider generated in a later round, not indexed", element);
+        continue;
+      }
+      Provider provider = validate(element);
+      if (provider != null)
+      {
+        providers.put(provider.binaryName, provider);
+        found = true;
+      }
+    }
+    /* Sources are compiled in the first round, generating now keeps the index compiled with them */
+    if (found && (generated == false))
+    {
+      generated = true;
+      try
+      {
+        generate();
+      } catch (IOException e)
+      {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+            "Cannot generate the service provider index: " + e.getMessage());
+      }
+    }
+    return true;
+  }
+
+  /** Checks that an annotated element can be instantiated as a provider
+   *  of its categories, reporting an error otherwise.
+   *
+   * @return The provider, or null if it is invalid.
+   */
+  private Provider validate(Element element)
+  {
+    if (element.getKind() != ElementKind.CLASS)
+    {
+      error(element, "@ServiceProvider must annotate a class");
+      return null;
+    }
+    TypeElement type = (TypeElement) element;
+    Set<Modifier> modifiers = type.getModifiers();
+    if ((modifiers.contains(Modifier.PUBLIC) == false) || modifiers.contains(Modifier.ABSTRACT))
+    {
+      error(element, "A service provider must be a public concrete class");
+      return null;
+    }
+    if ((type.getNestingKind() != NestingKind.TOP_LEVEL)
+        && ((type.getNestingKind() != NestingKind.MEMBER) || (modifiers
+            .contains(Modifier.STATIC) == false)))
+    {
+      error(element, "A nested service provider must be a static member class");
+      return null;
+    }
+    boolean constructor = false;
+    for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements()))
+    {
+      if (c.getModifiers().contains(Modifier.PUBLIC) && c.getParameters().isEmpty())
+      {
+        constructor = true;
+      }
+    }
+    if (constructor == false)
+    {
+      error(element, "A service provider must have a public no-argument constructor");
+      return null;
+    }
+
+    Provider provider = new Provider(processingEnv.getElementUtils().getBinaryName(type)
+        .toString(), type.getQualifiedName().toString());
+    AnnotationMirror annotation = getAnnotation(type);
+    for (Entry<? extends ExecutableElement, ? extends AnnotationValue> e : processingEnv
+        .getElementUtils().getElementValuesWithDefaults(annotation).entrySet())
+    {
+      String name = e.getKey().getSimpleName().toString();
+      Object value = e.getValue().getValue();
+      if (name.equals("value"))
+      {
+        for (Iterator<?> it = ((List<?>) value).iterator(); it.hasNext();)
+        {
+          TypeMirror category = (TypeMirror) ((AnnotationValue) it.next()).getValue();
+          if (processingEnv.getTypeUtils().isAssignable(
+              processingEnv.getTypeUtils().erasure(type.asType()),
+              processingEnv.getTypeUtils().erasure(category)) == false)
+          {
+            error(element, "The service provider does not implement " + category);
+            return null;
+          }
+          Element categoryElement = processingEnv.getTypeUtils().asElement(category);
+          provider.categories.add(processingEnv.getElementUtils().getBinaryName(
+              (TypeElement) categoryElement).toString());
+        }
+      } else if (name.equals("version"))
+      {
+        provider.version = (String) value;
+      } else if (name.equals("title"))
+      {
+        provider.title = (String) value;
+      } else if (name.equals("vendor"))
+      {
+        provider.vendor = (String) value;
+      }
+    }
+    if (provider.categories.isEmpty())
+    {
+      error(element, "A service provider must declare at least one category");
+      return null;
+    }
+    return provider;
+  }
+
+  /** Returns the {@link ServiceProvider} annotation of a type. */
+  private AnnotationMirror getAnnotation(TypeElement type)
+  {
+    for (AnnotationMirror annotation : type.getAnnotationMirrors())
+    {
+      TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+      if (annotationType.getQualifiedName().contentEquals(ServiceProvider.class.getName()))
+      {
+        return annotation;
+      }
+    }
+    throw new IllegalStateException("Missing annotation on " + type);
+  }
+
+  /** Writes the index class and the service declarations. */
+  private void generate() throws IOException
+  {
+    List<Provider> sorted = new ArrayList<Provider>(providers.values());
+    Collections.sort(sorted, new Comparator<Provider>()
+    {
+      public int compare(Provider p1, Provider p2)
+      {
+        return p1.binaryName.compareTo(p2.binaryName);
+      }
+    });
+
+    String indexName = processingEnv.getOptions().get(OPTION_CLASS);
+    if ((indexName == null) || (indexName.length() == 0))
+    {
+      TypeElement first = processingEnv.getElementUtils().getTypeElement(
+          sorted.get(0).canonicalName);
+      PackageElement pkg = processingEnv.getElementUtils().getPackageOf(first);
+      indexName = pkg.isUnnamed() ? DEFAULT_CLASS_NAME : pkg.getQualifiedName() + "."
+          + DEFAULT_CLASS_NAME;
+    }
+    writeIndex(indexName, sorted);
+
+    writeDeclaration(ServiceProviderIndex.class.getName(), Collections.singletonList(indexName));
+    Map<String, List<String>> categories = new LinkedHashMap<String, List<String>>();
+    for (int i = 0; i < sorted.size(); i++)
+    {
+      Provider provider = sorted.get(i);
+      for (int j = 0; j < provider.categories.size(); j++)
+      {
+        List<String> classNames = categories.get(provider.categories.get(j));
+        if (classNames == null)
+        {
+          classNames = new ArrayList<String>();
+          categories.put(provider.categories.get(j), classNames);
+        }
+        classNames.add(provider.binaryName);
+      }
+    }
+    for (Entry<String, List<String>> e : categories.entrySet())
+    {
+      writeDeclaration(e.getKey(), e.getValue());
+    }
+  }
+
+  /** Writes the source of the index class. */
+  private void writeIndex(String indexName, List<Provider> sorted) throws IOException
+  {
+    int separator = indexName.lastIndexOf('.');
+    String packageName = (separator < 0) ? null : indexName.substring(0, separator);
+    String simpleName = indexName.substring(separator + 1);
+
+    Writer writer = processingEnv.getFiler().createSourceFile(indexName).openWriter();
+    PrintWriter out = new PrintWriter(writer);
+    try
+    {
+      if (packageName != null)
+      {
+        out.println("package " + packageName + ";");
+        out.println();
+      }
+      out.println("/** Index of the service providers of this jar.");
+      out.println(" *  Generated by " + getClass().getName() + ", do not edit. */");
+      out.println("public final class " + simpleName + " implements "
+          + ServiceProviderIndex.class.getName());
+      out.println("{");
+      out.println("  private static final String[] CLASS_NAMES = {");
+      for (int i = 0; i < sorted.size(); i++)
+      {
+        out.println("    " + literal(sorted.get(i).binaryName) + ",");
+      }
+      out.println("  };");
+      out.println("  private static final String[][] CATEGORY_NAMES = {");
+      for (int i = 0; i < sorted.size(); i++)
+      {
+        List<String> categories = sorted.get(i).categories;
+        StringBuffer line = new StringBuffer("    { ");
+        for (int j = 0; j < categories.size(); j++)
+        {
+          line.append(literal(categories.get(j))).append(", ");
+        }
+        out.println(line.append("},"));
+      }
+      out.println("  };");
+      out.println("  /* The version, title and vendor of each provider */");
+      out.println("  private static final String[][] METADATA = {");
+      for (int i = 0; i < sorted.size(); i++)
+      {
+        Provider provider = sorted.get(i);
+        out.println("    { " + literal(provider.version) + ", " + literal(provider.title) + ", "
+            + literal(provider.vendor) + " },");
+      }
+      out.println("  };");
+      out.println();
+      out.println("  public int size()");
+      out.println("  {");
+      out.println("    return CLASS_NAMES.length;");
+      out.println("  }");
+      out.println();
+      out.println("  public String getClassName(int index)");
+      out.println("  {");
+      out.println("    return CLASS_NAMES[index];");
+      out.println("  }");
+      out.println();
+      out.println("  public String[] getCategoryNames(int index)");
+      out.println("  {");
+      out.println("    return CATEGORY_NAMES[index].clone();");
+      out.println("  }");
+      out.println();
+      out.println("  public String getVersion(int index)");
+      out.println("  {");
+      out.println("    return METADATA[index][0];");
+      out.println("  }");
+      out.println();
+      out.println("  public String getTitle(int index)");
+      out.println("  {");
+      out.println("    return METADATA[index][1];");
+      out.println("  }");
+      out.println();
+      out.println("  public String getVendor(int index)");
+      out.println("  {");
+      out.println("    return METADATA[index][2];");
+      out.println("  }");
+      out.println();
+      out.println("  public Object newInstance(int index)");
+      out.println("  {");
+      out.println("    switch (index)");
+      out.println("    {");
+      for (int i = 0; i < sorted.size(); i++)
+      {
+        out.println("      case " + i + ":");
+        out.println("        return new " + sorted.get(i).canonicalName + "();");
+      }
+      out.println("      default:");
+      out.println("        throw new IndexOutOfBoundsException(\"Provider index: \" + index);");
+      out.println("    }");
+      out.println("  }");
+      out.println("}");
+    } finally
+    {
+      out.close();
+    }
+  }
+
+  /** Writes a <code>META-INF/services</code> declaration. */
+  private void writeDeclaration(String service, List<String> classNames) throws IOException
+  {
+    FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT,
+        "", SERVICES_DIRECTORY + service);
+    Writer writer = file.openWriter();
+    try
+    {
+      for (int i = 0; i < classNames.size(); i++)
+      {
+        writer.write(classNames.get(i) + "\n");
+      }
+    } finally
+    {
+      writer.close();
+    }
+  }
+
+  /** Returns the Java literal of a string, <code>null</code> for an empty string. */
+  static String literal(String s)
+  {
+    if ((s == null) || (s.length() == 0))
+    {
+      return "null";
+    }
+    StringBuffer buffer = new StringBuffer(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      if ((c == '"') || (c == '\\'))
+      {
+        buffer.append('\\').append(c);
+      } else if ((c < 0x20) || (c > 0x7E))
+      {
+        String hex = Integer.toHexString(c);
+        buffer.append("\\u");
+        for (int j = hex.length(); j < 4; j++)
+        {
+          buffer.append('0');
+        }
+        buffer.append(hex);
+      } else
+      {
+        buffer.append(c);
+      }
+    }
+    return buffer.append('"').toString();
+  }
+
+  private void error(Element element, String message)
+  {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+
+  /** A provider found by the processor. */
+  private static final class Provider
+  {
+    /** The binary name of the provider class. */
+    final String binaryName;
+    /** The canonical name of the provider class, used in the source. */
+    final String canonicalName;
+    /** The binary names of the categories. */
+    final List<String> categories = new ArrayList<String>();
+    String version;
+    String title;
+    String vendor;
+
+    Provider(String binaryName, String canonicalName)
+    {
+      this.binaryName = binaryName;
+      this.canonicalName = canonicalName;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin.spi;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/** Immutable and versioned set of property values of a configurable
+ *  service provider.
+ *
+ *  A provider keeps its current snapshot in a <code>volatile</code> field.
+ *  Writers, serialized on a lock of the provider, derive a new snapshot
+ *  from the current one with {@link #with(String, Object)} or
+ *  {@link #with(Map)} and publish it by assigning the field. Readers, such
+ *  as the <code>process</code> method of a provider, read the field once
+ *  and use this snapshot for the whole call: they never lock and always
+ *  see a consistent set of values, even while the provider is being
+ *  reconfigured.
+ *
+ *  Each derived snapshot has a version one greater than the snapshot it
+ *  was derived from, so that readers caching data computed from the
+ *  configuration can check if it is still current.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public final class ConfigurationSnapshot
+{
+  /** The empty snapshot, of version 0. */
+  public static final ConfigurationSnapshot EMPTY = new ConfigurationSnapshot(0,
+      Collections.EMPTY_MAP);
+
+  /** The version of this snapshot. */
+  private final long version;
+  /** The property values, by name. Never modified. */
+  private final Map values;
+
+  private ConfigurationSnapshot(long version, Map values)
+  {
+    this.version = version;
+    this.values = values;
+  }
+
+  /** Returns the version of this snapshot. */
+  public long getVersion()
+  {
+    return version;
+  }
+
+  /** Returns the value of a property.
+   *
+   * @param name The property name.
+   * @return The value, or null if the property is not set.
+   */
+  public Object get(String name)
+  {
+    return values.get(name);
+  }
+
+  /** Checks if a property is set.
+   *
+   * @param name The property name.
+   * @return true if the property has a value in this snapshot.
+   */
+  public boolean contains(String name)
+  {
+    return values.containsKey(name);
+  }
+
+  /** Returns the names of the properties set in this snapshot. */
+  public String[] getNames()
+  {
+    return (String[]) values.keySet().toArray(new String[values.size()]);
+  }
+
+  /** Returns the property values of this snapshot.
+   *
+   * @return An unmodifiable map of the values, by name.
+   */
+  public Map toMap()
+  {
+    return Collections.unmodifiableMap(values);
+  }
+
+  /** Returns a new snapshot with a property set to another value.
+   *
+   * @param name The property name.
+   * @param value The new value, or null to unset the property.
+   * @return The new snapshot, of the next version.
+   */
+  public ConfigurationSnapshot with(String name, Object value)
+  {
+    if (name == null)
+    {
+      throw new IllegalArgumentException("name should be != NULL");
+    }
+    Map copy = new HashMap(values);
+    if (value == null)
+    {
+      copy.remove(name);
+    } else
+    {
+      copy.put(name, value);
+    }
+    return new ConfigurationSnapshot(version + 1, copy);
+  }
+
+  /** Returns a new snapshot with several properties set to other values at
+   *  once.
+   *
+   * @param changes The new values, by property name, a null value unsets
+   *   the property.
+   * @return The new snapshot, of the next version.
+   */
+  public ConfigurationSnapshot with(Map changes)
+  {
+    Map copy = new HashMap(values);
+    for (Iterator it = changes.entrySet().iterator(); it.hasNext();)
+    {
+      Map.Entry e = (Map.Entry) it.next();
+      if (e.getKey() == null)
+      {
+        throw new IllegalArgumentException("name should be != NULL");
+      }
+      if (e.getValue() == null)
+      {
+        copy.remove(e.getKey());
+      } else
+      {
+        copy.put(e.getKey(), e.getValue());
+      }
+    }
+    return new ConfigurationSnapshot(version + 1, copy);
+  }
+
+  public String toString()
+  {
+    return "ConfigurationSnapshot[version=" + version + ", " + values + "]";
+  }
+}
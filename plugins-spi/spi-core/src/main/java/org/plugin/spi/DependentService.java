@@ -0,0 +1,43 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/   
+package org.plugin.spi;
+
+/** Optional interface that may be implemented by service providers 
+ *  that require other service providers to be active before they 
+ *  are themselves activated. A registry activating several providers
+ *  at once registers each of them only after all of its dependencies, 
+ *  and does not register it if one of its dependencies is missing or 
+ *  failed to activate.
+ *
+ */
+public interface DependentService
+{
+  /** Returns the plugin IDs of the service providers that must be 
+   *  active before this provider. The plugin ID of a service provider 
+   *  is the fully qualified name of its class.
+   *
+   * @return The plugin IDs, an empty array if there are none.
+   */
+  String[] getPluginDependencies();
+
+  /** Returns the categories that must have at least one active 
+   *  service provider before this provider. When several providers 
+   *  of such a category are activated at the same time, all of them 
+   *  are activated before this provider.
+   *
+   * @return The categories, an empty array if there are none.
+   */
+  Class[] getCategoryDependencies();
+}
@@ -0,0 +1,44 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin.spi;
+
+import java.util.Map;
+
+/** Optional interface that may be implemented by configurable service
+ *  providers that keep their configuration in a
+ *  {@link ConfigurationSnapshot}, so that they can be reconfigured while
+ *  other threads use them, without locking.
+ *
+ */
+public interface VersionedConfiguration extends ServiceConfiguration
+{
+  /** Returns the current configuration. The returned snapshot never
+   *  changes, later modifications publish a new snapshot.
+   *
+   * @return The current configuration snapshot.
+   */
+  public ConfigurationSnapshot getConfigurationSnapshot();
+
+  /** Sets several parameters of this service at once. The new values are
+   *  published in a single snapshot, so users of the service see either
+   *  none or all of them.
+   *
+   * @param values The new values, by parameter name, null to unset a parameter.
+   * @throws IllegalArgumentException
+   *     Raised when a parameter name is not recognized or a value cannot be
+   *     set, no parameter is then modified.
+   */
+  public void setProperties(Map values) throws IllegalArgumentException;
+}
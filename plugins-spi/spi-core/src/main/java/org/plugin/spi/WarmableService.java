@@ -0,0 +1,44 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin.spi;
+
+import org.plugin.ServiceProviderException;
+
+/** Optional interface that may be implemented by service providers
+ *  whose first calls are much slower than the next ones, because of
+ *  class loading, just in time compilation or lazy initialization.
+ *  A registry may call {@link #warmUp()} in the background once the
+ *  provider is registered, so that these costs are not paid by the
+ *  first real caller.
+ *
+ */
+public interface WarmableService
+{
+  /** Returns the priority of the warm-up of this provider. Providers
+   *  with a higher priority are warmed up first.
+   *
+   * @return The warm-up priority.
+   */
+  int getWarmUpPriority();
+
+  /** Exercises the provider, typically by processing a small
+   *  representative input. This method is called at most once, from
+   *  a background thread, and should not have visible side effects.
+   *
+   * @throws ServiceProviderException If the warm-up failed, the provider
+   *   remains registered.
+   */
+  void warmUp() throws ServiceProviderException;
+}
@@ -19,8 +19,13 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import org.plugin.ServiceProviderException;
+import org.plugin.spi.ConfigurationSnapshot;
+import org.plugin.spi.VersionedConfiguration;
 import org.w3c.dom.Document;
 
 /**
@@ -45,14 +50,19 @@ import org.w3c.dom.Document;
  * <li>{@link java.io.File} pointing to a directory</li>
  * </ul>
  *
+ * The configuration is kept in an immutable {@link ConfigurationSnapshot}:
+ * subclasses should read it once with {@link #getConfigurationSnapshot()} at
+ * the start of <code>process</code>, so that a concurrent reconfiguration
+ * does not change the document style or base URL in the middle of an export.
  *
  */
-public abstract class AbstractDocumentExporter implements DocumentExporter
+public abstract class AbstractDocumentExporter implements DocumentExporter,
+    VersionedConfiguration
 {
-  /** Active Document style */
-  String documentStyle;
-  /** Base URL reference of the document, used to resolve relative references */
-  URL baseURL;
+  /** Current configuration, replaced as a whole on each modification. */
+  private volatile ConfigurationSnapshot configuration;
+  /** Lock serializing the modifications of the configuration. */
+  private final Object configurationLock = new Object();
 
   static final Class[] inputTypes = { org.w3c.dom.Document[].class };
 
@@ -61,7 +71,46 @@ public abstract class AbstractDocumentExporter implements DocumentExporter
   public AbstractDocumentExporter()
   {
     super();
-    documentStyle = OUTPUT_ARTICLE;
+    configuration = ConfigurationSnapshot.EMPTY.with(PROPERTY_DOCUMENT_STYLE,
+        OUTPUT_ARTICLE);
+  }
+
+  /**
+   * Returns the current configuration of this exporter.
+   *
+   * @return The current configuration snapshot.
+   */
+  public ConfigurationSnapshot getConfigurationSnapshot()
+  {
+    return configuration;
+  }
+
+  /**
+   * Returns the document style of a configuration.
+   *
+   * @param snapshot
+   *          The configuration, as returned by
+   *          {@link #getConfigurationSnapshot()}.
+   * @return The document style, {@link #OUTPUT_ARTICLE} if the style
+   *         was unset.
+   */
+  protected static String getDocumentStyle(ConfigurationSnapshot snapshot)
+  {
+    String style = (String) snapshot.get(PROPERTY_DOCUMENT_STYLE);
+    return (style == null) ? OUTPUT_ARTICLE : style;
+  }
+
+  /**
+   * Returns the base URL of a configuration.
+   *
+   * @param snapshot
+   *          The configuration, as returned by
+   *          {@link #getConfigurationSnapshot()}.
+   * @return The base URL, or null if it is not set.
+   */
+  protected static URL getBaseURL(ConfigurationSnapshot snapshot)
+  {
+    return (URL) snapshot.get(PROPERTY_BASE_URL);
   }
 
   /**
@@ -129,19 +178,69 @@ public abstract class AbstractDocumentExporter implements DocumentExporter
    *          The configuration parameter to set, should be
    *          {@link #PROPERTY_DOCUMENT_STYLE}.
    * @param value
-   *          The value of the configuration parameter
+   *          The value of the configuration parameter, null to unset it
    *
    */
 
   public void setProperty(String name, Object value)
       throws IllegalArgumentException
+  {
+    value = convertProperty(name, value);
+    synchronized (configurationLock)
+    {
+      configuration = configuration.with(name, value);
+    }
+  }
+
+  /**
+   * Sets several configuration parameters at once. The new values are
+   * published in a single configuration snapshot.
+   *
+   * @param values
+   *          The values of the configuration parameters, by name, a null
+   *          value unsets the parameter.
+   *
+   */
+
+  public void setProperties(Map values) throws IllegalArgumentException
+  {
+    Map converted = new HashMap();
+    for (Iterator it = values.entrySet().iterator(); it.hasNext();)
+    {
+      Map.Entry e = (Map.Entry) it.next();
+      String name = (String) e.getKey();
+      converted.put(name, convertProperty(name, e.getValue()));
+    }
+    synchronized (configurationLock)
+    {
+      configuration = configuration.with(converted);
+    }
+  }
+
+  /**
+   * Checks a configuration parameter value and converts it to the value that
+   * is stored in the configuration. A null value is kept as is, it unsets
+   * the parameter.
+   */
+  private static Object convertProperty(String name, Object value)
+      throws IllegalArgumentException
   {
     if (name.equals(PROPERTY_DOCUMENT_STYLE))
     {
-      documentStyle = value.toString();
+      if ((value == null) || (value instanceof String))
+      {
+        return value;
+      }
+      throw new IllegalArgumentException("Parameter '" + name
+          + "' should be a String");
     } else if (name.equals(PROPERTY_BASE_URL))
     {
-      baseURL = (URL) value;
+      if ((value == null) || (value instanceof URL))
+      {
+        return value;
+      }
+      throw new IllegalArgumentException("Parameter '" + name
+          + "' should be a URL");
     }
     else
     {
@@ -162,12 +261,13 @@ public abstract class AbstractDocumentExporter implements DocumentExporter
 
   public Object getProperty(String name) throws IllegalArgumentException
   {
+    ConfigurationSnapshot snapshot = configuration;
     if (name.equals(PROPERTY_DOCUMENT_STYLE))
     {
-      return documentStyle;
+      return getDocumentStyle(snapshot);
     } else if (name.equals(PROPERTY_BASE_URL))
     {
-      return baseURL;
+      return getBaseURL(snapshot);
     } else
     {
       throw new IllegalArgumentException("Unknown parameter '" + name + "'");
@@ -183,14 +283,14 @@ public abstract class AbstractDocumentExporter implements DocumentExporter
       return new String();
     } else if (name.equals(PROPERTY_BASE_URL))
     {
+      /* Any URL instance, the value is only checked to be a URL */
       try
       {
-        return new URL(".");
+        return new URL("file:.");
       } catch (MalformedURLException e)
       {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-        return null;
+        /* The file protocol is always supported */
+        throw new IllegalStateException(e.getMessage());
       }
     } else
     {
@@ -0,0 +1,111 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Runs a child Java virtual machine and collects its output.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+final class ChildJvm
+{
+  /** The java launcher of the running virtual machine. */
+  static final String JAVA = new File(new File(System.getProperty("java.home"), "bin"), "java")
+      .getPath();
+
+  private ChildJvm()
+  {
+  }
+
+  /** Builds the command line of a child virtual machine.
+   *
+   * @param options The virtual machine options.
+   * @param classPath The class path, or null for none.
+   * @param mainClass The main class, or null to only run the options.
+   * @param args The arguments of the main class.
+   * @return The command line.
+   */
+  static List<String> command(List<String> options, String classPath, String mainClass,
+      String[] args)
+  {
+    List<String> command = new ArrayList<String>();
+    command.add(JAVA);
+    command.addAll(options);
+    if (classPath != null)
+    {
+      command.add("-cp");
+      command.add(classPath);
+    }
+    if (mainClass != null)
+    {
+      command.add(mainClass);
+      for (int i = 0; i < args.length; i++)
+      {
+        command.add(args[i]);
+      }
+    }
+    return command;
+  }
+
+  /** Runs a command and waits for it to exit.
+   *
+   * @param command The command line.
+   * @return The standard output and error of the command, merged.
+   * @throws IOException If the command cannot be run or exits with an error.
+   */
+  static String run(List<String> command) throws IOException
+  {
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.redirectErrorStream(true);
+    Process process = builder.start();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    InputStream in = process.getInputStream();
+    try
+    {
+      byte[] buffer = new byte[4096];
+      int count;
+      while ((count = in.read(buffer)) != -1)
+      {
+        output.write(buffer, 0, count);
+      }
+    } finally
+    {
+      in.close();
+    }
+    int status;
+    try
+    {
+      status = process.waitFor();
+    } catch (InterruptedException e)
+    {
+      process.destroy();
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for " + command.get(0));
+    }
+    if (status != 0)
+    {
+      throw new IOException("Command " + command + " exited with status " + status + ":\n"
+          + output.toString());
+    }
+    return output.toString();
+  }
+}
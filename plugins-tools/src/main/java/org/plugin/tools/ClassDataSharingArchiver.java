@@ -0,0 +1,435 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.plugin.ServiceProviderUtilities;
+
+/** Creates a class data sharing (CDS) archive of the classes loaded by the
+ *  discovery and registration of the providers of a plugins directory.
+ *
+ *  The workload, {@link PluginStartup}, is run in a child virtual machine
+ *  which records the classes it loads. An application started with
+ *  <code>-XX:SharedArchiveFile=&lt;archive&gt;</code> and the same class
+ *  path then maps these classes from the archive instead of loading,
+ *  parsing and verifying them again.
+ *
+ *  Two archive modes are supported:
+ *  <ul>
+ *   <li>{@link #MODE_DYNAMIC}: the classes are archived when the child
+ *     virtual machine exits, with <code>-XX:ArchiveClassesAtExit</code>.
+ *     Requires JDK 13 or later.</li>
+ *   <li>{@link #MODE_STATIC}: the list of loaded classes is dumped with
+ *     <code>-XX:DumpLoadedClassList</code>, and a second child virtual
+ *     machine creates the archive from it with <code>-Xshare:dump</code>.
+ *     Requires JDK 10 or later.</li>
+ *  </ul>
+ *  The classes of the plugin jars are defined by the plugin class loader
+ *  rather than the application class loader. The dynamic mode archives
+ *  them with the other loaded classes. The dumped class list only names the
+ *  classes of the built-in class loaders, so in static mode all the classes
+ *  of the plugin jars are added to it as classes of an unregistered class
+ *  loader, with the jar defining them as source.
+ *
+ *  The archive is only valid for the virtual machine that created it and
+ *  for an application class path starting with the class path used to
+ *  create it, it must be created again when either changes. The class path
+ *  must only contain jar files, the virtual machine refuses to archive
+ *  classes when it contains non-empty directories.
+ *
+ *  Usage: <code>ClassDataSharingArchiver [-static] &lt;archive&gt;
+ *  &lt;plugins directory&gt; &lt;category&gt;...</code>, with the class path
+ *  of the application.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class ClassDataSharingArchiver
+{
+  /** Dynamic archive mode, created at exit of the recorded run. */
+  public static final int MODE_DYNAMIC = 0;
+  /** Static archive mode, created from a dumped class list. */
+  public static final int MODE_STATIC = 1;
+
+  /** The class path of the application. */
+  private final String classPath;
+  /** The root plugins directory. */
+  private final File pluginsDirectory;
+  /** The fully qualified names of the service interfaces. */
+  private final String[] categoryNames;
+
+  /** Creates an archiver for an application.
+   *
+   * @param classPath The class path of the application, which must contain
+   *   this library and the service interfaces.
+   * @param pluginsDirectory The root plugins directory.
+   * @param categoryNames The fully qualified names of the service interfaces
+   *   whose providers are loaded.
+   */
+  public ClassDataSharingArchiver(String classPath, File pluginsDirectory, String[] categoryNames)
+  {
+    if (classPath == null)
+    {
+      throw new IllegalArgumentException("classPath should be != NULL");
+    }
+    if (pluginsDirectory == null)
+    {
+      throw new IllegalArgumentException("pluginsDirectory should be != NULL");
+    }
+    this.classPath = classPath;
+    this.pluginsDirectory = pluginsDirectory;
+    this.categoryNames = categoryNames.clone();
+  }
+
+  /** Returns the class path of the application. */
+  public String getClassPath()
+  {
+    return classPath;
+  }
+
+  /** Returns the arguments of {@link PluginStartup} for this application. */
+  String[] getStartupArguments()
+  {
+    String[] args = new String[categoryNames.length + 1];
+    args[0] = pluginsDirectory.getAbsolutePath();
+    System.arraycopy(categoryNames, 0, args, 1, categoryNames.length);
+    return args;
+  }
+
+  /** Creates the archive, replacing an existing one.
+   *
+   * @param archive The archive file.
+   * @param mode {@link #MODE_DYNAMIC} or {@link #MODE_STATIC}.
+   * @throws IOException If a child virtual machine failed.
+   * @throws IllegalArgumentException If the mode is invalid.
+   */
+  public void createArchive(File archive, int mode) throws IOException
+  {
+    if ((mode != MODE_DYNAMIC) && (mode != MODE_STATIC))
+    {
+      throw new IllegalArgumentException("Invalid archive mode: " + mode);
+    }
+    if (archive.exists() && (archive.delete() == false))
+    {
+      throw new IOException("Cannot replace " + archive);
+    }
+    String archivePath = archive.getAbsolutePath();
+    List<String> options = new ArrayList<String>();
+    if (mode == MODE_DYNAMIC)
+    {
+      options.add("-XX:ArchiveClassesAtExit=" + archivePath);
+      ChildJvm.run(ChildJvm.command(options, classPath, PluginStartup.class.getName(),
+          getStartupArguments()));
+    } else
+    {
+      File classList = new File(archivePath + ".classlist");
+      try
+      {
+        options.add("-XX:DumpLoadedClassList=" + classList.getAbsolutePath());
+        ChildJvm.run(ChildJvm.command(options, classPath, PluginStartup.class.getName(),
+            getStartupArguments()));
+        addPluginClasses(classList);
+        options.clear();
+        options.add("-Xshare:dump");
+        options.add("-XX:SharedClassListFile=" + classList.getAbsolutePath());
+        options.add("-XX:SharedArchiveFile=" + archivePath);
+        ChildJvm.run(ChildJvm.command(options, classPath, null, null));
+      } finally
+      {
+        classList.delete();
+      }
+    }
+    if (archive.exists() == false)
+    {
+      throw new IOException("The virtual machine did not create " + archive);
+    }
+  }
+
+  /** Adds the classes of the plugin jars to a class list dumped with
+   *  <code>-XX:DumpLoadedClassList</code>.
+   *
+   *  The virtual machine only archives a class of another class loader if
+   *  the list gives its source jar and the identifiers of its super class
+   *  and interfaces, so identifiers are given to the listed classes they
+   *  refer to, and the super types which are not listed yet are added
+   *  before the class.
+   *
+   * @param classList The class list, rewritten.
+   * @throws IOException If the class list or a plugin jar cannot be read.
+   */
+  void addPluginClasses(File classList) throws IOException
+  {
+    File[] jars = ServiceProviderUtilities.listPluginJars(pluginsDirectory);
+    if ((jars == null) || (jars.length == 0))
+    {
+      return;
+    }
+    ClassList list = new ClassList(readLines(classList));
+    String[] paths = classPath.split(File.pathSeparator);
+    File[] classPathFiles = new File[paths.length];
+    for (int i = 0; i < paths.length; i++)
+    {
+      classPathFiles[i] = new File(paths[i]);
+    }
+    URLClassLoader applicationLoader = new URLClassLoader(toURLs(classPathFiles),
+        ClassLoader.getSystemClassLoader().getParent());
+    URLClassLoader pluginLoader = new URLClassLoader(toURLs(jars), applicationLoader);
+    for (int i = 0; i < jars.length; i++)
+    {
+      JarFile jar = new JarFile(jars[i]);
+      try
+      {
+        for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements();)
+        {
+          String name = entries.nextElement().getName();
+          if ((name.endsWith(".class") == false) || name.startsWith("META-INF/")
+              || name.endsWith("module-info.class"))
+          {
+            continue;
+          }
+          Class<?> c;
+          try
+          {
+            c = Class.forName(name.substring(0, name.length() - 6).replace('/', '.'), false,
+                pluginLoader);
+          } catch (ClassNotFoundException e)
+          {
+            continue;
+          } catch (LinkageError e)
+          {
+            /* Depends on classes that are not available, it cannot be loaded
+             * at run time either.
+             */
+            continue;
+          }
+          list.add(c, pluginLoader);
+        }
+      } finally
+      {
+        jar.close();
+      }
+    }
+    writeLines(classList, list.lines);
+  }
+
+  /** The lines of a class list, and the identifiers given to its classes.
+   */
+  private static class ClassList
+  {
+    /** The lines, in order. */
+    final List<String> lines;
+    /** The line of each listed class of a built-in loader, by internal name. */
+    private final Map<String, Integer> builtinLines = new HashMap<String, Integer>();
+    /** The identifier of each class, by class for the plugin classes and by
+     *  internal name for the classes of the built-in loaders.
+     */
+    private final Map<Object, Integer> ids = new HashMap<Object, Integer>();
+    /** The next free identifier. */
+    private int nextId;
+
+    ClassList(List<String> lines)
+    {
+      this.lines = lines;
+      for (int i = 0; i < lines.size(); i++)
+      {
+        String line = lines.get(i);
+        if ((line.length() == 0) || (line.charAt(0) == '#') || (line.charAt(0) == '@'))
+        {
+          continue;
+        }
+        StringTokenizer tokens = new StringTokenizer(line);
+        String name = tokens.nextToken();
+        boolean custom = line.indexOf(" source:") >= 0;
+        Integer id = null;
+        while (tokens.hasMoreTokens())
+        {
+          if (tokens.nextToken().equals("id:") && tokens.hasMoreTokens())
+          {
+            id = Integer.valueOf(tokens.nextToken());
+            nextId = Math.max(nextId, id.intValue() + 1);
+          }
+        }
+        if (custom == false)
+        {
+          builtinLines.put(name, Integer.valueOf(i));
+          if (id != null)
+          {
+            ids.put(name, id);
+          }
+        }
+      }
+    }
+
+    /** Returns the identifier of a class, adding it to the list first if
+     *  it is a plugin class or a class which is not listed yet.
+     *
+     * @param c The class.
+     * @param pluginLoader The plugin class loader.
+     * @return The identifier.
+     */
+    int add(Class<?> c, ClassLoader pluginLoader)
+    {
+      boolean plugin = c.getClassLoader() == pluginLoader;
+      String name = c.getName().replace('.', '/');
+      Object key = plugin ? (Object) c : name;
+      Integer id = ids.get(key);
+      if (id != null)
+      {
+        return id.intValue();
+      }
+      if (plugin == false)
+      {
+        id = Integer.valueOf(nextId++);
+        Integer line = builtinLines.get(name);
+        if (line == null)
+        {
+          lines.add(name + " id: " + id);
+        } else
+        {
+          lines.set(line.intValue(), name + " id: " + id);
+        }
+        ids.put(key, id);
+        return id.intValue();
+      }
+      Class<?> superclass = c.isInterface() ? Object.class : c.getSuperclass();
+      StringBuilder line = new StringBuilder(name);
+      int superId = add(superclass, pluginLoader);
+      Class<?>[] interfaces = c.getInterfaces();
+      int[] interfaceIds = new int[interfaces.length];
+      for (int i = 0; i < interfaces.length; i++)
+      {
+        interfaceIds[i] = add(interfaces[i], pluginLoader);
+      }
+      id = Integer.valueOf(nextId++);
+      line.append(" id: ").append(id).append(" super: ").append(superId);
+      if (interfaceIds.length > 0)
+      {
+        line.append(" interfaces:");
+        for (int i = 0; i < interfaceIds.length; i++)
+        {
+          line.append(' ').append(interfaceIds[i]);
+        }
+      }
+      line.append(" source: ").append(getSource(c));
+      lines.add(line.toString());
+      ids.put(key, id);
+      return id.intValue();
+    }
+
+    /** Returns the path of the jar defining a plugin class. */
+    private static String getSource(Class<?> c)
+    {
+      try
+      {
+        return new File(c.getProtectionDomain().getCodeSource().getLocation().toURI())
+            .getAbsolutePath();
+      } catch (URISyntaxException e)
+      {
+        throw new IllegalStateException("Invalid location of " + c.getName(), e);
+      }
+    }
+  }
+
+  /** Returns the URLs of a list of files. */
+  private static URL[] toURLs(File[] files) throws MalformedURLException
+  {
+    URL[] urls = new URL[files.length];
+    for (int i = 0; i < files.length; i++)
+    {
+      urls[i] = files[i].toURI().toURL();
+    }
+    return urls;
+  }
+
+  private static List<String> readLines(File file) throws IOException
+  {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+        "UTF-8"));
+    try
+    {
+      String line;
+      while ((line = reader.readLine()) != null)
+      {
+        lines.add(line);
+      }
+    } finally
+    {
+      reader.close();
+    }
+    return lines;
+  }
+
+  private static void writeLines(File file, List<String> lines) throws IOException
+  {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try
+    {
+      for (int i = 0; i < lines.size(); i++)
+      {
+        writer.write(lines.get(i));
+        writer.write('\n');
+      }
+    } finally
+    {
+      writer.close();
+    }
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    int mode = MODE_DYNAMIC;
+    int first = 0;
+    if ((args.length > 0) && args[0].equals("-static"))
+    {
+      mode = MODE_STATIC;
+      first = 1;
+    }
+    if (args.length - first < 3)
+    {
+      System.err.println("Usage: ClassDataSharingArchiver [-static] <archive> "
+          + "<plugins directory> <category>...");
+      System.exit(2);
+    }
+    String[] categoryNames = new String[args.length - first - 2];
+    System.arraycopy(args, first + 2, categoryNames, 0, categoryNames.length);
+    ClassDataSharingArchiver archiver = new ClassDataSharingArchiver(
+        System.getProperty("java.class.path"), new File(args[first + 1]), categoryNames);
+    File archive = new File(args[first]);
+    archiver.createArchive(archive, mode);
+    System.out.println("Created " + archive.getAbsolutePath() + " (" + archive.length()
+        + " bytes)");
+  }
+}
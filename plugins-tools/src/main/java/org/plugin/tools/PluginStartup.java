@@ -0,0 +1,98 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.plugin.ServiceProviderUtilities;
+import org.plugin.ServiceRegistry;
+
+/** Runs the discovery and registration of the providers of a plugins
+ *  directory, as an application using
+ *  {@link ServiceProviderUtilities#loadServiceProviders(Class, File, int)}
+ *  does at startup. This is the workload recorded by
+ *  {@link ClassDataSharingArchiver} and measured by {@link StartupBenchmark}.
+ *
+ *  Usage: <code>PluginStartup &lt;plugins directory&gt; &lt;category&gt;...</code>
+ *  where each category is the fully qualified name of a service interface.
+ *  Once done, the number of registered providers and the time spent are
+ *  printed as <code>startup.providers=</code> and <code>startup.nanos=</code>
+ *  lines.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class PluginStartup
+{
+  /** The output key of the number of registered providers. */
+  static final String KEY_PROVIDERS = "startup.providers";
+  /** The output key of the time spent, in nanoseconds. */
+  static final String KEY_NANOS = "startup.nanos";
+
+  private PluginStartup()
+  {
+  }
+
+  /** Discovers and registers the providers of the specified categories in
+   *  a new registry.
+   *
+   * @param pluginsDirectory The root plugins directory.
+   * @param categoryNames The fully qualified names of the service interfaces.
+   * @return The registry.
+   * @throws ClassNotFoundException If a service interface cannot be loaded.
+   */
+  public static ServiceRegistry run(File pluginsDirectory, String[] categoryNames)
+      throws ClassNotFoundException
+  {
+    List<Class<?>> categories = new ArrayList<Class<?>>();
+    for (int i = 0; i < categoryNames.length; i++)
+    {
+      categories.add(Class.forName(categoryNames[i]));
+    }
+    ServiceRegistry registry = new ServiceRegistry(categories.iterator());
+    for (int i = 0; i < categories.size(); i++)
+    {
+      registry.registerServiceProviders(ServiceProviderUtilities.loadServiceProviders(
+          categories.get(i), pluginsDirectory, ServiceProviderUtilities.DISCOVERY_SHARED_LOADER)
+          .iterator());
+    }
+    return registry;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 2)
+    {
+      System.err.println("Usage: PluginStartup <plugins directory> <category>...");
+      System.exit(2);
+    }
+    String[] categoryNames = new String[args.length - 1];
+    System.arraycopy(args, 1, categoryNames, 0, categoryNames.length);
+
+    long start = System.nanoTime();
+    ServiceRegistry registry = run(new File(args[0]), categoryNames);
+    long elapsed = System.nanoTime() - start;
+
+    int count = 0;
+    for (int i = 0; i < categoryNames.length; i++)
+    {
+      count += registry.count(Class.forName(categoryNames[i]), null);
+    }
+    System.out.println(KEY_PROVIDERS + "=" + count);
+    System.out.println(KEY_NANOS + "=" + elapsed);
+  }
+}
@@ -0,0 +1,146 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Compares the startup time of the plugin discovery and registration with
+ *  and without a class data sharing archive created by
+ *  {@link ClassDataSharingArchiver}.
+ *
+ *  Each run starts a new virtual machine executing {@link PluginStartup}.
+ *  Runs with and without the archive alternate, after one untimed run of
+ *  each, so that both see the same file system cache. For each
+ *  configuration the median and minimum of the whole process time, and of
+ *  the discovery and registration time reported by the child, are printed.
+ *  The runs with the archive use <code>-Xshare:on</code>, so that an archive
+ *  which does not match the virtual machine or the class path fails the
+ *  benchmark instead of being silently ignored.
+ *
+ *  Usage: <code>StartupBenchmark [-runs &lt;count&gt;] &lt;archive&gt;
+ *  &lt;plugins directory&gt; &lt;category&gt;...</code>, with the class path
+ *  the archive was created with. The archive is created first if it does
+ *  not exist.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class StartupBenchmark
+{
+  /** The default number of timed runs of each configuration. */
+  public static final int DEFAULT_RUNS = 10;
+
+  private StartupBenchmark()
+  {
+  }
+
+  /** Runs the startup workload once in a new virtual machine.
+   *
+   * @param archiver The archiver describing the application.
+   * @param options The virtual machine options.
+   * @return The process time and the time reported by the child, in
+   *   nanoseconds.
+   * @throws IOException If the child virtual machine failed.
+   */
+  static long[] runOnce(ClassDataSharingArchiver archiver, List<String> options)
+      throws IOException
+  {
+    long start = System.nanoTime();
+    String output = ChildJvm.run(ChildJvm.command(options, archiver.getClassPath(),
+        PluginStartup.class.getName(), archiver.getStartupArguments()));
+    long elapsed = System.nanoTime() - start;
+    String key = PluginStartup.KEY_NANOS + "=";
+    int index = output.lastIndexOf(key);
+    if (index < 0)
+    {
+      throw new IOException("No startup time reported:\n" + output);
+    }
+    int end = index + key.length();
+    while ((end < output.length()) && Character.isDigit(output.charAt(end)))
+    {
+      end++;
+    }
+    return new long[] { elapsed, Long.parseLong(output.substring(index + key.length(), end)) };
+  }
+
+  /** Formats the median and minimum of a set of durations, in milliseconds. */
+  private static String summarize(List<Long> durations)
+  {
+    List<Long> sorted = new ArrayList<Long>(durations);
+    Collections.sort(sorted);
+    double median = sorted.get(sorted.size() / 2).longValue() / 1000000.0;
+    double min = sorted.get(0).longValue() / 1000000.0;
+    return "median " + Math.round(median * 10) / 10.0 + " ms, min " + Math.round(min * 10)
+        / 10.0 + " ms";
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    int runs = DEFAULT_RUNS;
+    int first = 0;
+    if ((args.length > 1) && args[0].equals("-runs"))
+    {
+      runs = Integer.parseInt(args[1]);
+      first = 2;
+    }
+    if ((args.length - first < 3) || (runs <= 0))
+    {
+      System.err.println("Usage: StartupBenchmark [-runs <count>] <archive> "
+          + "<plugins directory> <category>...");
+      System.exit(2);
+    }
+    String[] categoryNames = new String[args.length - first - 2];
+    System.arraycopy(args, first + 2, categoryNames, 0, categoryNames.length);
+    ClassDataSharingArchiver archiver = new ClassDataSharingArchiver(
+        System.getProperty("java.class.path"), new File(args[first + 1]), categoryNames);
+    File archive = new File(args[first]);
+    if (archive.exists() == false)
+    {
+      System.out.println("Creating " + archive.getAbsolutePath());
+      archiver.createArchive(archive, ClassDataSharingArchiver.MODE_DYNAMIC);
+    }
+
+    List<String> baseline = Collections.emptyList();
+    List<String> shared = Arrays.asList(new String[] {
+        "-XX:SharedArchiveFile=" + archive.getAbsolutePath(), "-Xshare:on" });
+    runOnce(archiver, baseline);
+    runOnce(archiver, shared);
+
+    List<Long> baselineProcess = new ArrayList<Long>();
+    List<Long> baselineStartup = new ArrayList<Long>();
+    List<Long> sharedProcess = new ArrayList<Long>();
+    List<Long> sharedStartup = new ArrayList<Long>();
+    for (int i = 0; i < runs; i++)
+    {
+      long[] result = runOnce(archiver, baseline);
+      baselineProcess.add(Long.valueOf(result[0]));
+      baselineStartup.add(Long.valueOf(result[1]));
+      result = runOnce(archiver, shared);
+      sharedProcess.add(Long.valueOf(result[0]));
+      sharedStartup.add(Long.valueOf(result[1]));
+    }
+
+    System.out.println("Runs per configuration: " + runs);
+    System.out.println("Without archive: process " + summarize(baselineProcess)
+        + "; discovery " + summarize(baselineStartup));
+    System.out.println("With archive:    process " + summarize(sharedProcess)
+        + "; discovery " + summarize(sharedStartup));
+  }
+}
@@ -0,0 +1,494 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Watches the plugin directories searched by
+ *  {@link ServiceProviderUtilities#loadServiceProviders(Class)} and keeps
+ *  the providers of a {@link ServiceRegistry} in sync with the plugin jars
+ *  they contain.
+ *
+ *  Each plugin jar is loaded in its own class loader, from a private copy of
+ *  the jar, so that the jar file can be replaced or deleted while in use and
+ *  the classes of a previous version can be unloaded once its providers are
+ *  deregistered. The providers of a jar are instantiated for each of its
+ *  service declarations whose service interface is a category of the
+ *  registry.
+ *
+ *  Unlike the shared class loader of <code>loadServiceProviders</code>, the
+ *  loader of a jar has the application class loader, or the specified
+ *  parent, as its parent: a plugin no longer sees the classes of the other
+ *  jars, and in particular of the libraries in the <code>lib</code>
+ *  subdirectory. A plugin must therefore be packaged with the classes it
+ *  needs, or these must be on the class path of the application.
+ *
+ *  The directories are polled at a fixed interval. A change is applied once
+ *  the directories have been stable for the debounce delay, so a jar being
+ *  copied or a burst of changes is applied once. Only the jars that were
+ *  added, removed or modified are processed: providers of removed or
+ *  modified jars are deregistered, which calls
+ *  {@link org.plugin.spi.RegisterableService#onDeregistration}, and
+ *  providers of new or modified jars are registered.
+ *
+ *  The watcher manages the providers of the plugin jars by itself, it is meant
+ *  to be used instead of <code>loadServiceProviders</code> for these
+ *  directories.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class PluginDirectoryWatcher
+{
+  /** The registry the providers are registered in. */
+  private final ServiceRegistry registry;
+  /** The root plugins directory. */
+  private final File pluginsDirectory;
+  /** The parent class loader of the plugin class loaders. */
+  private final ClassLoader parent;
+  /** The polling interval in milliseconds. */
+  private final long pollInterval;
+  /** The time the directories must be stable before a change is applied, in milliseconds. */
+  private final long debounce;
+  /** The directory of the private copies of the loaded jars. */
+  private final File shadowDirectory;
+
+  /** The private copies that could not be deleted yet, still open on some platforms. */
+  private final List<File> staleShadows = new ArrayList<File>();
+  /** The loaded jars, keyed by jar file. */
+  private final Map<File, LoadedJar> loaded = new LinkedHashMap<File, LoadedJar>();
+  /** The fingerprints seen on the last poll, or null before the first poll. */
+  private Map<File, String> lastSeen;
+  /** The time the last change was seen at. */
+  private long lastChange;
+  /** True if a change was seen and not yet applied. */
+  private boolean pending;
+  /** The polling thread, null when stopped. */
+  private ScheduledExecutorService poller;
+
+  /** Creates a watcher for the default plugins directory.
+   *
+   * @param registry The registry to keep in sync.
+   * @param pollInterval The interval between polls of the directories.
+   * @param debounce The time the directories must be stable before a
+   *   change is applied.
+   * @param unit The unit of <code>pollInterval</code> and <code>debounce</code>.
+   * @see ServiceProviderUtilities#PLUGINS_DIRECTORY
+   */
+  public PluginDirectoryWatcher(ServiceRegistry registry, long pollInterval, long debounce,
+      TimeUnit unit)
+  {
+    this(registry, ServiceProviderUtilities.PLUGINS_DIRECTORY,
+        PluginDirectoryWatcher.class.getClassLoader(), pollInterval, debounce, unit);
+  }
+
+  /** Creates a watcher for the specified plugins directory.
+   *
+   * @param registry The registry to keep in sync.
+   * @param pluginsDirectory The root plugins directory, its <code>bin</code>
+   *   and <code>lib</code> subdirectories are also watched.
+   * @param parent The parent class loader of the plugin class loaders.
+   * @param pollInterval The interval between polls of the directories.
+   * @param debounce The time the directories must be stable before a
+   *   change is applied.
+   * @param unit The unit of <code>pollInterval</code> and <code>debounce</code>.
+   */
+  public PluginDirectoryWatcher(ServiceRegistry registry, File pluginsDirectory,
+      ClassLoader parent, long pollInterval, long debounce, TimeUnit unit)
+  {
+    if (registry == null)
+    {
+      throw new IllegalArgumentException("registry should be != NULL");
+    }
+    if (pollInterval <= 0)
+    {
+      throw new IllegalArgumentException("pollInterval should be > 0");
+    }
+    this.registry = registry;
+    this.pluginsDirectory = pluginsDirectory;
+    this.parent = parent;
+    this.pollInterval = unit.toMillis(pollInterval);
+    this.debounce = unit.toMillis(debounce);
+    this.shadowDirectory = new File(System.getProperty("java.io.tmpdir"), "plugins-"
+        + Integer.toHexString(System.identityHashCode(this)) + "-" + System.currentTimeMillis());
+  }
+
+  /** Loads the plugin jars currently present and starts watching the
+   *  plugin directories. Does nothing if already started.
+   */
+  public synchronized void start()
+  {
+    if (poller != null)
+    {
+      return;
+    }
+    lastSeen = fingerprint();
+    apply(lastSeen);
+    poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+      public Thread newThread(Runnable r)
+      {
+        Thread thread = new Thread(r, "plugin-directory-watcher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    poller.scheduleWithFixedDelay(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          poll();
+        } catch (RuntimeException e)
+        {
+          Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+              "Plugin directory poll failed", e);
+        }
+      }
+    }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops watching the plugin directories. The providers of the loaded
+   *  jars remain registered.
+   */
+  public synchronized void stop()
+  {
+    if (poller != null)
+    {
+      poller.shutdownNow();
+      poller = null;
+    }
+  }
+
+  /** Checks if the watcher is started.
+   *
+   * @return true if the plugin directories are being watched.
+   */
+  public synchronized boolean isRunning()
+  {
+    return poller != null;
+  }
+
+  /** Stops watching and deregisters the providers of all loaded jars. */
+  public synchronized void close()
+  {
+    stop();
+    apply(new HashMap<File, String>());
+    deleteStaleShadows();
+    File[] files = shadowDirectory.listFiles();
+    if (files != null)
+    {
+      for (int i = 0; i < files.length; i++)
+      {
+        files[i].delete();
+      }
+    }
+    if (shadowDirectory.exists() && (shadowDirectory.delete() == false))
+    {
+      Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).warning(
+          "Cannot delete plugin copies directory " + shadowDirectory + ".");
+    }
+  }
+
+  /** Polls the plugin directories once, applying the changes seen if
+   *  the directories have been stable for the debounce delay.
+   */
+  public synchronized void poll()
+  {
+    deleteStaleShadows();
+    Map<File, String> current = fingerprint();
+    long now = System.currentTimeMillis();
+    if ((lastSeen == null) || (current.equals(lastSeen) == false))
+    {
+      /* Still changing, wait until it settles */
+      lastSeen = current;
+      lastChange = now;
+      pending = true;
+    }
+    if (pending && (now - lastChange >= debounce))
+    {
+      pending = false;
+      apply(current);
+    }
+  }
+
+  /** Returns the fingerprint of each plugin jar: its size and last
+   *  modification time.
+   */
+  private Map<File, String> fingerprint()
+  {
+    Map<File, String> fingerprints = new LinkedHashMap<File, String>();
+    File[] jars = ServiceProviderUtilities.listPluginJars(pluginsDirectory);
+    if (jars != null)
+    {
+      for (int i = 0; i < jars.length; i++)
+      {
+        fingerprints.put(jars[i], jars[i].length() + ":" + jars[i].lastModified());
+      }
+    }
+    return fingerprints;
+  }
+
+  /** Brings the loaded jars in line with the specified jars, only
+   *  processing those that changed.
+   */
+  private void apply(Map<File, String> current)
+  {
+    /* Unload removed and modified jars first */
+    for (Iterator<LoadedJar> it = loaded.values().iterator(); it.hasNext();)
+    {
+      LoadedJar jar = it.next();
+      if (jar.fingerprint.equals(current.get(jar.file)) == false)
+      {
+        it.remove();
+        unload(jar);
+      }
+    }
+    for (Entry<File, String> e : current.entrySet())
+    {
+      if (loaded.containsKey(e.getKey()) == false)
+      {
+        loaded.put(e.getKey(), load(e.getKey(), e.getValue()));
+      }
+    }
+  }
+
+  /** Loads a plugin jar in its own class loader and registers its providers.
+   *  A jar that cannot be loaded is recorded without providers, and is
+   *  only tried again once it is modified. A provider whose registration
+   *  fails is skipped, the jar is recorded with the other providers.
+   */
+  private LoadedJar load(File file, String fingerprint)
+  {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    LoadedJar jar = new LoadedJar(file, fingerprint);
+    try
+    {
+      /* Scan the copy, the jar may be replaced again while it is loaded */
+      jar.shadow = copy(file);
+      PluginJar description = PluginJar.scan(jar.shadow);
+      /* The categories of the registry declared by this jar */
+      Map<String, Class<?>> categories = new LinkedHashMap<String, Class<?>>();
+      for (Iterator<Class<?>> it = registry.getCategories(); it.hasNext();)
+      {
+        Class<?> category = it.next();
+        if (description.getServices().containsKey(category.getName()))
+        {
+          categories.put(category.getName(), category);
+        }
+      }
+      if (categories.isEmpty())
+      {
+        deleteShadow(jar);
+        return jar;
+      }
+      jar.loader = new URLClassLoader(new URL[] { jar.shadow.toURI().toURL() }, parent);
+
+      /* One instance per provider class, registered in each category it is declared for */
+      Map<String, Object> instances = new HashMap<String, Object>();
+      for (Entry<String, Class<?>> e : categories.entrySet())
+      {
+        Class<?> category = e.getValue();
+        List<String> classNames = description.getProviderClassNames(e.getKey());
+        for (int i = 0; i < classNames.size(); i++)
+        {
+          Object provider = instances.get(classNames.get(i));
+          if (provider == null)
+          {
+            provider = ServiceProviderUtilities.instantiate(category, classNames.get(i),
+                jar.loader);
+          }
+          if ((provider == null) || (category.isInstance(provider) == false))
+          {
+            continue;
+          }
+          instances.put(classNames.get(i), provider);
+          try
+          {
+            registry.registerServiceProvider(provider, category);
+          } catch (RuntimeException ex)
+          {
+            logger.log(Level.WARNING, "Cannot register " + provider.getClass().getName()
+                + " plugin from " + file, ex);
+            continue;
+          }
+          jar.registrations.add(new Object[] { provider, category });
+          logger.info("Loaded " + provider.getClass().getName() + " plugin from " + file + ".");
+        }
+      }
+    } catch (MalformedURLException e)
+    {
+      logger.log(Level.WARNING, "Invalid plugin location " + file, e);
+      deleteShadow(jar);
+    } catch (IOException e)
+    {
+      logger.log(Level.WARNING, "Cannot load plugin " + file, e);
+      deleteShadow(jar);
+    } catch (RuntimeException e)
+    {
+      /* Keeps the providers registered so far, so they are deregistered with the jar */
+      logger.log(Level.WARNING, "Cannot load plugin " + file, e);
+      if (jar.registrations.isEmpty())
+      {
+        deleteShadow(jar);
+      }
+    }
+    return jar;
+  }
+
+  /** Deregisters the providers of a jar and releases its class loader. */
+  private void unload(LoadedJar jar)
+  {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    for (int i = jar.registrations.size() - 1; i >= 0; i--)
+    {
+      Object[] registration = jar.registrations.get(i);
+      registry.deregisterServiceProvider(registration[0], (Class<?>) registration[1]);
+    }
+    if (jar.registrations.isEmpty() == false)
+    {
+      logger.info("Unloaded plugins of " + jar.file + ".");
+    }
+    jar.registrations.clear();
+    deleteShadow(jar);
+  }
+
+  /** Releases the class loader of a jar and deletes its private copy. A
+   *  copy still open is deleted on a later poll.
+   */
+  private void deleteShadow(LoadedJar jar)
+  {
+    /* Class loaders are only closeable from Java 7 on, otherwise the loader goes
+       away with its classes */
+    if (jar.loader instanceof Closeable)
+    {
+      try
+      {
+        ((Closeable) jar.loader).close();
+      } catch (IOException e)
+      {
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.FINE,
+            "Cannot close class loader of " + jar.file, e);
+      }
+    }
+    jar.loader = null;
+    if ((jar.shadow != null) && (jar.shadow.delete() == false) && jar.shadow.exists())
+    {
+      staleShadows.add(jar.shadow);
+    }
+    jar.shadow = null;
+  }
+
+  /** Tries again to delete the private copies of unloaded jars. */
+  private void deleteStaleShadows()
+  {
+    for (Iterator<File> it = staleShadows.iterator(); it.hasNext();)
+    {
+      File shadow = it.next();
+      if (shadow.delete() || (shadow.exists() == false))
+      {
+        it.remove();
+      }
+    }
+  }
+
+  /** Copies a jar to the shadow directory, so that the original file is
+   *  never kept open.
+   */
+  private File copy(File file) throws IOException
+  {
+    if ((shadowDirectory.exists() == false) && (shadowDirectory.mkdirs() == false))
+    {
+      throw new IOException("Cannot create directory " + shadowDirectory);
+    }
+    File shadow = File.createTempFile("plugin", ".jar", shadowDirectory);
+    boolean copied = false;
+    try
+    {
+      InputStream in = new FileInputStream(file);
+      try
+      {
+        OutputStream out = new FileOutputStream(shadow);
+        try
+        {
+          byte[] buffer = new byte[65536];
+          int count;
+          while ((count = in.read(buffer)) > 0)
+          {
+            out.write(buffer, 0, count);
+          }
+        } finally
+        {
+          out.close();
+        }
+      } finally
+      {
+        in.close();
+      }
+      copied = true;
+    } finally
+    {
+      if (copied == false)
+      {
+        shadow.delete();
+      }
+    }
+    return shadow;
+  }
+
+  /** A plugin jar loaded by the watcher. */
+  private static final class LoadedJar
+  {
+    /** The jar file. */
+    final File file;
+    /** The fingerprint of the jar file when it was loaded. */
+    final String fingerprint;
+    /** The private copy the classes are loaded from, or null. */
+    File shadow;
+    /** The class loader of the jar, or null. */
+    ClassLoader loader;
+    /** The provider and category of each registration made for this jar. */
+    final List<Object[]> registrations = new ArrayList<Object[]>();
+
+    LoadedJar(File file, String fingerprint)
+    {
+      this.file = file;
+      this.fingerprint = fingerprint;
+    }
+  }
+}
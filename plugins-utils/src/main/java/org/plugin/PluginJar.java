@@ -0,0 +1,246 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/** Describes a plugin jar file as found during service provider discovery:
+ *  its fingerprint (size, last modification time and content hash) and the
+ *  provider class names it declares in its <code>META-INF/services</code>
+ *  directory, for each service interface.
+ *
+ *  Instances are immutable.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class PluginJar
+{
+  /** The directory of the service declarations within a jar. */
+  static final String SERVICES_DIRECTORY = "META-INF/services/";
+
+  /** The jar file. */
+  private final File file;
+  /** The size of the jar file in bytes. */
+  private final long size;
+  /** The last modification time of the jar file. */
+  private final long lastModified;
+  /** The SHA-1 hash of the content of the jar file, in hexadecimal. */
+  private final String hash;
+  /** The provider class names declared for each service interface name. */
+  private final Map<String, List<String>> services;
+
+  PluginJar(File file, long size, long lastModified, String hash,
+      Map<String, List<String>> services)
+  {
+    this.file = file;
+    this.size = size;
+    this.lastModified = lastModified;
+    this.hash = hash;
+    this.services = Collections.unmodifiableMap(services);
+  }
+
+  /** Scans the specified jar file, computing its fingerprint and reading
+   *  all of its service declarations.
+   *
+   * @param file The jar file to scan.
+   * @return The description of this jar file.
+   * @throws IOException If the jar file cannot be read.
+   */
+  public static PluginJar scan(File file) throws IOException
+  {
+    long size = file.length();
+    long lastModified = file.lastModified();
+    return scan(file, size, lastModified, computeHash(file));
+  }
+
+  /** Scans the service declarations of the specified jar file,
+   *  with an already known fingerprint.
+   */
+  static PluginJar scan(File file, long size, long lastModified, String hash) throws IOException
+  {
+    Map<String, List<String>> services = new LinkedHashMap<String, List<String>>();
+    JarFile jar = new JarFile(file);
+    try
+    {
+      Enumeration<JarEntry> entries = jar.entries();
+      while (entries.hasMoreElements())
+      {
+        JarEntry entry = entries.nextElement();
+        String name = entry.getName();
+        if (entry.isDirectory() || (name.startsWith(SERVICES_DIRECTORY) == false)
+            || (name.length() == SERVICES_DIRECTORY.length()))
+        {
+          continue;
+        }
+        InputStream in = jar.getInputStream(entry);
+        try
+        {
+          List<String> classNames = parseServiceDeclaration(in);
+          if (classNames.isEmpty() == false)
+          {
+            services.put(name.substring(SERVICES_DIRECTORY.length()), classNames);
+          }
+        } finally
+        {
+          in.close();
+        }
+      }
+    } finally
+    {
+      jar.close();
+    }
+    return new PluginJar(file, size, lastModified, hash, services);
+  }
+
+  /** Parses a service declaration file as defined by {@link java.util.ServiceLoader}:
+   *  one provider class name per line, with comments starting with the
+   *  number sign (#).
+   *
+   * @param in The content of the declaration file, in UTF-8.
+   * @return The provider class names, in declaration order without duplicates.
+   * @throws IOException If the declaration cannot be read.
+   */
+  static List<String> parseServiceDeclaration(InputStream in) throws IOException
+  {
+    List<String> classNames = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    String s;
+    while ((s = reader.readLine()) != null)
+    {
+      int comment = s.indexOf('#');
+      if (comment >= 0)
+      {
+        s = s.substring(0, comment);
+      }
+      s = s.trim();
+      if ((s.length() > 0) && (classNames.contains(s) == false))
+      {
+        classNames.add(s);
+      }
+    }
+    return classNames;
+  }
+
+  /** Computes the SHA-1 hash of the content of a file.
+   *
+   * @param file The file.
+   * @return The hash in hexadecimal.
+   * @throws IOException If the file cannot be read.
+   */
+  static String computeHash(File file) throws IOException
+  {
+    MessageDigest digest;
+    try
+    {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e)
+    {
+      throw new IOException("SHA-1 is not supported: " + e.getMessage());
+    }
+    InputStream in = new FileInputStream(file);
+    try
+    {
+      byte[] buffer = new byte[65536];
+      int count;
+      while ((count = in.read(buffer)) > 0)
+      {
+        digest.update(buffer, 0, count);
+      }
+    } finally
+    {
+      in.close();
+    }
+    byte[] value = digest.digest();
+    StringBuffer hex = new StringBuffer(value.length * 2);
+    for (int i = 0; i < value.length; i++)
+    {
+      hex.append(Character.forDigit((value[i] >> 4) & 0x0F, 16));
+      hex.append(Character.forDigit(value[i] & 0x0F, 16));
+    }
+    return hex.toString();
+  }
+
+  /** Checks if the jar file still has the size and modification
+   *  time recorded in this description.
+   *
+   * @return true if the jar file looks unchanged.
+   */
+  public boolean isUnchanged()
+  {
+    return (file.length() == size) && (file.lastModified() == lastModified);
+  }
+
+  /** Returns the jar file. */
+  public File getFile()
+  {
+    return file;
+  }
+
+  /** Returns the size of the jar file in bytes. */
+  public long getSize()
+  {
+    return size;
+  }
+
+  /** Returns the last modification time of the jar file. */
+  public long getLastModified()
+  {
+    return lastModified;
+  }
+
+  /** Returns the SHA-1 hash of the content of the jar file, in hexadecimal. */
+  public String getHash()
+  {
+    return hash;
+  }
+
+  /** Returns the provider class names declared for each service interface name. */
+  public Map<String, List<String>> getServices()
+  {
+    return services;
+  }
+
+  /** Returns the provider class names declared in this jar for the
+   *  specified service interface.
+   *
+   * @param service The service interface name.
+   * @return The provider class names, or an empty list if there are none.
+   */
+  public List<String> getProviderClassNames(String service)
+  {
+    List<String> classNames = services.get(service);
+    if (classNames == null)
+    {
+      return Collections.emptyList();
+    }
+    return classNames;
+  }
+}
@@ -0,0 +1,268 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.plugin.spi.ServiceConfiguration;
+
+/** Validator of the values of a {@link ServiceConfiguration} property,
+ *  compiled once from the datatype returned by
+ *  {@link ServiceConfiguration#getPropertyDatatype(String)}.
+ *
+ *  A validator accepts and converts the same values as
+ *  {@link ServiceProviderUtilities#validateValue(Object, Object)}, but the
+ *  datatype is only inspected when the validator is compiled: choices are
+ *  kept in hashed sets, and the choices of an integer choice property are
+ *  returned as the same Integer instances, without parsing the common
+ *  string forms again.
+ *
+ *  A null value is accepted by every validator and returned as is, so that
+ *  a property can be unset.
+ *
+ *  Validators are cached per provider class and property name, so the
+ *  datatype of a property must be the same for all the instances of a
+ *  provider class. The cache does not prevent provider classes from being
+ *  unloaded.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public abstract class PropertyValidator
+{
+  /** The validators of each provider class, by property name. Guarded by itself. */
+  private static final Map<Class<?>, Map<String, PropertyValidator>> validators = new WeakHashMap<Class<?>, Map<String, PropertyValidator>>();
+
+  /** Validator accepting any value, for datatypes without constraints. */
+  private static final PropertyValidator ANY = new PropertyValidator()
+  {
+    @Override
+    public Object validate(Object value)
+    {
+      return value;
+    }
+  };
+
+  /** Validates a value and converts it to the datatype of the property if
+   *  necessary.
+   *
+   * @param value The value, or null to unset the property.
+   * @return The value converted to the datatype of the property, or null.
+   * @throws IllegalArgumentException If the value is not of the correct
+   *   format or is not valid.
+   */
+  public abstract Object validate(Object value) throws IllegalArgumentException;
+
+  /** Returns the validator of a property of a provider, compiling it on the
+   *  first call for the class of the provider.
+   *
+   * @param provider The provider.
+   * @param name The property name.
+   * @return The validator.
+   * @throws IllegalArgumentException If the property name is not recognized
+   *   by the provider.
+   */
+  public static PropertyValidator getValidator(ServiceConfiguration provider, String name)
+      throws IllegalArgumentException
+  {
+    Map<String, PropertyValidator> properties;
+    synchronized (validators)
+    {
+      properties = validators.get(provider.getClass());
+      if (properties == null)
+      {
+        properties = new ConcurrentHashMap<String, PropertyValidator>();
+        validators.put(provider.getClass(), properties);
+      }
+    }
+    PropertyValidator validator = properties.get(name);
+    if (validator == null)
+    {
+      /* Concurrent first calls may both compile the validator, with the same result */
+      validator = compile(provider.getPropertyDatatype(name));
+      properties.put(name, validator);
+    }
+    return validator;
+  }
+
+  /** Compiles the validator of a datatype.
+   *
+   * @param dataType The datatype, as returned by
+   *   {@link ServiceConfiguration#getPropertyDatatype(String)}.
+   * @return The validator.
+   */
+  public static PropertyValidator compile(Object dataType)
+  {
+    if (dataType instanceof Integer[])
+    {
+      return new IntegerChoiceValidator((Integer[]) dataType);
+    }
+    if (dataType instanceof Integer)
+    {
+      return new IntegerValidator();
+    }
+    if (dataType instanceof String[])
+    {
+      return new StringChoiceValidator((String[]) dataType);
+    }
+    if (dataType instanceof String)
+    {
+      return new TypeValidator(String.class, "value must of type String");
+    }
+    if (dataType instanceof Boolean)
+    {
+      return new TypeValidator(Boolean.class, "value must of type Boolean");
+    }
+    if (dataType instanceof URI)
+    {
+      return new TypeValidator(URI.class, "value must of type URI");
+    }
+    if (dataType instanceof URL)
+    {
+      return new TypeValidator(URL.class, "value must of type URL");
+    }
+    return ANY;
+  }
+
+  /** Validator of a choice of integers. */
+  private static final class IntegerChoiceValidator extends PropertyValidator
+  {
+    /** The choices. */
+    private final Set<Integer> choices = new HashSet<Integer>();
+    /** The choices, by decimal string form. */
+    private final Map<String, Integer> choicesByText = new HashMap<String, Integer>();
+
+    IntegerChoiceValidator(Integer[] values)
+    {
+      for (int i = 0; i < values.length; i++)
+      {
+        choices.add(values[i]);
+        if (values[i] != null)
+        {
+          choicesByText.put(values[i].toString(), values[i]);
+        }
+      }
+    }
+
+    @Override
+    public Object validate(Object value)
+    {
+      if (value == null)
+      {
+        return null;
+      }
+      if (value instanceof String)
+      {
+        Integer choice = choicesByText.get(value);
+        if (choice != null)
+        {
+          return choice;
+        }
+        value = Integer.valueOf((String) value);
+      } else if ((value instanceof Integer) == false)
+      {
+        throw new IllegalArgumentException("value must of type Integer or String");
+      }
+      if (choices.contains(value) == false)
+      {
+        throw new IllegalArgumentException("Invalid value of integer");
+      }
+      return value;
+    }
+  }
+
+  /** Validator of an integer. */
+  private static final class IntegerValidator extends PropertyValidator
+  {
+    @Override
+    public Object validate(Object value)
+    {
+      if ((value == null) || (value instanceof Integer))
+      {
+        return value;
+      }
+      if (value instanceof String)
+      {
+        return Integer.valueOf((String) value);
+      }
+      throw new IllegalArgumentException("value must of type Integer or String");
+    }
+  }
+
+  /** Validator of a choice of strings. */
+  private static final class StringChoiceValidator extends PropertyValidator
+  {
+    /** The choices. */
+    private final Set<String> choices = new HashSet<String>();
+
+    StringChoiceValidator(String[] values)
+    {
+      for (int i = 0; i < values.length; i++)
+      {
+        choices.add(values[i]);
+      }
+    }
+
+    @Override
+    public Object validate(Object value)
+    {
+      if (value == null)
+      {
+        return null;
+      }
+      if ((value instanceof String) == false)
+      {
+        throw new IllegalArgumentException("value must of type String");
+      }
+      if (choices.contains(value) == false)
+      {
+        throw new IllegalArgumentException("Invalid value of String.");
+      }
+      return value;
+    }
+  }
+
+  /** Validator of a value type. */
+  private static final class TypeValidator extends PropertyValidator
+  {
+    /** The accepted type. */
+    private final Class<?> type;
+    /** The error message. */
+    private final String message;
+
+    TypeValidator(Class<?> type, String message)
+    {
+      this.type = type;
+      this.message = message;
+    }
+
+    @Override
+    public Object validate(Object value)
+    {
+      if ((value != null) && (type.isInstance(value) == false))
+      {
+        throw new IllegalArgumentException(message);
+      }
+      return value;
+    }
+  }
+}
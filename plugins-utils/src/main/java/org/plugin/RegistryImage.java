@@ -0,0 +1,509 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.plugin.ServiceProviderUtilities.ServiceList;
+import org.plugin.spi.ServiceConfiguration;
+
+/** Binary image of the resolved state of a registry, used to restart
+ *  without discovering the providers, reading the service lists and
+ *  configuring the providers again.
+ *
+ *  The image contains, for each category, the class names of its providers
+ *  in list order with their activation state, and the values of the
+ *  properties of the providers implementing {@link ServiceConfiguration}
+ *  that were instantiated when the image was saved. Only property values
+ *  of the types String, Integer, Boolean, URI and URL are saved.
+ *
+ *  The image also records the path, size and SHA-1 hash of every plugin
+ *  jar. It is ignored when restoring if a plugin jar was added, removed or
+ *  modified since, even with the same size and modification time, or if
+ *  one of its categories is not a category of the registry, and the caller
+ *  then builds the registry normally. The hashes are only computed once
+ *  the paths and sizes match.
+ *
+ *  Restored providers are registered as {@link ServiceProviderDescriptor}
+ *  objects loaded by the shared plugin class loader, see
+ *  {@link ServiceProviderUtilities#DISCOVERY_SHARED_LOADER}. They are only
+ *  instantiated, through their public no-argument constructor, when first
+ *  returned by a lookup, and their saved property values are then validated
+ *  and set with {@link ServiceProviderUtilities#setProperty} before the
+ *  instance is returned.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class RegistryImage
+{
+  /** The image file signature. */
+  private static final int MAGIC = 0x504C5249;
+  /** The image format version. */
+  private static final int FORMAT_VERSION = 2;
+
+  private static final int TYPE_STRING = 0;
+  private static final int TYPE_INTEGER = 1;
+  private static final int TYPE_BOOLEAN = 2;
+  private static final int TYPE_URI = 3;
+  private static final int TYPE_URL = 4;
+
+  private RegistryImage()
+  {
+  }
+
+  /** Saves the state of a service list and of the registry of its enabled
+   *  providers to an image. The image is written to a temporary file which
+   *  is then renamed over the image file.
+   *
+   * @param imageFile The image file.
+   * @param pluginsDirectory The root plugins directory whose jars the
+   *   providers are loaded from.
+   * @param list The service list of all available providers, or null if
+   *   all the providers of the registry are available.
+   * @param registry The registry of the enabled providers.
+   * @throws IOException If the image cannot be written.
+   */
+  public static void save(File imageFile, File pluginsDirectory, ServiceList list,
+      ServiceRegistry registry) throws IOException
+  {
+    ServiceList source = (list == null) ? registry.categories : list;
+    File temp = new File(imageFile.getPath() + ".tmp");
+    FileOutputStream file = new FileOutputStream(temp);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+    try
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+
+      File[] jars = listJars(pluginsDirectory);
+      out.writeInt(jars.length);
+      for (int i = 0; i < jars.length; i++)
+      {
+        out.writeUTF(jars[i].getAbsolutePath());
+        out.writeLong(jars[i].length());
+        out.writeUTF(PluginJar.computeHash(jars[i]));
+      }
+
+      List<Class<?>> categories = new ArrayList<Class<?>>();
+      for (Iterator<Class<?>> it = source.list(); it.hasNext();)
+      {
+        categories.add(it.next());
+      }
+      /* The properties of each configurable provider, saved once */
+      Map<String, Map<String, Object>> configured = new LinkedHashMap<String, Map<String, Object>>();
+      out.writeInt(categories.size());
+      for (int i = 0; i < categories.size(); i++)
+      {
+        Class<?> category = categories.get(i);
+        List<Object> providers = new ArrayList<Object>();
+        for (Iterator<?> it = source.getRegisteredProviders(category); it.hasNext();)
+        {
+          providers.add(it.next());
+        }
+        out.writeUTF(category.getName());
+        out.writeInt(providers.size());
+        for (int j = 0; j < providers.size(); j++)
+        {
+          Object provider = providers.get(j);
+          String pluginId = ServiceProviderUtilities.getPluginId(provider);
+          out.writeUTF(pluginId);
+          out.writeBoolean(registry.contains(provider, category));
+          if ((provider instanceof ServiceProviderDescriptor)
+              && ((ServiceProviderDescriptor) provider).isInstantiated())
+          {
+            provider = ((ServiceProviderDescriptor) provider).getInstance();
+          }
+          if (provider instanceof ConfiguredDescriptor)
+          {
+            /* Not instantiated yet, its restored properties are still pending */
+            Map<String, Object> pending = ((ConfiguredDescriptor) provider).properties;
+            if (pending != null)
+            {
+              configured.put(pluginId, pending);
+            }
+          } else if (provider instanceof ServiceConfiguration)
+          {
+            configured.put(pluginId, getProperties((ServiceConfiguration) provider));
+          }
+        }
+      }
+
+      out.writeInt(configured.size());
+      for (Entry<String, Map<String, Object>> e : configured.entrySet())
+      {
+        out.writeUTF(e.getKey());
+        writeProperties(out, e.getValue());
+      }
+      /* Forced to the storage device before it replaces the image */
+      out.flush();
+      file.getFD().sync();
+    } finally
+    {
+      out.close();
+    }
+    if (temp.renameTo(imageFile) == false)
+    {
+      imageFile.delete();
+      if (temp.renameTo(imageFile) == false)
+      {
+        temp.delete();
+        throw new IOException("Cannot replace " + imageFile);
+      }
+    }
+  }
+
+  /** Restores a service list and the registry of its enabled providers from
+   *  an image, if the image is still valid. Nothing is restored if it is
+   *  not.
+   *
+   * @param imageFile The image file.
+   * @param pluginsDirectory The root plugins directory.
+   * @param list The service list receiving all available providers, or null
+   *   if only the registry should be restored.
+   * @param registry The registry receiving the enabled providers.
+   * @return true if the image was restored, false if it does not exist, is
+   *   unreadable, or is out of date, or if the providers cannot be
+   *   registered, for instance because the registry is frozen. Nothing is
+   *   then left in the list or the registry.
+   */
+  public static boolean restore(File imageFile, File pluginsDirectory, ServiceList list,
+      ServiceRegistry registry)
+  {
+    if (imageFile.exists() == false)
+    {
+      return false;
+    }
+    File[] jars = listJars(pluginsDirectory);
+    Map<String, Class<?>> categories = new HashMap<String, Class<?>>();
+    for (Iterator<Class<?>> it = registry.getCategories(); it.hasNext();)
+    {
+      Class<?> category = it.next();
+      categories.put(category.getName(), category);
+    }
+
+    String[] hashes = new String[jars.length];
+    List<Class<?>> imageCategories = new ArrayList<Class<?>>();
+    List<String[]> pluginIds = new ArrayList<String[]>();
+    List<boolean[]> enabled = new ArrayList<boolean[]>();
+    Map<String, Map<String, Object>> properties = new HashMap<String, Map<String, Object>>();
+    try
+    {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+          imageFile)));
+      try
+      {
+        if ((in.readInt() != MAGIC) || (in.readInt() != FORMAT_VERSION))
+        {
+          return false;
+        }
+        int count = in.readInt();
+        if (count != jars.length)
+        {
+          return false;
+        }
+        for (int i = 0; i < count; i++)
+        {
+          if ((in.readUTF().equals(jars[i].getAbsolutePath()) == false)
+              || (in.readLong() != jars[i].length()))
+          {
+            return false;
+          }
+          hashes[i] = in.readUTF();
+        }
+
+        count = in.readInt();
+        for (int i = 0; i < count; i++)
+        {
+          Class<?> category = categories.get(in.readUTF());
+          if ((category == null) || ((list != null) && (list.categories.containsKey(category) == false)))
+          {
+            return false;
+          }
+          imageCategories.add(category);
+          String[] ids = new String[in.readInt()];
+          boolean[] flags = new boolean[ids.length];
+          for (int j = 0; j < ids.length; j++)
+          {
+            ids[j] = in.readUTF();
+            flags[j] = in.readBoolean();
+          }
+          pluginIds.add(ids);
+          enabled.add(flags);
+        }
+
+        count = in.readInt();
+        for (int i = 0; i < count; i++)
+        {
+          String pluginId = in.readUTF();
+          properties.put(pluginId, readProperties(in));
+        }
+      } finally
+      {
+        in.close();
+      }
+    } catch (IOException e)
+    {
+      Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+          "Ignoring unreadable registry image " + imageFile, e);
+      return false;
+    } catch (RuntimeException e)
+    {
+      Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+          "Ignoring corrupted registry image " + imageFile, e);
+      return false;
+    }
+    /* Checked last, the jars are only read if everything else matches */
+    for (int i = 0; i < jars.length; i++)
+    {
+      try
+      {
+        if (PluginJar.computeHash(jars[i]).equals(hashes[i]) == false)
+        {
+          return false;
+        }
+      } catch (IOException e)
+      {
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+            "Cannot read plugin " + jars[i], e);
+        return false;
+      }
+    }
+
+    /* A provider of several categories is described once */
+    Map<String, List<String>> categoryNames = new HashMap<String, List<String>>();
+    for (int i = 0; i < imageCategories.size(); i++)
+    {
+      String[] ids = pluginIds.get(i);
+      for (int j = 0; j < ids.length; j++)
+      {
+        List<String> names = categoryNames.get(ids[j]);
+        if (names == null)
+        {
+          names = new ArrayList<String>();
+          categoryNames.put(ids[j], names);
+        }
+        names.add(imageCategories.get(i).getName());
+      }
+    }
+    ClassLoader loader = (jars.length == 0) ? ClassLoader.getSystemClassLoader()
+        : ServiceProviderUtilities.getPluginClassLoader(jars);
+    Map<String, ServiceProviderDescriptor> descriptors = new HashMap<String, ServiceProviderDescriptor>();
+    for (Entry<String, List<String>> e : categoryNames.entrySet())
+    {
+      List<String> names = e.getValue();
+      descriptors.put(e.getKey(), new ConfiguredDescriptor(e.getKey(), names
+          .toArray(new String[names.size()]), loader, properties.get(e.getKey())));
+    }
+
+    /* The additions made so far, undone if one of them fails */
+    List<Object[]> listed = new ArrayList<Object[]>();
+    List<Object[]> registered = new ArrayList<Object[]>();
+    try
+    {
+      for (int i = 0; i < imageCategories.size(); i++)
+      {
+        Class<?> category = imageCategories.get(i);
+        String[] ids = pluginIds.get(i);
+        boolean[] flags = enabled.get(i);
+        for (int j = 0; j < ids.length; j++)
+        {
+          ServiceProviderDescriptor descriptor = descriptors.get(ids[j]);
+          if ((list != null) && list.addProvider(descriptor, category))
+          {
+            listed.add(new Object[] { descriptor, category });
+          }
+          if (flags[j] && registry.registerServiceProvider(descriptor, category))
+          {
+            registered.add(new Object[] { descriptor, category });
+          }
+        }
+      }
+    } catch (RuntimeException e)
+    {
+      Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+          "Cannot restore registry image " + imageFile, e);
+      for (int i = registered.size() - 1; i >= 0; i--)
+      {
+        registry.deregisterServiceProvider(registered.get(i)[0], (Class<?>) registered.get(i)[1]);
+      }
+      for (int i = listed.size() - 1; i >= 0; i--)
+      {
+        list.deleteProvider(listed.get(i)[0], (Class<?>) listed.get(i)[1]);
+      }
+      return false;
+    }
+    return true;
+  }
+
+  /** Returns the plugin jars of a plugins directory, an empty array if
+   *  there are none. */
+  private static File[] listJars(File pluginsDirectory)
+  {
+    File[] jars = ServiceProviderUtilities.listPluginJars(pluginsDirectory);
+    return (jars == null) ? new File[0] : jars;
+  }
+
+  /** Returns the property values of a provider, by name. */
+  private static Map<String, Object> getProperties(ServiceConfiguration provider)
+  {
+    String[] names = provider.getParameterNames();
+    Map<String, Object> properties = new LinkedHashMap<String, Object>();
+    for (int i = 0; i < names.length; i++)
+    {
+      properties.put(names[i], provider.getProperty(names[i]));
+    }
+    return properties;
+  }
+
+  /** Writes the property values of a provider that can be saved. */
+  private static void writeProperties(DataOutputStream out, Map<String, Object> properties)
+      throws IOException
+  {
+    List<String> saved = new ArrayList<String>();
+    List<Object> values = new ArrayList<Object>();
+    for (Entry<String, Object> e : properties.entrySet())
+    {
+      Object value = e.getValue();
+      if ((value instanceof String) || (value instanceof Integer) || (value instanceof Boolean)
+          || (value instanceof URI) || (value instanceof URL))
+      {
+        saved.add(e.getKey());
+        values.add(value);
+      }
+    }
+    out.writeInt(saved.size());
+    for (int i = 0; i < saved.size(); i++)
+    {
+      out.writeUTF(saved.get(i));
+      Object value = values.get(i);
+      if (value instanceof String)
+      {
+        out.writeByte(TYPE_STRING);
+        out.writeUTF((String) value);
+      } else if (value instanceof Integer)
+      {
+        out.writeByte(TYPE_INTEGER);
+        out.writeInt(((Integer) value).intValue());
+      } else if (value instanceof Boolean)
+      {
+        out.writeByte(TYPE_BOOLEAN);
+        out.writeBoolean(((Boolean) value).booleanValue());
+      } else if (value instanceof URI)
+      {
+        out.writeByte(TYPE_URI);
+        out.writeUTF(value.toString());
+      } else
+      {
+        out.writeByte(TYPE_URL);
+        out.writeUTF(value.toString());
+      }
+    }
+  }
+
+  /** Reads the property values of a provider. */
+  private static Map<String, Object> readProperties(DataInputStream in) throws IOException
+  {
+    int count = in.readInt();
+    Map<String, Object> values = new LinkedHashMap<String, Object>();
+    for (int i = 0; i < count; i++)
+    {
+      String name = in.readUTF();
+      int type = in.readByte();
+      switch (type)
+      {
+        case TYPE_STRING:
+          values.put(name, in.readUTF());
+          break;
+        case TYPE_INTEGER:
+          values.put(name, Integer.valueOf(in.readInt()));
+          break;
+        case TYPE_BOOLEAN:
+          values.put(name, Boolean.valueOf(in.readBoolean()));
+          break;
+        case TYPE_URI:
+          try
+          {
+            values.put(name, new URI(in.readUTF()));
+          } catch (URISyntaxException e)
+          {
+            throw new IOException("Invalid URI value of " + name);
+          }
+          break;
+        case TYPE_URL:
+          values.put(name, new URL(in.readUTF()));
+          break;
+        default:
+          throw new IOException("Invalid value type " + type + " of " + name);
+      }
+    }
+    return values;
+  }
+
+  /** A restored provider, whose saved property values are set when it is
+   *  instantiated. */
+  private static final class ConfiguredDescriptor extends ServiceProviderDescriptor
+  {
+    /** The saved property values, or null. */
+    private final Map<String, Object> properties;
+
+    ConfiguredDescriptor(String className, String[] categoryNames, ClassLoader loader,
+        Map<String, Object> properties)
+    {
+      super(className, null, categoryNames, loader);
+      this.properties = properties;
+    }
+
+    @Override
+    protected void initialize(Object provider)
+    {
+      if ((properties == null) || ((provider instanceof ServiceConfiguration) == false))
+      {
+        return;
+      }
+      ServiceConfiguration configuration = (ServiceConfiguration) provider;
+      for (Entry<String, Object> e : properties.entrySet())
+      {
+        try
+        {
+          ServiceProviderUtilities.setProperty(configuration, e.getKey(), e.getValue());
+        } catch (IllegalArgumentException ex)
+        {
+          Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+              "Ignoring saved property " + e.getKey() + " of " + getClassName(), ex);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,309 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Persistent index of the service providers declared by plugin jars,
+ *  used to avoid opening every plugin jar on each start.
+ *
+ *  For each jar the index records its size, last modification time and
+ *  content hash, along with the provider class names it declares. A jar
+ *  whose size and modification time are unchanged is served straight from
+ *  the index. A jar whose size or modification time changed is hashed, and
+ *  only rescanned if its content actually changed.
+ *
+ *  The index is stored as a UTF-8 text file with one section per jar:
+ *  <ul>
+ *   <li>a <code>jar=</code> line with the absolute path of the jar</li>
+ *   <li><code>size=</code>, <code>modified=</code> and <code>sha1=</code>
+ *     lines with its fingerprint</li>
+ *   <li>one line per service interface, made of the service interface name,
+ *     the key-value separator "=" and the comma separated provider class
+ *     names</li>
+ *  </ul>
+ *  followed by an <code>end=</code> line with the number of jars. Comment
+ *  lines are denoted by the number sign (#). The index is written to a
+ *  temporary file which then replaces it, and an index that cannot be read
+ *  or does not end with the end line, such as one truncated by a crash, is
+ *  ignored: all jars are then scanned again.
+ *
+ *  This class is not thread safe.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class ServiceDiscoveryIndex
+{
+  private static final String KEY_JAR = "jar";
+  private static final String KEY_SIZE = "size";
+  private static final String KEY_MODIFIED = "modified";
+  private static final String KEY_HASH = "sha1";
+  private static final String KEY_END = "end";
+
+  /** The index file. */
+  private final File indexFile;
+  /** The indexed jars, keyed by absolute path. */
+  private final Map<String, PluginJar> jars = new LinkedHashMap<String, PluginJar>();
+  /** The jars resolved since the index was loaded, keyed by absolute path. */
+  private final Map<String, PluginJar> resolved = new LinkedHashMap<String, PluginJar>();
+  /** True if the index must be saved. */
+  private boolean modified;
+
+  /** Creates an index stored in the specified file, loading it if
+   *  it exists.
+   *
+   * @param indexFile The index file.
+   */
+  public ServiceDiscoveryIndex(File indexFile)
+  {
+    this.indexFile = indexFile;
+    if (indexFile.exists())
+    {
+      try
+      {
+        load();
+      } catch (IOException e)
+      {
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+            "Ignoring unreadable discovery index " + indexFile, e);
+        jars.clear();
+      } catch (RuntimeException e)
+      {
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+            "Ignoring corrupted discovery index " + indexFile, e);
+        jars.clear();
+      }
+    }
+  }
+
+  /** Returns the description of the specified jar, from the index if
+   *  the jar is unchanged, otherwise by scanning it.
+   *
+   * @param file The jar file.
+   * @return The description of the jar.
+   * @throws IOException If the jar file must be scanned and cannot be read.
+   */
+  public PluginJar resolve(File file) throws IOException
+  {
+    String path = file.getAbsolutePath();
+    PluginJar jar = jars.get(path);
+    if ((jar == null) || (jar.isUnchanged() == false))
+    {
+      long size = file.length();
+      long lastModified = file.lastModified();
+      String hash = PluginJar.computeHash(file);
+      if ((jar != null) && jar.getHash().equals(hash))
+      {
+        /* Only touched, the declarations are the same */
+        jar = new PluginJar(jar.getFile(), size, lastModified, hash, jar.getServices());
+      } else
+      {
+        jar = PluginJar.scan(file, size, lastModified, hash);
+      }
+      jars.put(path, jar);
+      modified = true;
+    }
+    resolved.put(path, jar);
+    return jar;
+  }
+
+  /** Checks if the index must be saved, because jars were scanned since
+   *  it was loaded.
+   *
+   * @return true if the index was modified.
+   */
+  public boolean isModified()
+  {
+    return modified;
+  }
+
+  /** Saves the index if it was modified. Only the jars resolved since the
+   *  index was loaded are kept, so that removed jars are dropped from it.
+   *
+   * @throws IOException If the index cannot be written.
+   */
+  public void save() throws IOException
+  {
+    if ((modified == false) && (resolved.size() == jars.size()))
+    {
+      return;
+    }
+    File parent = indexFile.getAbsoluteFile().getParentFile();
+    if ((parent != null) && (parent.exists() == false))
+    {
+      parent.mkdirs();
+    }
+    File temp = new File(indexFile.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(temp);
+    try
+    {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+      writer.write("# Plugin discovery index\n");
+      for (Iterator<PluginJar> it = resolved.values().iterator(); it.hasNext();)
+      {
+        PluginJar jar = it.next();
+        writer.write(KEY_JAR + "=" + jar.getFile().getAbsolutePath() + "\n");
+        writer.write(KEY_SIZE + "=" + jar.getSize() + "\n");
+        writer.write(KEY_MODIFIED + "=" + jar.getLastModified() + "\n");
+        writer.write(KEY_HASH + "=" + jar.getHash() + "\n");
+        for (Entry<String, List<String>> e : jar.getServices().entrySet())
+        {
+          StringBuffer line = new StringBuffer(e.getKey()).append('=');
+          List<String> classNames = e.getValue();
+          for (int i = 0; i < classNames.size(); i++)
+          {
+            if (i > 0)
+            {
+              line.append(',');
+            }
+            line.append(classNames.get(i));
+          }
+          writer.write(line.append('\n').toString());
+        }
+      }
+      writer.write(KEY_END + "=" + resolved.size() + "\n");
+      writer.flush();
+      out.getFD().sync();
+    } finally
+    {
+      out.close();
+    }
+    if (temp.renameTo(indexFile) == false)
+    {
+      /* The target cannot be replaced on some platforms */
+      indexFile.delete();
+      if (temp.renameTo(indexFile) == false)
+      {
+        temp.delete();
+        throw new IOException("Cannot replace " + indexFile);
+      }
+    }
+    jars.clear();
+    jars.putAll(resolved);
+    modified = false;
+  }
+
+  /** Loads the index file. */
+  private void load() throws IOException
+  {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(indexFile), "UTF-8"));
+    try
+    {
+      String path = null;
+      long size = -1;
+      long lastModified = -1;
+      String hash = null;
+      Map<String, List<String>> services = null;
+      boolean ended = false;
+      String s;
+      while ((s = reader.readLine()) != null)
+      {
+        if ((s.length() == 0) || s.startsWith("#"))
+        {
+          continue;
+        }
+        if (ended)
+        {
+          throw new IOException("Discovery index entry after its end: " + s);
+        }
+        int separator = s.indexOf('=');
+        if (separator <= 0)
+        {
+          throw new IOException("Malformed discovery index line: " + s);
+        }
+        String key = s.substring(0, separator);
+        String value = s.substring(separator + 1);
+        if (key.equals(KEY_END))
+        {
+          addJar(path, size, lastModified, hash, services);
+          if (Integer.parseInt(value) != jars.size())
+          {
+            throw new IOException("Discovery index with " + jars.size()
+                + " complete jar entries instead of " + value);
+          }
+          ended = true;
+        } else if (key.equals(KEY_JAR))
+        {
+          addJar(path, size, lastModified, hash, services);
+          path = value;
+          size = -1;
+          lastModified = -1;
+          hash = null;
+          services = new LinkedHashMap<String, List<String>>();
+        } else if (services == null)
+        {
+          throw new IOException("Discovery index entry without jar: " + s);
+        } else if (key.equals(KEY_SIZE))
+        {
+          size = Long.parseLong(value);
+        } else if (key.equals(KEY_MODIFIED))
+        {
+          lastModified = Long.parseLong(value);
+        } else if (key.equals(KEY_HASH))
+        {
+          hash = value;
+        } else
+        {
+          List<String> classNames = new ArrayList<String>();
+          String[] names = value.split(",");
+          for (int i = 0; i < names.length; i++)
+          {
+            if (names[i].length() > 0)
+            {
+              classNames.add(names[i]);
+            }
+          }
+          services.put(key, classNames);
+        }
+      }
+      if (ended == false)
+      {
+        throw new IOException("Truncated discovery index");
+      }
+    } finally
+    {
+      reader.close();
+    }
+  }
+
+  /** Adds a jar read from the index file, if it is complete. */
+  private void addJar(String path, long size, long lastModified, String hash,
+      Map<String, List<String>> services)
+  {
+    if ((path == null) || (size < 0) || (lastModified < 0) || (hash == null))
+    {
+      return;
+    }
+    jars.put(path, new PluginJar(new File(path), size, lastModified, hash, services));
+  }
+}
@@ -0,0 +1,753 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/** Incremental persistence of the service list of a category, as read by
+ *  {@link ServiceProviderUtilities#loadServiceList}.
+ *
+ *  The state of the list is kept in two files of the configuration
+ *  directory:
+ *  <ul>
+ *   <li>the snapshot, <code>&lt;category&gt;.properties</code>, in the format
+ *     written by {@link ServiceProviderUtilities#saveServiceList}</li>
+ *   <li>the journal, <code>&lt;category&gt;.journal</code>, to which each
+ *     change made since the snapshot is appended as a single record</li>
+ *  </ul>
+ *  The current state is the snapshot with the journal replayed over it.
+ *  Once the journal holds enough records it is compacted: the current
+ *  state is written to a temporary file which is then renamed over the
+ *  snapshot, and the journal is deleted.
+ *
+ *  Each journal record is a UTF-8 line made of the CRC-32 of the rest of
+ *  the line in hexadecimal, the sequence number of the record, the
+ *  operation and its arguments, separated by spaces. A record that was only
+ *  partly written, because of a crash, fails its check: it is ignored along
+ *  with anything after it, and is overwritten by the next record. The
+ *  snapshot records the sequence number of the last record it contains in a
+ *  <code>#sequence=</code> comment line, so that the records of a journal
+ *  that could not be deleted after a compaction, because of a crash, are
+ *  not replayed twice.
+ *
+ *  On file systems where a file cannot be renamed over an existing one,
+ *  the snapshot is deleted first, and the replacement is not atomic.
+ *
+ *  This class is thread safe. The instances returned by
+ *  {@link #getInstance(File, Class)} are shared by all the users of the
+ *  files of a category in the application. Several instances, in this or
+ *  other processes, may still use the same files: each instance reads and
+ *  changes the files while holding an exclusive lock on a third file,
+ *  <code>&lt;category&gt;.lock</code>, which also counts the changes made
+ *  to the files. Before recording a change, an instance checks this count,
+ *  the length of the journal and the modification time and length of the
+ *  snapshot, and reads the files again if another instance modified them.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class ServiceListJournal
+{
+  /** The default number of journal records that triggers a compaction. */
+  public static final int DEFAULT_COMPACTION_THRESHOLD = 64;
+
+  private static final String OP_ENABLE = "enable";
+  private static final String OP_DISABLE = "disable";
+  private static final String OP_MOVE = "move";
+  /** The snapshot comment holding the sequence number of its last record. */
+  private static final String SEQUENCE_COMMENT = "#sequence=";
+
+  /** The snapshot file. */
+  private final File snapshotFile;
+  /** The journal file. */
+  private final File journalFile;
+  /** The file locked while the files are read or changed. */
+  private final File lockFile;
+  /** The lock of the lock file within this application, shared by the
+   *  instances using the same files, as a file lock is held by the whole
+   *  process. */
+  private final ReentrantLock fileLock;
+  /** The number of records that triggers a compaction. */
+  private final int compactionThreshold;
+  /** The plugin IDs, in list order. */
+  private final List<String> order = new ArrayList<String>();
+  /** The activation state of each plugin ID. */
+  private final Map<String, Boolean> enabled = new HashMap<String, Boolean>();
+  /** The number of valid records in the journal. */
+  private int records;
+  /** The sequence number of the last record applied. */
+  private long sequence;
+  /** The length of the valid part of the journal, in bytes. */
+  private long journalLength;
+  /** The modification time and length of the snapshot when it was last read or written. */
+  private String snapshotStamp;
+  /** The number of changes recorded in the lock file when the files were last read or written. */
+  private long generation;
+
+  /** The shared instances, by canonical snapshot file. */
+  private static final Map<File, ServiceListJournal> instances = new HashMap<File, ServiceListJournal>();
+  /** The locks of the lock files within this application, by canonical lock file. */
+  private static final Map<File, ReentrantLock> fileLocks = new HashMap<File, ReentrantLock>();
+
+  /** Returns the shared journaled service list of a category, with the
+   *  default compaction threshold. An instance that already exists reads
+   *  the files again, to see the changes made outside of this application.
+   *
+   * @param directory The configuration directory.
+   * @param category The category.
+   * @return The instance managing the files of the category.
+   * @throws IOException If the snapshot or the journal cannot be read.
+   */
+  public static ServiceListJournal getInstance(File directory, Class<?> category)
+      throws IOException
+  {
+    File key = getSnapshotFile(directory, category).getCanonicalFile();
+    ServiceListJournal journal;
+    synchronized (instances)
+    {
+      journal = instances.get(key);
+      if (journal == null)
+      {
+        journal = new ServiceListJournal(directory, category);
+        instances.put(key, journal);
+        return journal;
+      }
+    }
+    journal.reload();
+    return journal;
+  }
+
+  /** Opens the journaled service list of a category, with the default
+   *  compaction threshold.
+   *
+   * @param directory The configuration directory.
+   * @param category The category.
+   * @throws IOException If the snapshot or the journal cannot be read.
+   */
+  public ServiceListJournal(File directory, Class<?> category) throws IOException
+  {
+    this(directory, category, DEFAULT_COMPACTION_THRESHOLD);
+  }
+
+  /** Opens the journaled service list of a category.
+   *
+   * @param directory The configuration directory.
+   * @param category The category.
+   * @param compactionThreshold The number of journal records that triggers
+   *   a compaction.
+   * @throws IOException If the snapshot or the journal cannot be read.
+   */
+  public ServiceListJournal(File directory, Class<?> category, int compactionThreshold)
+      throws IOException
+  {
+    if (compactionThreshold <= 0)
+    {
+      throw new IllegalArgumentException("Invalid compaction threshold: " + compactionThreshold);
+    }
+    this.snapshotFile = getSnapshotFile(directory, category);
+    this.journalFile = getJournalFile(directory, category);
+    this.lockFile = getLockFile(directory, category);
+    this.compactionThreshold = compactionThreshold;
+    File key = lockFile.getCanonicalFile();
+    synchronized (fileLocks)
+    {
+      ReentrantLock lock = fileLocks.get(key);
+      if (lock == null)
+      {
+        lock = new ReentrantLock();
+        fileLocks.put(key, lock);
+      }
+      this.fileLock = lock;
+    }
+    load();
+  }
+
+  /** Reads the snapshot and replays the journal over it, under the file lock. */
+  private void load() throws IOException
+  {
+    FileLock lock = lockFiles();
+    try
+    {
+      read(lock.channel());
+    } finally
+    {
+      unlockFiles(lock);
+    }
+  }
+
+  /** Takes the exclusive lock of the files, waiting for the other instances
+   *  of this and other processes to release it.
+   *
+   * @return The lock, to be released with {@link #unlockFiles(FileLock)}.
+   */
+  private FileLock lockFiles() throws IOException
+  {
+    fileLock.lock();
+    boolean locked = false;
+    try
+    {
+      RandomAccessFile file = new RandomAccessFile(lockFile, "rw");
+      try
+      {
+        FileLock lock = file.getChannel().lock();
+        locked = true;
+        return lock;
+      } finally
+      {
+        if (locked == false)
+        {
+          file.close();
+        }
+      }
+    } finally
+    {
+      if (locked == false)
+      {
+        fileLock.unlock();
+      }
+    }
+  }
+
+  /** Releases the lock of the files. */
+  private void unlockFiles(FileLock lock) throws IOException
+  {
+    try
+    {
+      /* Also releases the file lock */
+      lock.channel().close();
+    } finally
+    {
+      fileLock.unlock();
+    }
+  }
+
+  /** Reads the number of changes recorded in the lock file. */
+  private static long readGeneration(FileChannel channel) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(8);
+    while (buffer.hasRemaining())
+    {
+      if (channel.read(buffer, buffer.position()) < 0)
+      {
+        return 0;
+      }
+    }
+    return buffer.getLong(0);
+  }
+
+  /** Counts a change of the files in the lock file. */
+  private void writeGeneration(FileChannel channel) throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(8);
+    buffer.putLong(0, generation + 1);
+    while (buffer.hasRemaining())
+    {
+      channel.write(buffer, buffer.position());
+    }
+    generation++;
+  }
+
+  /** Reads the snapshot and replays the journal over it, the lock being held. */
+  private void read(FileChannel channel) throws IOException
+  {
+    generation = readGeneration(channel);
+    long[] snapshotSequence = new long[1];
+    Map<String, Boolean> entries = readSnapshot(snapshotFile, snapshotSequence);
+    snapshotStamp = getStamp(snapshotFile);
+    order.clear();
+    order.addAll(entries.keySet());
+    enabled.clear();
+    enabled.putAll(entries);
+    sequence = snapshotSequence[0];
+    records = 0;
+    journalLength = 0;
+    replay();
+  }
+
+  /** Reads the snapshot and the journal again, discarding the current state.
+   *
+   * @throws IOException If the snapshot or the journal cannot be read.
+   */
+  public synchronized void reload() throws IOException
+  {
+    load();
+  }
+
+  /** Reads the files again if they were modified since this instance last
+   *  read or wrote them, so that a change is never recorded over the state
+   *  of another instance. A journal that was deleted by the compaction of
+   *  another instance would otherwise be padded up to the expected length,
+   *  hiding the records that follow from the next replay. The change count
+   *  of the lock file catches the changes of the other instances, the stamps
+   *  of the files the changes made by hand.
+   */
+  private void checkFiles(FileChannel channel) throws IOException
+  {
+    if ((readGeneration(channel) != generation) || (journalFile.length() != journalLength)
+        || (getStamp(snapshotFile).equals(snapshotStamp) == false))
+    {
+      Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).fine(
+          "Service list of " + snapshotFile + " was modified, reading it again");
+      read(channel);
+    }
+  }
+
+  /** Returns the modification time and length of a file. */
+  private static String getStamp(File file)
+  {
+    return file.lastModified() + ":" + file.length();
+  }
+
+  /** Returns the snapshot file of a category. */
+  static File getSnapshotFile(File directory, Class<?> category)
+  {
+    return new File(directory, category.getName() + ".properties");
+  }
+
+  /** Returns the journal file of a category. */
+  static File getJournalFile(File directory, Class<?> category)
+  {
+    return new File(directory, category.getName() + ".journal");
+  }
+
+  /** Returns the lock file of a category. */
+  static File getLockFile(File directory, Class<?> category)
+  {
+    return new File(directory, category.getName() + ".lock");
+  }
+
+  /** Returns the current entries of the list.
+   *
+   * @return The activation state of each plugin ID, in list order.
+   */
+  public synchronized Map<String, Boolean> getEntries()
+  {
+    Map<String, Boolean> entries = new LinkedHashMap<String, Boolean>();
+    for (int i = 0; i < order.size(); i++)
+    {
+      entries.put(order.get(i), enabled.get(order.get(i)));
+    }
+    return entries;
+  }
+
+  /** Checks if a plugin is enabled.
+   *
+   * @param pluginId The plugin ID.
+   * @return true if the plugin is in the list and enabled.
+   */
+  public synchronized boolean isEnabled(String pluginId)
+  {
+    return Boolean.TRUE.equals(enabled.get(pluginId));
+  }
+
+  /** Enables or disables a plugin, adding it at the end of the list if it
+   *  is not in it.
+   *
+   * @param pluginId The plugin ID.
+   * @param state true to enable the plugin, false to disable it.
+   * @throws IOException If the change cannot be recorded, the state is
+   *   then unchanged.
+   */
+  public synchronized void setEnabled(String pluginId, boolean state) throws IOException
+  {
+    checkPluginId(pluginId);
+    append(state ? OP_ENABLE : OP_DISABLE, pluginId, null);
+    apply(state ? OP_ENABLE : OP_DISABLE, pluginId, -1);
+    compactIfNeeded();
+  }
+
+  /** Moves a plugin to a position of the list, adding it disabled if it
+   *  is not in it.
+   *
+   * @param pluginId The plugin ID.
+   * @param position The new position, past the end of the list moves the
+   *   plugin to the end.
+   * @throws IOException If the change cannot be recorded, the state is
+   *   then unchanged.
+   */
+  public synchronized void move(String pluginId, int position) throws IOException
+  {
+    checkPluginId(pluginId);
+    if (position < 0)
+    {
+      throw new IllegalArgumentException("Invalid position: " + position);
+    }
+    append(OP_MOVE, pluginId, Integer.toString(position));
+    apply(OP_MOVE, pluginId, position);
+    compactIfNeeded();
+  }
+
+  /** Writes the current state to the snapshot and deletes the journal.
+   *
+   * @throws IOException If the snapshot cannot be written, the journal is
+   *   then kept.
+   */
+  public synchronized void compact() throws IOException
+  {
+    FileLock lock = lockFiles();
+    try
+    {
+      checkFiles(lock.channel());
+      writeSnapshot(getEntries());
+      writeGeneration(lock.channel());
+    } finally
+    {
+      unlockFiles(lock);
+    }
+  }
+
+  /** Replaces the whole list and writes it to the snapshot, deleting the
+   *  journal.
+   *
+   * @param entries The activation state of each plugin ID, in list order.
+   * @throws IOException If the snapshot cannot be written, the state is
+   *   then unchanged.
+   */
+  public synchronized void replace(Map<String, Boolean> entries) throws IOException
+  {
+    for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();)
+    {
+      checkPluginId(it.next());
+    }
+    FileLock lock = lockFiles();
+    try
+    {
+      /* Written after the records of the other instances */
+      checkFiles(lock.channel());
+      writeSnapshot(entries);
+      writeGeneration(lock.channel());
+    } finally
+    {
+      unlockFiles(lock);
+    }
+    order.clear();
+    order.addAll(entries.keySet());
+    enabled.clear();
+    enabled.putAll(entries);
+  }
+
+  /** Checks that a plugin ID can be recorded. */
+  private static void checkPluginId(String pluginId)
+  {
+    if (pluginId == null)
+    {
+      throw new IllegalArgumentException("pluginId should be != NULL");
+    }
+    if ((pluginId.length() == 0) || (pluginId.indexOf(' ') >= 0) || (pluginId.indexOf('=') >= 0)
+        || (pluginId.indexOf('\n') >= 0) || (pluginId.indexOf('\r') >= 0))
+    {
+      throw new IllegalArgumentException("Invalid plugin ID: " + pluginId);
+    }
+  }
+
+  /** Compacts the journal once it holds enough records. */
+  private void compactIfNeeded() throws IOException
+  {
+    if (records >= compactionThreshold)
+    {
+      compact();
+    }
+  }
+
+  /** Applies a record to the current state. */
+  private void apply(String op, String pluginId, int position)
+  {
+    if (op.equals(OP_MOVE))
+    {
+      if (order.remove(pluginId) == false)
+      {
+        enabled.put(pluginId, Boolean.FALSE);
+      }
+      order.add(Math.min(position, order.size()), pluginId);
+    } else
+    {
+      if (enabled.containsKey(pluginId) == false)
+      {
+        order.add(pluginId);
+      }
+      enabled.put(pluginId, Boolean.valueOf(op.equals(OP_ENABLE)));
+    }
+  }
+
+  /** Appends a record to the journal and forces it to the storage device. */
+  private void append(String op, String pluginId, String argument) throws IOException
+  {
+    FileLock lock = lockFiles();
+    try
+    {
+      checkFiles(lock.channel());
+      write(op, pluginId, argument);
+      writeGeneration(lock.channel());
+    } finally
+    {
+      unlockFiles(lock);
+    }
+  }
+
+  /** Appends a record at the end of the valid part of the journal, the lock
+   *  being held. */
+  private void write(String op, String pluginId, String argument) throws IOException
+  {
+    String body = (sequence + 1) + " " + op + " " + pluginId
+        + ((argument == null) ? "" : " " + argument);
+    CRC32 crc = new CRC32();
+    byte[] data = body.getBytes("UTF-8");
+    crc.update(data);
+    byte[] record = (Long.toHexString(crc.getValue()) + " " + body + "\n").getBytes("UTF-8");
+
+    RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+    try
+    {
+      /* Overwrite a partly written record */
+      file.setLength(journalLength);
+      file.seek(journalLength);
+      file.write(record);
+      file.getFD().sync();
+    } finally
+    {
+      file.close();
+    }
+    journalLength += record.length;
+    records++;
+    sequence++;
+  }
+
+  /** Replays the valid records of the journal over the snapshot. */
+  private void replay() throws IOException
+  {
+    if (journalFile.exists() == false)
+    {
+      return;
+    }
+    byte[] data = readFully(journalFile);
+    int start = 0;
+    while (start < data.length)
+    {
+      int end = start;
+      while ((end < data.length) && (data[end] != '\n'))
+      {
+        end++;
+      }
+      if ((end == data.length) || (parseRecord(new String(data, start, end - start, "UTF-8")) == false))
+      {
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).warning(
+            "Ignoring incomplete record at offset " + start + " of " + journalFile);
+        break;
+      }
+      records++;
+      start = end + 1;
+    }
+    journalLength = start;
+  }
+
+  /** Checks and applies a journal record.
+   *
+   * @return false if the record is corrupted.
+   */
+  private boolean parseRecord(String line) throws IOException
+  {
+    int separator = line.indexOf(' ');
+    if (separator <= 0)
+    {
+      return false;
+    }
+    String body = line.substring(separator + 1);
+    CRC32 crc = new CRC32();
+    crc.update(body.getBytes("UTF-8"));
+    if (line.substring(0, separator).equals(Long.toHexString(crc.getValue())) == false)
+    {
+      return false;
+    }
+    String[] fields = body.split(" ");
+    try
+    {
+      long number = Long.parseLong(fields[0]);
+      if ((fields.length == 3) && (fields[1].equals(OP_ENABLE) || fields[1].equals(OP_DISABLE)))
+      {
+        if (number > sequence)
+        {
+          apply(fields[1], fields[2], -1);
+          sequence = number;
+        }
+        return true;
+      }
+      if ((fields.length == 4) && fields[1].equals(OP_MOVE))
+      {
+        int position = Integer.parseInt(fields[3]);
+        if (number > sequence)
+        {
+          apply(OP_MOVE, fields[2], position);
+          sequence = number;
+        }
+        return true;
+      }
+    } catch (NumberFormatException e)
+    {
+      /* Corrupted */
+    }
+    return false;
+  }
+
+  /** Reads a whole file. */
+  private static byte[] readFully(File file) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+    InputStream in = new FileInputStream(file);
+    try
+    {
+      byte[] buffer = new byte[4096];
+      int count;
+      while ((count = in.read(buffer)) != -1)
+      {
+        out.write(buffer, 0, count);
+      }
+    } finally
+    {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  /** Reads a snapshot file. Comment lines, blank lines and lines without a
+   *  key-value separator are skipped, and only the first line of a plugin ID
+   *  is used.
+   *
+   * @param file The snapshot file.
+   * @param sequence Receives the sequence number of the last journal record
+   *   contained in the snapshot, 0 if none.
+   * @return The activation state of each plugin ID, in file order, empty if
+   *   the file does not exist.
+   * @throws IOException If the file cannot be read.
+   */
+  static Map<String, Boolean> readSnapshot(File file, long[] sequence) throws IOException
+  {
+    Map<String, Boolean> entries = new LinkedHashMap<String, Boolean>();
+    if (file.exists() == false)
+    {
+      return entries;
+    }
+    BufferedReader fileReader = new BufferedReader(new FileReader(file));
+    try
+    {
+      String s;
+      while ((s = fileReader.readLine()) != null)
+      {
+        s = s.trim();
+        /* Supported comment charaters as first non-blank character in the
+         * properties file
+         */
+        if (s.startsWith(SEQUENCE_COMMENT))
+        {
+          try
+          {
+            sequence[0] = Long.parseLong(s.substring(SEQUENCE_COMMENT.length()));
+          } catch (NumberFormatException e)
+          {
+            Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).warning(
+                "Ignoring malformed line of " + file + ": " + s);
+          }
+          continue;
+        }
+        if ((s.length() == 0) || s.startsWith("!") || s.startsWith("#"))
+        {
+          continue;
+        }
+        int separator = s.indexOf('=');
+        if (separator <= 0)
+        {
+          Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).warning(
+              "Ignoring malformed line of " + file + ": " + s);
+          continue;
+        }
+        String pluginId = s.substring(0, separator).trim();
+        if (entries.containsKey(pluginId) == false)
+        {
+          entries.put(pluginId, Boolean.valueOf(s.substring(separator + 1).trim()));
+        }
+      }
+    } finally
+    {
+      fileReader.close();
+    }
+    return entries;
+  }
+
+  /** Replaces the snapshot with the specified entries, as of the current
+   *  sequence number, and deletes the journal. The entries are written to a
+   *  temporary file, forced to the storage device and renamed over the
+   *  snapshot, so that a crash leaves either the previous or the new
+   *  snapshot.
+   */
+  private void writeSnapshot(Map<String, Boolean> entries) throws IOException
+  {
+    File temp = new File(snapshotFile.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(temp);
+    try
+    {
+      Writer writer = new OutputStreamWriter(out);
+      writer.write(SEQUENCE_COMMENT + sequence + "\n");
+      for (Iterator<Map.Entry<String, Boolean>> it = entries.entrySet().iterator(); it.hasNext();)
+      {
+        Map.Entry<String, Boolean> entry = it.next();
+        writer.write(entry.getKey() + "=" + entry.getValue().toString() + "\n");
+      }
+      writer.flush();
+      out.getFD().sync();
+    } finally
+    {
+      out.close();
+    }
+    if (temp.renameTo(snapshotFile) == false)
+    {
+      /* The target cannot be replaced on some platforms */
+      snapshotFile.delete();
+      if (temp.renameTo(snapshotFile) == false)
+      {
+        temp.delete();
+        throw new IOException("Cannot replace " + snapshotFile);
+      }
+    }
+    records = 0;
+    journalLength = 0;
+    snapshotStamp = getStamp(snapshotFile);
+    /* Records left by a failed deletion are skipped by their sequence number */
+    if (journalFile.exists() && (journalFile.delete() == false))
+    {
+      Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).warning("Cannot delete " + journalFile);
+    }
+  }
+}
@@ -0,0 +1,254 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.ServiceConfigurationError;
+import java.util.Set;
+
+import org.plugin.index.ServiceProviderIndex;
+
+/** Lightweight description of a service provider discovered through a
+ *  <code>META-INF/services</code> declaration: its class name, the location
+ *  it was declared in and the service interfaces it was declared for.
+ *
+ *  A descriptor can be registered in a {@link ServiceRegistry} or a
+ *  {@link ServiceProviderUtilities.ServiceList} in place of the provider
+ *  instance. The provider class is only loaded and instantiated the first
+ *  time a lookup returns it, and the same instance is returned afterwards.
+ *  A provider listed in a build time provider index is created by the index.
+ *  Within these lists the descriptor itself is the registered provider, it
+ *  is the object to use for <code>contains</code> and for deregistration.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class ServiceProviderDescriptor
+{
+  /** The fully qualified name of the provider class. */
+  private final String className;
+  /** The location the provider was declared in, usually its jar file. */
+  private final URL source;
+  /** The names of the service interfaces the provider was declared for. */
+  private final Set<String> categoryNames;
+  /** The class loader of the provider. */
+  private final ClassLoader loader;
+  /** The version declared along with the provider, or null. */
+  private final String version;
+  /** The build time index creating the provider, or null. */
+  private final ServiceProviderIndex index;
+  /** The position of the provider in its index. */
+  private final int position;
+  /** The provider instance, null until it is first requested. */
+  private volatile Object instance;
+
+  /** Creates a provider descriptor.
+   *
+   * @param className The fully qualified name of the provider class.
+   * @param source The location the provider was declared in, can be null.
+   * @param categoryNames The names of the service interfaces the provider
+   *   was declared for.
+   * @param loader The class loader used to load the provider class.
+   */
+  public ServiceProviderDescriptor(String className, URL source, String[] categoryNames,
+      ClassLoader loader)
+  {
+    this(className, source, categoryNames, loader, null);
+  }
+
+  /** Creates a provider descriptor with a declared version, such as the
+   *  version recorded in a build time provider index.
+   *
+   * @param className The fully qualified name of the provider class.
+   * @param source The location the provider was declared in, can be null.
+   * @param categoryNames The names of the service interfaces the provider
+   *   was declared for.
+   * @param loader The class loader used to load the provider class.
+   * @param version The declared version of the provider, can be null.
+   */
+  public ServiceProviderDescriptor(String className, URL source, String[] categoryNames,
+      ClassLoader loader, String version)
+  {
+    this(className, source, categoryNames, loader, version, null, -1);
+  }
+
+  /** Creates the descriptor of a provider listed in a build time provider
+   *  index. The provider is then instantiated by the index, without using
+   *  reflection on the provider class.
+   *
+   * @param className The fully qualified name of the provider class.
+   * @param source The location the provider was declared in, can be null.
+   * @param categoryNames The names of the service interfaces the provider
+   *   was declared for.
+   * @param loader The class loader used to load the provider class.
+   * @param version The declared version of the provider, can be null.
+   * @param index The index listing the provider, or null to instantiate
+   *   the provider class through reflection.
+   * @param position The position of the provider in the index.
+   */
+  public ServiceProviderDescriptor(String className, URL source, String[] categoryNames,
+      ClassLoader loader, String version, ServiceProviderIndex index, int position)
+  {
+    if (className == null)
+    {
+      throw new IllegalArgumentException("className should be != NULL");
+    }
+    this.className = className;
+    this.source = source;
+    this.categoryNames = Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays
+        .asList(categoryNames)));
+    this.loader = loader;
+    this.version = version;
+    this.index = index;
+    this.position = position;
+  }
+
+  /** Returns the fully qualified name of the provider class. */
+  public String getClassName()
+  {
+    return className;
+  }
+
+  /** Returns the location the provider was declared in, usually the
+   *  jar file containing the declaration, or null if unknown. */
+  public URL getSource()
+  {
+    return source;
+  }
+
+  /** Returns the names of the service interfaces the provider was declared for. */
+  public Set<String> getCategoryNames()
+  {
+    return categoryNames;
+  }
+
+  /** Checks if the provider was declared for the specified service interface.
+   *
+   * @param categoryName The service interface name.
+   * @return true if the provider was declared for this service.
+   */
+  public boolean isDeclaredFor(String categoryName)
+  {
+    return categoryNames.contains(categoryName);
+  }
+
+  /** Returns the version declared along with the provider, without loading
+   *  the provider class, or null if none was declared. */
+  public String getDeclaredVersion()
+  {
+    return version;
+  }
+
+  /** Returns the class loader of the provider. */
+  public ClassLoader getClassLoader()
+  {
+    return loader;
+  }
+
+  /** Checks if the provider was already instantiated.
+   *
+   * @return true if {@link #getInstance()} already returned the provider.
+   */
+  public boolean isInstantiated()
+  {
+    return instance != null;
+  }
+
+  /** Loads the provider class without instantiating it.
+   *
+   * @return The provider class.
+   * @throws ServiceConfigurationError If the class cannot be loaded.
+   */
+  public Class<?> getProviderClass()
+  {
+    Object current = instance;
+    if (current != null)
+    {
+      return current.getClass();
+    }
+    try
+    {
+      return Class.forName(className, false, loader);
+    } catch (ClassNotFoundException e)
+    {
+      throw new ServiceConfigurationError("Provider " + className + " not found", e);
+    } catch (LinkageError e)
+    {
+      throw new ServiceConfigurationError("Provider " + className + " could not be loaded", e);
+    }
+  }
+
+  /** Returns the provider instance, loading and instantiating the provider
+   *  class on the first call.
+   *
+   * @return The provider instance.
+   * @throws ServiceConfigurationError If the provider cannot be instantiated,
+   *   the next call tries again.
+   */
+  public Object getInstance()
+  {
+    Object current = instance;
+    if (current == null)
+    {
+      synchronized (this)
+      {
+        current = instance;
+        if (current == null)
+        {
+          try
+          {
+            if (index != null)
+            {
+              current = index.newInstance(position);
+            } else
+            {
+              current = getProviderClass().newInstance();
+            }
+          } catch (Exception e)
+          {
+            throw new ServiceConfigurationError("Provider " + className
+                + " could not be instantiated", e);
+          } catch (LinkageError e)
+          {
+            throw new ServiceConfigurationError("Provider " + className
+                + " could not be initialized", e);
+          }
+          initialize(current);
+          instance = current;
+        }
+      }
+    }
+    return current;
+  }
+
+  /** Called once with the new provider instance, before it is returned by
+   *  {@link #getInstance()} to any caller. Does nothing by default,
+   *  subclasses may override it to configure the provider.
+   *
+   * @param provider The new provider instance.
+   */
+  protected void initialize(Object provider)
+  {
+  }
+
+  @Override
+  public String toString()
+  {
+    return "ServiceProviderDescriptor[" + className + "]";
+  }
+}
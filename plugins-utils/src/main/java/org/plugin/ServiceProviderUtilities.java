@@ -14,28 +14,55 @@
 */   
 package org.plugin;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.Writer;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.ServiceLoader;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.ServiceConfigurationError;
+import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
+import org.plugin.spi.ServiceConfiguration;
 import org.plugin.spi.ServiceMetadata;
+import org.plugin.spi.VersionedConfiguration;
 
 /**
  * Useful utilities associated with service provider plugins.
@@ -48,13 +75,18 @@ public class ServiceProviderUtilities
   /**
    * Returns the plugin ID of this plugin. The value returned depends on the
    * instance class of the service. This is a unique identifier for
-   * this plugin.
+   * this plugin. For a {@link ServiceProviderDescriptor} this is the
+   * provider class name, the provider is not instantiated.
    * 
    * @param pluginObject
    * @return The associated plugin ID.
    */
   public static String getPluginId(Object pluginObject)
   {
+    if (pluginObject instanceof ServiceProviderDescriptor)
+    {
+      return ((ServiceProviderDescriptor) pluginObject).getClassName();
+    }
     return pluginObject.getClass().getName();
   }
 
@@ -68,11 +100,12 @@ public class ServiceProviderUtilities
    */
   public static String getPluginVersion(Object pluginObject)
   {
+    pluginObject = getMetadataSource(pluginObject);
     if (pluginObject instanceof ServiceMetadata)
     {
       return ((ServiceMetadata) pluginObject).getVersion();
     }
-    return pluginObject.getClass().getPackage().getImplementationVersion();
+    return getPackage(pluginObject).getImplementationVersion();
   }
 
   /** Returns the plugin title. The title usually represents a human
@@ -87,11 +120,12 @@ public class ServiceProviderUtilities
    */
   public static String getPluginTitle(Object pluginObject)
   {
+    pluginObject = getMetadataSource(pluginObject);
     if (pluginObject instanceof ServiceMetadata)
     {
       return ((ServiceMetadata) pluginObject).getDescription(null);
     }
-    Package pkg = pluginObject.getClass().getPackage();
+    Package pkg = getPackage(pluginObject);
     return pkg.getImplementationTitle();
   }
 
@@ -106,316 +140,2244 @@ public class ServiceProviderUtilities
    */
   public static String getPluginVendor(Object pluginObject)
   {
+    pluginObject = getMetadataSource(pluginObject);
     if (pluginObject instanceof ServiceMetadata)
     {
       return ((ServiceMetadata) pluginObject).getVendorName();
     }
-    return pluginObject.getClass().getPackage().getImplementationVendor();
+    return getPackage(pluginObject).getImplementationVendor();
   }
 
-  /**
-   * Represents a Service List classified by categories, where each category is
-   * represented as a class type. In each of these categories a list of
-   * providers object instance is provided.
-   * 
+  /** Returns the object the metadata of a plugin is read from. A
+   *  {@link ServiceProviderDescriptor} is only instantiated if its provider
+   *  implements {@link ServiceMetadata}, otherwise the package of its class
+   *  is enough.
    */
-  public static class ServiceList
+  private static Object getMetadataSource(Object pluginObject)
   {
-    /**
-     * A list of providers for each category.
-     */
-    Map<Class<?>, Vector> categories = new HashMap<Class<?>, Vector>();
-
-    /**
-     * Instantiates a new categories map.
-     * 
-     */
-    public ServiceList()
-    {
-    }
-
-    /**
-     * Gets the providers object instances for the specified category as an
-     * iterator.
-     * 
-     * @param category
-     *          the category.
-     * @return the providers.
-     */
-    public Iterator<?> getProviders(Class<?> category)
+    if (pluginObject instanceof ServiceProviderDescriptor)
     {
-      Vector providers = categories.get(category);
-      if (null == providers)
+      ServiceProviderDescriptor descriptor = (ServiceProviderDescriptor) pluginObject;
+      if (descriptor.isInstantiated()
+          || ServiceMetadata.class.isAssignableFrom(descriptor.getProviderClass()))
       {
-        throw new IllegalArgumentException("Unknown category: " + category);
+        return descriptor.getInstance();
       }
-      return providers.iterator();
     }
+    return pluginObject;
+  }
 
-    /**
-     * Gets the providers object instances for the specified category as an
-     * iterator.
-     * 
-     * @param category
-     *          the category.
-     * @return the providers.
-     */
-    public List<?> getProvidersAsList(Class<?> category)
+  /** Returns the package of the class of a plugin. */
+  private static Package getPackage(Object pluginObject)
+  {
+    if (pluginObject instanceof ServiceProviderDescriptor)
     {
-      Vector providers = categories.get(category);
-      if (null == providers)
-      {
-        throw new IllegalArgumentException("Unknown category: " + category);
-      }
-      return providers;
+      return ((ServiceProviderDescriptor) pluginObject).getProviderClass().getPackage();
     }
+    return pluginObject.getClass().getPackage();
+  }
 
-    /**
-     * List all the categories.
-     * 
-     * @return the iterator< class<?>>.
-     */
-    public Iterator<Class<?>> list()
+  /** The packed version of a plugin whose version is unknown, lower than
+   *  any other packed version. */
+  public static final long VERSION_UNKNOWN = -1L;
+
+  /** Parses a version of the form "X.Y.Z.FF" into a packed long, where
+   *  each element takes 16 bits, from X in the most significant bits to FF
+   *  in the least significant ones, so that versions are compared as plain
+   *  longs. Missing elements are 0, parsing stops at the first character
+   *  that is neither a digit nor a separating dot, such as a qualifier like
+   *  "-SNAPSHOT", and elements are saturated at 65535 (32767 for X, so that
+   *  packed versions are never negative).
+   *
+   * @param version The version, can be null.
+   * @return The packed version, or {@link #VERSION_UNKNOWN} if the version
+   *   is null or does not start with a number.
+   */
+  public static long parseVersion(String version)
+  {
+    if (version == null)
     {
-      return categories.keySet().iterator();
+      return VERSION_UNKNOWN;
     }
-
-    /**
-     * Checks all categories and determines if this provider class is already
-     * included in any of category registries.
-     * 
-     * @param provider An instance object
-     * @return true if this provider is registered in any category.
-     */
-    public boolean contains(Object provider)
+    long packed = 0;
+    int element = 0;
+    int value = -1;
+    for (int i = 0; (i < version.length()) && (element < 4); i++)
     {
-      boolean found = false;
-      Iterator<Class<?>> categoryIterator = categories.keySet().iterator();
-      /* Go through all categories */
-      while (categoryIterator.hasNext())
+      char c = version.charAt(i);
+      if ((c >= '0') && (c <= '9'))
+      {
+        value = Math.min(((value < 0) ? 0 : value * 10) + (c - '0'), 0xFFFF);
+      } else if ((c == '.') && (value >= 0))
+      {
+        packed |= packVersionElement(element++, value);
+        value = -1;
+      } else
       {
-        found = contains(provider, categoryIterator.next());
-        if (found == true)
-          return true;
+        break;
       }
-      return false;
     }
+    if ((value >= 0) && (element < 4))
+    {
+      packed |= packVersionElement(element++, value);
+    }
+    return (element == 0) ? VERSION_UNKNOWN : packed;
+  }
 
-    public boolean contains(Object provider, Class<?> category)
+  /** Shifts an element of a version to its position in a packed version. */
+  private static long packVersionElement(int element, int value)
+  {
+    if (element == 0)
     {
-      Vector map = categories.get(category);
-      if (map == null)
-        return false;
-      return map.contains(provider);
+      value = Math.min(value, 0x7FFF);
     }
+    return ((long) value) << (16 * (3 - element));
+  }
 
-    /** Return a list of categories for the specified provider. */
-    public Iterator<Class<?>> getCategories(Object provider)
+  /** Returns the packed version of a plugin, as returned by
+   *  {@link #parseVersion(String)}. A {@link ServiceProviderDescriptor} is
+   *  never instantiated: its declared version is used if it has one,
+   *  otherwise the implementation version of the package of its class.
+   *
+   * @param pluginObject The plugin or plugin descriptor.
+   * @return The packed version, or {@link #VERSION_UNKNOWN}.
+   */
+  public static long getPackedPluginVersion(Object pluginObject)
+  {
+    String version;
+    if ((pluginObject instanceof ServiceProviderDescriptor)
+        && (((ServiceProviderDescriptor) pluginObject).isInstantiated() == false))
     {
-      List<Class<?>> list = new Vector<Class<?>>();
-      Iterator<Class<?>> categoryIterator = list();
-      while (categoryIterator.hasNext())
+      ServiceProviderDescriptor descriptor = (ServiceProviderDescriptor) pluginObject;
+      version = descriptor.getDeclaredVersion();
+      if (version == null)
       {
-        Class<?> category = categoryIterator.next();
-        Vector map = categories.get(category);
-        if (map == null)
-          continue;
-        if (map.contains(provider))
+        Package pkg;
+        try
         {
-          list.add(category);
+          pkg = descriptor.getProviderClass().getPackage();
+        } catch (ServiceConfigurationError e)
+        {
+          return VERSION_UNKNOWN;
         }
+        version = (pkg == null) ? null : pkg.getImplementationVersion();
       }
-      return list.iterator();
-    }
-
-    /**
-     * Adds the specified category.
-     * 
-     * @param category
-     *          the category.
-     */
-    public void addCategory(Class<?> category)
-    {
-      categories.put(category, new Vector());
-    }
-
-    /**
-     * Adds a provider to the category. If <code>category</code> is
-     * <code>null</code> then the provider will be added to all categories which
-     * the provider is assignable from.
-     * 
-     * @param provider
-     *          provider to add.
-     * @param category
-     *          category to add provider to.
-     * @return true, if there were such provider in some category.
-     */
-    public boolean addProvider(Object provider, Class<?> category)
+    } else
     {
-      if (provider == null)
-      {
-        throw new IllegalArgumentException("provider should be != NULL");
-      }
-      boolean rt;
-      if (category == null)
+      Object source = getMetadataSource(pluginObject);
+      if (source instanceof ServiceMetadata)
       {
-        rt = findAndAdd(provider);
+        version = ((ServiceMetadata) source).getVersion();
       } else
       {
-        rt = addToNamed(provider, category);
+        Package pkg = getPackage(source);
+        version = (pkg == null) ? null : pkg.getImplementationVersion();
       }
-      return rt;
     }
+    return parseVersion(version);
+  }
 
-    /** Delete all providers of the specified category. */
-    public void deleteProviders(Class<?> category)
+  /** Groups the copies of each plugin ID, ordered by descending packed
+   *  version, copies of the same version keeping their search order. The
+   *  descriptors are not instantiated, and versions are only computed for
+   *  the plugins found several times.
+   *
+   * @param descriptors The descriptors, in search order.
+   * @return The copies of each plugin, in order of preference, each group
+   *   at the position its plugin ID was first found at.
+   */
+  static List<List<ServiceProviderDescriptor>> rankVersions(
+      List<ServiceProviderDescriptor> descriptors)
+  {
+    Map<String, List<ServiceProviderDescriptor>> copies = new LinkedHashMap<String, List<ServiceProviderDescriptor>>();
+    for (int i = 0; i < descriptors.size(); i++)
     {
-      if (category == null)
+      ServiceProviderDescriptor descriptor = descriptors.get(i);
+      String id = getPluginId(descriptor);
+      List<ServiceProviderDescriptor> found = copies.get(id);
+      if (found == null)
       {
-        throw new IllegalArgumentException("category should be != NULL");
+        found = new ArrayList<ServiceProviderDescriptor>();
+        copies.put(id, found);
       }
-      Vector map = categories.get(category);
-      if (map == null)
-        return;
-      /* For each item in map, delete it */
-      for (int i = 0; i < map.size(); i++)
+      /* Providers of the class path are found through each directory loader */
+      boolean same = false;
+      for (int k = 0; (k < found.size()) && (same == false); k++)
       {
-        deleteProvider(map.get(i),category);
+        same = (descriptor.getSource() != null)
+            && descriptor.getSource().equals(found.get(k).getSource());
       }
-      map.clear();
-    }
-
-    public boolean deleteProvider(Object provider, Class<?> category)
-    {
-      if (provider == null)
+      if (same == false)
       {
-        throw new IllegalArgumentException("provider should be != NULL");
+        found.add(descriptor);
       }
-      boolean rt;
-      /* Remove the provider from all categories! */
-      if (category == null)
+    }
+    List<List<ServiceProviderDescriptor>> ranked = new ArrayList<List<ServiceProviderDescriptor>>(
+        copies.size());
+    for (List<ServiceProviderDescriptor> found : copies.values())
+    {
+      if (found.size() > 1)
       {
-        /* We must remove this provider to all categories */
-        Iterator<Class<?>> categoryIterator = categories.keySet().iterator();
-        while (categoryIterator.hasNext())
+        final Map<ServiceProviderDescriptor, Long> versions = new HashMap<ServiceProviderDescriptor, Long>();
+        for (int k = 0; k < found.size(); k++)
         {
-          Class<?> listCategory = categoryIterator.next();
-          Vector list = categories.get(listCategory);
-          Iterator listIterator = list.iterator();
-          while (listIterator.hasNext())
+          versions.put(found.get(k), Long.valueOf(getPackedPluginVersion(found.get(k))));
+        }
+        /* Stable, the first copy of a version stays first */
+        Collections.sort(found, new Comparator<ServiceProviderDescriptor>()
+        {
+          public int compare(ServiceProviderDescriptor o1, ServiceProviderDescriptor o2)
           {
-            Object object = listIterator.next();
-            if (object.getClass().isAssignableFrom(provider.getClass()))
-            {
-              listIterator.remove();
-            }
+            return versions.get(o2).compareTo(versions.get(o1));
           }
+        });
+        for (int k = 1; k < found.size(); k++)
+        {
+          Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).info(
+              "Ignoring duplicate plugin " + getPluginId(found.get(k)) + " from "
+                  + found.get(k).getSource() + ", using " + found.get(0).getSource());
         }
-        rt = true;
-      } else
+      }
+      ranked.add(found);
+    }
+    return ranked;
+  }
+
+  /** Instantiates one copy of each plugin, trying the copies of a plugin in
+   *  the order returned by {@link #rankVersions(List)} until one of them
+   *  can be instantiated. A {@link PluginCopy} gets its class loader when it
+   *  is tried, the loader is closed if the copy cannot be instantiated.
+   *
+   * @param provider The service interface.
+   * @param descriptors The descriptors, in search order.
+   * @param exporter The list the instances are added to.
+   */
+  private static <S> void instantiateLatest(Class<S> provider,
+      List<ServiceProviderDescriptor> descriptors, List<S> exporter)
+  {
+    List<List<ServiceProviderDescriptor>> ranked = rankVersions(descriptors);
+    for (int i = 0; i < ranked.size(); i++)
+    {
+      List<ServiceProviderDescriptor> copies = ranked.get(i);
+      for (int k = 0; k < copies.size(); k++)
       {
-        /* Get the category map. */
-        Vector list = categories.get(category);
-        if (list == null)
+        ServiceProviderDescriptor descriptor = copies.get(k);
+        ClassLoader loader = descriptor.getClassLoader();
+        if (descriptor instanceof PluginCopy)
         {
-
-          throw new IllegalArgumentException("Category is not registered.");
+          loader = ((PluginCopy) descriptor).createClassLoader();
+        }
+        S instance = null;
+        try
+        {
+          instance = instantiate(provider, descriptor.getClassName(), loader);
+        } finally
+        {
+          if ((instance == null) && (loader != descriptor.getClassLoader()))
+          {
+            close(loader);
+          }
         }
-        /* Remove the service from that category. */
-        if (list.remove(provider) == false)
+        if (instance != null)
         {
-          rt = false;
-        } else
+          exporter.add(instance);
+          break;
+        }
+        if (k + 1 < copies.size())
         {
-          rt = true;
+          Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).info(
+              "Using plugin " + descriptor.getClassName() + " from "
+                  + copies.get(k + 1).getSource() + " instead");
         }
       }
-      return rt;
     }
+  }
 
-    /**
-     * Adds the to named.
-     * 
-     * @param provider
-     *          the provider.
-     * @param category
-     *          the category.
-     * @return true, if successful.
-     */
-    private boolean addToNamed(Object provider, Class<?> category)
+  /** Returns the descriptors of an iterator, in iteration order. */
+  private static List<ServiceProviderDescriptor> toList(Iterator<ServiceProviderDescriptor> it)
+  {
+    List<ServiceProviderDescriptor> list = new ArrayList<ServiceProviderDescriptor>();
+    while (it.hasNext())
     {
-      Vector list = categories.get(category);
-      if (null == list)
+      list.add(it.next());
+    }
+    return list;
+  }
+
+  /** Describes the providers of a service declared by each plugin jar. The
+   *  first jar declaring a class loads it with the shared plugin class
+   *  loader, which is used to instantiate it. Every other copy is described
+   *  by a {@link PluginCopy}, versioned from the manifest of its jar without
+   *  loading it, and only gets a class loader of its own if it is selected.
+   *  Classes declared on the class path are skipped, the class path is
+   *  searched first by every plugin class loader.
+   *
+   * @param provider The service interface.
+   * @param jars The plugin jars, in the order of the shared class loader.
+   * @param loader The shared plugin class loader.
+   * @param descriptors The descriptors of the class path, the descriptors of
+   *   the jars are added to them.
+   */
+  private static void describePluginJars(Class<?> provider, List<PluginJar> jars,
+      ClassLoader loader, List<ServiceProviderDescriptor> descriptors)
+  {
+    Set<String> declared = new HashSet<String>();
+    Set<String> classPath = new HashSet<String>();
+    for (int i = 0; i < descriptors.size(); i++)
+    {
+      classPath.add(descriptors.get(i).getClassName());
+    }
+    List<URL> urls = new ArrayList<URL>();
+    for (int i = 0; i < jars.size(); i++)
+    {
+      try
       {
-        throw new IllegalArgumentException("Unknown category: " + category);
+        urls.add(jars.get(i).getFile().toURI().toURL());
+      } catch (MalformedURLException e)
+      {
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+            "Invalid plugin location " + jars.get(i).getFile(), e);
+        urls.add(null);
       }
-      if (list.contains(provider) == false)
+    }
+    String[] categoryNames = new String[] { provider.getName() };
+    for (int i = 0; i < jars.size(); i++)
+    {
+      URL source = urls.get(i);
+      List<String> classNames = jars.get(i).getProviderClassNames(provider.getName());
+      URL[] search = null;
+      for (int k = 0; (k < classNames.size()) && (source != null); k++)
       {
-        return list.add(provider);
+        String className = classNames.get(k);
+        if (classPath.contains(className))
+        {
+          continue;
+        }
+        if (declared.add(className))
+        {
+          descriptors.add(new ServiceProviderDescriptor(className, source, categoryNames, loader));
+          continue;
+        }
+        if (search == null)
+        {
+          List<URL> copyUrls = new ArrayList<URL>(urls);
+          copyUrls.removeAll(Collections.singleton(null));
+          copyUrls.remove(source);
+          copyUrls.add(0, source);
+          search = copyUrls.toArray(new URL[copyUrls.size()]);
+        }
+        descriptors.add(new PluginCopy(className, source, categoryNames, getImplementationVersion(
+            jars.get(i).getFile(), className), search));
       }
-      return false;
     }
+  }
 
-    /**
-     * Find and add this provider to each category it implements.
-     * 
-     * @param provider
-     *          the provider.
-     * @return true, if successful.
-     */
-    private boolean findAndAdd(Object provider)
+  /** Returns the implementation version the package of a class would have
+   *  if it was loaded from a jar, from the manifest of the jar.
+   *
+   * @return The version, empty if the manifest does not declare it or
+   *   cannot be read.
+   */
+  private static String getImplementationVersion(File file, String className)
+  {
+    String version = null;
+    try
     {
-      boolean rt = false;
-      for (Entry<Class<?>, Vector> e : categories.entrySet())
+      JarFile jar = new JarFile(file);
+      try
       {
-        if (e.getKey().isAssignableFrom(provider.getClass()))
+        Manifest manifest = jar.getManifest();
+        int separator = className.lastIndexOf('.');
+        if ((manifest != null) && (separator > 0))
         {
-          Vector list = e.getValue();
-          if (list.contains(provider) == false)
+          Attributes attributes = manifest.getAttributes(className.substring(0, separator)
+              .replace('.', '/')
+              + "/");
+          if (attributes != null)
           {
-            rt |= list.add(provider);
+            version = attributes.getValue(Attributes.Name.IMPLEMENTATION_VERSION);
           }
         }
+        if ((manifest != null) && (version == null))
+        {
+          version = manifest.getMainAttributes().getValue(Attributes.Name.IMPLEMENTATION_VERSION);
+        }
+      } finally
+      {
+        jar.close();
       }
-      return rt;
+    } catch (IOException e)
+    {
+      Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.FINE,
+          "Cannot read the manifest of " + file, e);
     }
+    /* Not null, the provider class is never loaded to find its version */
+    return (version == null) ? "" : version;
+  }
 
+  /** Closes a class loader, if it can be closed. */
+  private static void close(ClassLoader loader)
+  {
+    /* Class loaders are only closeable from Java 7 on */
+    if (loader instanceof Closeable)
+    {
+      try
+      {
+        ((Closeable) loader).close();
+      } catch (IOException e)
+      {
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.FINE,
+            "Cannot close class loader", e);
+      }
+    }
   }
 
-  /**
-   * Returns a list of all service providers, both searched through the class
-   * loader implementing the specified categories, as well as those which are
-   * manually registered.
-   * 
-   * @param serviceRegistry
-   *          [in] Service registry that will be used to lookup loaded dynamically
-   *          loaded service providers.
-   * @param additionalProviders
-   *          [in] A list of additional service providers specifically defined
-   *          by the developer to be returned.
-   * @param categories
-   *          [in] The categories to look for for dynamically loaded service
-   *          providers.
-   * @return A list of all service providers.
+  /** A copy of a plugin declared by a jar after the jar the shared plugin
+   *  class loader loads it from. It has no class loader until it is
+   *  selected, its version being declared from the manifest of its jar.
    */
-  public static ServiceList getProviders(ServiceRegistry serviceRegistry,
-      Object[] additionalProviders, Class categories[])
+  private static final class PluginCopy extends ServiceProviderDescriptor
   {
-    ServiceList serviceList = new ServiceList();
-    for (int i = 0; i < categories.length; i++)
+    /** The jars of the class loader of the copy, its own jar first. */
+    private final URL[] search;
+
+    PluginCopy(String className, URL source, String[] categoryNames, String version,
+        URL[] search)
     {
-      serviceList.addCategory(categories[i]);
+      super(className, source, categoryNames, null, version);
+      this.search = search;
     }
 
-    /* Lookup all non-registered plugins first. */
-    for (int j = 0; j < categories.length; j++)
+    /** Creates a class loader searching the jar of this copy first. */
+    URLClassLoader createClassLoader()
     {
-      Iterator iterator = serviceRegistry.lookupProviders(categories[j]);
-      while (iterator.hasNext())
-      {
-        Object provider = iterator.next();
-        serviceList.addProvider(provider, null);
-      }
+      return new URLClassLoader(search);
+    }
+  }
+
+  /**
+   * Represents a Service List classified by categories, where each category is
+   * represented as a class type. In each of these categories a list of
+   * providers object instance is provided.
+   * 
+   * <p>The providers of each category are kept in an immutable snapshot array.
+   * Lookups only read the current snapshot and never lock, while
+   * modifications are serialized on this object, build a new snapshot and
+   * publish it with a single volatile write. Iterators and lists returned
+   * by this class are therefore read-only views that are never affected
+   * by concurrent registrations.</p>
+   * 
+   * <p>Each category is given a dense index when it is added, and each
+   * registered provider is given a bitset of the indexes of the categories
+   * it belongs to. Membership tests and
+   * duplicate checks are therefore a hash lookup followed by a bit test, and
+   * the categories of a provider are found in O(categories/64). The index
+   * costs one entry and one bitset per registered provider: for 100k providers
+   * spread over 1k categories it stays below 20 MB, even in the worst case
+   * where every bitset spans all the categories.</p>
+   * 
+   */
+  public static class ServiceList
+  {
+    /**
+     * Freeze policy where any modification made after {@link #freeze} fails
+     * with an <code>IllegalStateException</code>.
+     */
+    public static final int FREEZE_FAIL_FAST = 0;
+
+    /**
+     * Freeze policy where modifications made after {@link #freeze} are applied
+     * and the frozen lookup table is compiled again.
+     */
+    public static final int FREEZE_REBUILD = 1;
+
+    /**
+     * A list of providers for each category.
+     */
+    Map<Class<?>, ProviderList> categories = new ConcurrentHashMap<Class<?>, ProviderList>();
+
+    /**
+     * The categories indexed by their dense category index.
+     */
+    private volatile ProviderList[] categoryTable = new ProviderList[0];
+
+    /**
+     * The membership entry of each registered provider.
+     */
+    private final Map<Object, ProviderEntry> providers = new ConcurrentHashMap<Object, ProviderEntry>();
+
+    /**
+     * The registered providers of each provider class in registration order,
+     * keyed by class for provider instances and by class name for provider
+     * descriptors. The arrays are replaced on each modification, while
+     * holding the lock of this list.
+     */
+    private final Map<Object, Object[]> instancesByClass = new ConcurrentHashMap<Object, Object[]>();
+
+    /**
+     * The number of registered providers of each plugin ID, whether
+     * registered as instances or through a descriptor.
+     */
+    private final Map<String, Integer> pluginIds = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * The categories that are subtypes of each supertype of a category, for
+     * the supertypes that are not themselves categories. Computed when
+     * categories are added so that lookups never walk the class hierarchy.
+     */
+    private final Map<Class<?>, ProviderList[]> subcategories = new ConcurrentHashMap<Class<?>, ProviderList[]>();
+
+    /**
+     * The providers of the lookups made by supertype.
+     */
+    private final Map<Class<?>, UnionSnapshot> unions = new ConcurrentHashMap<Class<?>, UnionSnapshot>();
+
+    /**
+     * The compiled lookup table, or <code>null</code> if this list is not
+     * frozen.
+     */
+    private volatile FrozenTable frozen;
+
+    /**
+     * The policy applied to modifications while frozen.
+     */
+    private int freezePolicy;
+
+    /**
+     * Cache of the categories each provider class is assignable to. Weakly
+     * keyed so that it never pins a provider class, it is guarded by the lock
+     * of this list and cleared each time a category is added.
+     */
+    private final Map<Class<?>, ProviderList[]> assignableCategories = new WeakHashMap<Class<?>, ProviderList[]>();
+
+    /**
+     * Instantiates a new categories map.
+     * 
+     */
+    public ServiceList()
+    {
+    }
+
+    /**
+     * Gets the providers object instances for the specified category as an
+     * iterator. The category may also be a supertype of registered
+     * categories, in which case the providers of all these categories are
+     * returned, each provider once.
+     * 
+     * @param category
+     *          the category.
+     * @return the providers.
+     */
+    public Iterator<?> getProviders(Class<?> category)
+    {
+      return new ResolvedList(getSnapshot(category, false)).iterator();
+    }
+
+    /**
+     * Gets the providers object instances for the specified category as an
+     * iterator, optionally sorted according to the orderings set with
+     * {@link #setOrdering}. The sorted view is maintained when the category
+     * or its orderings are modified, so both views cost the same to obtain.
+     * 
+     * @param category
+     *          the category.
+     * @param useOrdering
+     *          true to return the providers sorted according to the orderings
+     *          of this category, false to return them in registration order.
+     * @return the providers.
+     */
+    public Iterator<?> getProviders(Class<?> category, boolean useOrdering)
+    {
+      return new ResolvedList(getSnapshot(category, useOrdering)).iterator();
+    }
+
+    /**
+     * Gets the providers object instances for the specified category as an
+     * unmodifiable list.
+     * 
+     * @param category
+     *          the category.
+     * @return the providers.
+     */
+    public List<?> getProvidersAsList(Class<?> category)
+    {
+      return new ResolvedList(getSnapshot(category, false));
+    }
+
+    /**
+     * Gets the providers of the specified category as they were registered.
+     * Contrary to {@link #getProviders(Class)}, the
+     * {@link ServiceProviderDescriptor} objects are returned as is, so that
+     * their providers are not instantiated.
+     * 
+     * @param category
+     *          the category.
+     * @return the registered providers and provider descriptors.
+     */
+    public Iterator<?> getRegisteredProviders(Class<?> category)
+    {
+      return Arrays.asList(getSnapshot(category, false)).iterator();
+    }
+
+    /**
+     * Returns the provider instance of a registered provider, instantiating
+     * it if it was registered through a {@link ServiceProviderDescriptor}.
+     * 
+     * @param provider
+     *          the registered provider.
+     * @return the provider instance.
+     */
+    Object resolve(Object provider)
+    {
+      if (provider instanceof ServiceProviderDescriptor)
+      {
+        return ((ServiceProviderDescriptor) provider).getInstance();
+      }
+      return provider;
+    }
+
+    /**
+     * Returns the current immutable snapshot of the providers of the
+     * specified category. The returned array must not be modified.
+     * 
+     * @param category
+     *          the category.
+     * @param useOrdering
+     *          true to return the snapshot sorted according to the orderings.
+     * @return the providers of this category.
+     */
+    Object[] getSnapshot(Class<?> category, boolean useOrdering)
+    {
+      if (category == null)
+      {
+        throw new IllegalArgumentException("Unknown category: " + category);
+      }
+      FrozenTable table = frozen;
+      if (table != null)
+      {
+        int slot = table.slot(category);
+        if (slot >= 0)
+        {
+          return useOrdering ? table.ordered[slot] : table.providers[slot];
+        }
+      }
+      ProviderList providers = lookup(category);
+      if (null == providers)
+      {
+        /* A supertype of some categories returns the union of their providers */
+        ProviderList[] members = getSubcategories(category);
+        UnionSnapshot union = unions.get(category);
+        if ((union == null) || (union.isCurrent(members) == false))
+        {
+          union = new UnionSnapshot(members);
+          unions.put(category, union);
+        }
+        return useOrdering ? union.ordered : union.snapshot;
+      }
+      return useOrdering ? providers.ordered : providers.snapshot;
+    }
+
+    /**
+     * Returns the category registered for the specified class.
+     * 
+     * @param category
+     *          the category class, can be <code>null</code>.
+     * @return the category or <code>null</code> if there is none.
+     */
+    private ProviderList lookup(Class<?> category)
+    {
+      return (category == null) ? null : categories.get(category);
+    }
+
+    /**
+     * Returns the categories that are subtypes of the specified type, which
+     * is not itself a category.
+     * 
+     * @throws IllegalArgumentException
+     *           if the type is not a supertype of any category.
+     */
+    private ProviderList[] getSubcategories(Class<?> type)
+    {
+      ProviderList[] members = (type == null) ? null : subcategories.get(type);
+      if (null == members)
+      {
+        throw new IllegalArgumentException("Unknown category: " + type);
+      }
+      return members;
+    }
+
+    /**
+     * Returns the modification epoch of the specified category. The epoch
+     * increases each time the providers of the category or their ordering
+     * are modified, including when the category is added again, so a result
+     * computed from the providers of a category remains valid as long as its
+     * epoch does not change. The epoch must be read before the providers it
+     * is meant to validate.
+     * 
+     * @param category
+     *          the category.
+     * @return the current epoch of this category.
+     */
+    public long getEpoch(Class<?> category)
+    {
+      ProviderList providers = lookup(category);
+      if (null == providers)
+      {
+        /* Epochs are drawn from a global counter, so the latest one changes
+         * whenever a member changes, is replaced or is added.
+         */
+        ProviderList[] members = getSubcategories(category);
+        long epoch = 0;
+        for (int i = 0; i < members.length; i++)
+        {
+          epoch = Math.max(epoch, members[i].epoch);
+        }
+        return epoch;
+      }
+      return providers.epoch;
+    }
+
+    /**
+     * List all the categories.
+     * 
+     * @return the iterator< class<?>>.
+     */
+    public Iterator<Class<?>> list()
+    {
+      return categories.keySet().iterator();
+    }
+
+    /**
+     * Checks all categories and determines if this provider class is already
+     * included in any of category registries.
+     * 
+     * @param provider An instance object
+     * @return true if this provider is registered in any category.
+     */
+    public boolean contains(Object provider)
+    {
+      /* Entries only exist while the provider is in at least one category */
+      return getRegistered(provider) != null;
+    }
+
+    public boolean contains(Object provider, Class<?> category)
+    {
+      ProviderList map = lookup(category);
+      if (map == null)
+        return false;
+      Object registered = getRegistered(provider);
+      if (registered == null)
+        return false;
+      ProviderEntry entry = providers.get(registered);
+      if (entry == null)
+        return false;
+      return entry.isMember(map.index);
+    }
+
+    /** Return a list of categories for the specified provider. */
+    public Iterator<Class<?>> getCategories(Object provider)
+    {
+      List<Class<?>> list = new Vector<Class<?>>();
+      Object registered = getRegistered(provider);
+      ProviderEntry entry = (registered == null) ? null : providers.get(registered);
+      if (entry != null)
+      {
+        ProviderList[] table = categoryTable;
+        int[] indexes = entry.indexes();
+        for (int i = 0; i < indexes.length; i++)
+        {
+          if (indexes[i] < table.length)
+          {
+            list.add(table[indexes[i]].category);
+          }
+        }
+      }
+      return list.iterator();
+    }
+
+    /**
+     * Gets the registered provider instance of the specified class. If several
+     * instances of this class are registered, the most recently registered one
+     * is returned. A provider registered through a
+     * {@link ServiceProviderDescriptor} is instantiated.
+     * 
+     * @param providerClass
+     *          the provider class.
+     * @return the provider instance or <code>null</code> if no instance of this
+     *         class is registered.
+     */
+    public <T> T getProviderByClass(Class<T> providerClass)
+    {
+      if (providerClass == null)
+      {
+        throw new IllegalArgumentException("providerClass should be != NULL");
+      }
+      Object provider = getLatestByClass(providerClass);
+      if (provider == null)
+      {
+        provider = getLatestByClass(providerClass.getName());
+        if (provider == null)
+        {
+          return null;
+        }
+        provider = resolve(provider);
+        if (providerClass.isInstance(provider) == false)
+        {
+          /* Same name, loaded by another class loader */
+          return null;
+        }
+      }
+      return providerClass.cast(provider);
+    }
+
+    /**
+     * Adds the specified category.
+     * 
+     * @param category
+     *          the category.
+     */
+    public synchronized void addCategory(Class<?> category)
+    {
+      if (category == null)
+      {
+        throw new IllegalArgumentException("category should be != NULL");
+      }
+      checkWritable();
+      ProviderList previous = lookup(category);
+      ProviderList[] table = categoryTable;
+      int index = table.length;
+      if (previous != null)
+      {
+        /* Re-adding a category resets it, keep its index */
+        Object[] members = previous.snapshot;
+        for (int i = 0; i < members.length; i++)
+        {
+          unlink(previous, members[i]);
+        }
+        index = previous.index;
+      }
+      ProviderList list = new ProviderList(category, index);
+      ProviderList[] next = new ProviderList[Math.max(table.length, index + 1)];
+      System.arraycopy(table, 0, next, 0, table.length);
+      next[index] = list;
+      categoryTable = next;
+      categories.put(category, list);
+      assignableCategories.clear();
+      if (previous != null)
+      {
+        /* The closures refer to the replaced category, compute them again */
+        subcategories.clear();
+        for (ProviderList other : categories.values())
+        {
+          addToClosure(other);
+        }
+      } else
+      {
+        addToClosure(list);
+      }
+      unions.clear();
+      refreeze();
+    }
+
+    /**
+     * Records the specified category under each of its supertypes that is not
+     * itself a category. Must be called while holding the lock of this list.
+     */
+    private void addToClosure(ProviderList list)
+    {
+      LinkedList<Class<?>> pending = new LinkedList<Class<?>>();
+      Set<Class<?>> visited = new HashSet<Class<?>>();
+      pending.add(list.category);
+      while (pending.isEmpty() == false)
+      {
+        Class<?> type = pending.removeFirst();
+        if (visited.add(type) == false)
+        {
+          continue;
+        }
+        if (type != list.category)
+        {
+          ProviderList[] current = subcategories.get(type);
+          if (current == null)
+          {
+            current = new ProviderList[0];
+          }
+          ProviderList[] next = new ProviderList[current.length + 1];
+          System.arraycopy(current, 0, next, 0, current.length);
+          next[current.length] = list;
+          subcategories.put(type, next);
+        }
+        if (type.getSuperclass() != null)
+        {
+          pending.add(type.getSuperclass());
+        }
+        pending.addAll(Arrays.asList(type.getInterfaces()));
+      }
+    }
+
+    /**
+     * Adds a provider to the category. If <code>category</code> is
+     * <code>null</code> then the provider will be added to all categories which
+     * the provider is assignable from.
+     * 
+     * @param provider
+     *          provider to add.
+     * @param category
+     *          category to add provider to.
+     * @return true, if there were such provider in some category.
+     */
+    public boolean addProvider(Object provider, Class<?> category)
+    {
+      if (provider == null)
+      {
+        throw new IllegalArgumentException("provider should be != NULL");
+      }
+      boolean rt;
+      synchronized (this)
+      {
+        checkWritable();
+        try
+        {
+          provider = getRegisteredOrSelf(provider);
+          if (category == null)
+          {
+            rt = findAndAdd(provider);
+          } else
+          {
+            rt = addToNamed(provider, category);
+          }
+        } finally
+        {
+          refreeze();
+        }
+      }
+      return rt;
+    }
+
+    /**
+     * Adds several providers at once. All providers are validated and staged
+     * first, then each category that receives providers publishes a single
+     * new snapshot containing all of them, so a lookup sees either none or all
+     * of the providers of the batch that belong to its category. If
+     * <code>category</code> is <code>null</code> then each provider will be
+     * added to all categories which the provider is assignable from.
+     * 
+     * @param batch
+     *          the providers to add.
+     * @param category
+     *          category to add the providers to, or <code>null</code>.
+     * @return for each provider, true if it was added to at least one
+     *         category.
+     */
+    public boolean[] addProviders(Object[] batch, Class<?> category)
+    {
+      boolean[] added = new boolean[batch.length];
+      synchronized (this)
+      {
+        checkWritable();
+        try
+        {
+          /* Stage the additions of each category, nothing is published yet */
+          Map<ProviderList, Set<Object>> staged = new LinkedHashMap<ProviderList, Set<Object>>();
+          for (int i = 0; i < batch.length; i++)
+          {
+            Object provider = batch[i];
+            if (provider == null)
+            {
+              throw new IllegalArgumentException("provider should be != NULL");
+            }
+            provider = getRegisteredOrSelf(provider);
+            ProviderList[] lists;
+            if (category == null)
+            {
+              lists = getProviderCategories(provider);
+            } else
+            {
+              ProviderList list = lookup(category);
+              if (null == list)
+              {
+                throw new IllegalArgumentException("Unknown category: " + category);
+              }
+              lists = new ProviderList[] { list };
+            }
+            ProviderEntry entry = providers.get(provider);
+            for (int j = 0; j < lists.length; j++)
+            {
+              if ((entry != null) && entry.isMember(lists[j].index))
+              {
+                continue;
+              }
+              Set<Object> additions = staged.get(lists[j]);
+              if (additions == null)
+              {
+                additions = new LinkedHashSet<Object>();
+                staged.put(lists[j], additions);
+              }
+              added[i] |= additions.add(provider);
+            }
+          }
+          /* One publication per category */
+          for (Entry<ProviderList, Set<Object>> e : staged.entrySet())
+          {
+            e.getKey().appendAll(e.getValue().toArray());
+          }
+          for (Entry<ProviderList, Set<Object>> e : staged.entrySet())
+          {
+            for (Object provider : e.getValue())
+            {
+              enter(e.getKey(), provider);
+            }
+          }
+        } finally
+        {
+          refreeze();
+        }
+      }
+      return added;
+    }
+
+    /** Delete all providers of the specified category. */
+    public void deleteProviders(Class<?> category)
+    {
+      if (category == null)
+      {
+        throw new IllegalArgumentException("category should be != NULL");
+      }
+      ProviderList map = lookup(category);
+      if (map == null)
+        return;
+      /* For each item in the current snapshot, delete it */
+      Object[] providers = map.snapshot;
+      for (int i = 0; i < providers.length; i++)
+      {
+        deleteProvider(providers[i], category);
+      }
+    }
+
+    public boolean deleteProvider(Object provider, Class<?> category)
+    {
+      return deleteRegistered(provider, category).isEmpty() == false;
+    }
+
+    /**
+     * Deletes a provider from a category, or from all categories if
+     * <code>category</code> is <code>null</code>. In the latter case, if this
+     * instance is not registered, all the registered providers of the same
+     * class are deleted instead, as when each class had a single provider:
+     * the instances of the class and, for a provider that is not a
+     * descriptor, the descriptors of the class. When deleting from a single
+     * category the provider itself must be registered, through its
+     * descriptor or as an instance.
+     * 
+     * @param provider
+     *          the provider.
+     * @param category
+     *          the category, or <code>null</code>.
+     * @return the registered providers that were deleted, in registration
+     *         order, empty if none was.
+     */
+    List<Object> deleteRegistered(Object provider, Class<?> category)
+    {
+      if (provider == null)
+      {
+        throw new IllegalArgumentException("provider should be != NULL");
+      }
+      List<Object> rt = new ArrayList<Object>();
+      synchronized (this)
+      {
+        checkWritable();
+        try
+        {
+          /* Remove the provider from all categories! */
+          if (category == null)
+          {
+            /* Either this provider or all the providers registered for its class */
+            Object registered = getRegistered(provider);
+            if ((registered != null) && providers.containsKey(registered))
+            {
+              rt.add(registered);
+            } else
+            {
+              addAll(rt, instancesByClass.get(getClassKey(provider)));
+              if ((provider instanceof ServiceProviderDescriptor) == false)
+              {
+                /* The providers of this class registered through their descriptor */
+                addAll(rt, instancesByClass.get(provider.getClass().getName()));
+              }
+            }
+            ProviderList[] table = categoryTable;
+            for (int j = 0; j < rt.size(); j++)
+            {
+              /* We must remove this provider from all categories it belongs to */
+              int[] indexes = providers.get(rt.get(j)).indexes();
+              for (int i = 0; i < indexes.length; i++)
+              {
+                unlink(table[indexes[i]], rt.get(j));
+              }
+            }
+          } else
+          {
+            /* Get the category map. */
+            ProviderList list = lookup(category);
+            if (list == null)
+            {
+
+              throw new IllegalArgumentException("Category is not registered.");
+            }
+            /* Remove the service from that category. */
+            Object registered = getRegistered(provider);
+            if ((registered != null) && unlink(list, registered))
+            {
+              rt.add(registered);
+            }
+          }
+        } finally
+        {
+          refreeze();
+        }
+      }
+      return rt;
+    }
+
+    /**
+     * Freezes this list by compiling its categories into flat arrays indexed
+     * by a perfect hash of the category classes, so that lookups skip the
+     * category map. This is meant to be called once all categories and
+     * providers have been registered.
+     * 
+     * @param policy
+     *          what happens on modifications made while frozen, either
+     *          {@link #FREEZE_FAIL_FAST} or {@link #FREEZE_REBUILD}.
+     */
+    public synchronized void freeze(int policy)
+    {
+      if ((policy != FREEZE_FAIL_FAST) && (policy != FREEZE_REBUILD))
+      {
+        throw new IllegalArgumentException("Unknown freeze policy: " + policy);
+      }
+      freezePolicy = policy;
+      frozen = new FrozenTable(categories.values());
+    }
+
+    /**
+     * Unfreezes this list, lookups go through the category map again and
+     * modifications are allowed.
+     */
+    public synchronized void unfreeze()
+    {
+      frozen = null;
+    }
+
+    /**
+     * Checks if this list is frozen.
+     * 
+     * @return true if {@link #freeze} was called and the list was not
+     *         unfrozen since.
+     */
+    public boolean isFrozen()
+    {
+      return frozen != null;
+    }
+
+    /**
+     * Fails if this list is frozen with the {@link #FREEZE_FAIL_FAST} policy.
+     * Must be called while holding the lock of this list.
+     */
+    private void checkWritable()
+    {
+      if ((frozen != null) && (freezePolicy == FREEZE_FAIL_FAST))
+      {
+        throw new IllegalStateException("Service list is frozen");
+      }
+    }
+
+    /**
+     * Compiles the lookup table again after a modification if this list is
+     * frozen. Must be called while holding the lock of this list.
+     */
+    private void refreeze()
+    {
+      if (frozen != null)
+      {
+        frozen = new FrozenTable(categories.values());
+      }
+    }
+
+    /**
+     * Sets an ordering between two providers of the specified category, so
+     * that <code>firstProvider</code> is returned before
+     * <code>secondProvider</code> by ordered lookups.
+     * 
+     * @param category
+     *          the category.
+     * @param firstProvider
+     *          the provider that must come first.
+     * @param secondProvider
+     *          the provider that must come second.
+     * @return true, if a previously unset order was set.
+     * @throws IllegalArgumentException
+     *           if a provider is not registered in this category, if both
+     *           providers are the same, or if the ordering would introduce a
+     *           cycle with the orderings already set.
+     */
+    public synchronized boolean setOrdering(Class<?> category, Object firstProvider,
+        Object secondProvider)
+    {
+      checkWritable();
+      ProviderList list = getOrderedList(category, firstProvider, secondProvider);
+      try
+      {
+        return list.addOrdering(getRegistered(firstProvider), getRegistered(secondProvider));
+      } finally
+      {
+        refreeze();
+      }
+    }
+
+    /**
+     * Unsets an ordering between two providers of the specified category.
+     * 
+     * @param category
+     *          the category.
+     * @param firstProvider
+     *          the provider that must come first.
+     * @param secondProvider
+     *          the provider that must come second.
+     * @return true, if a previously set order was removed.
+     * @throws IllegalArgumentException
+     *           if a provider is not registered in this category or if both
+     *           providers are the same.
+     */
+    public synchronized boolean unsetOrdering(Class<?> category, Object firstProvider,
+        Object secondProvider)
+    {
+      checkWritable();
+      ProviderList list = getOrderedList(category, firstProvider, secondProvider);
+      return list.removeOrdering(getRegistered(firstProvider), getRegistered(secondProvider));
+    }
+
+    /**
+     * Validates the arguments of an ordering and returns the category.
+     */
+    private ProviderList getOrderedList(Class<?> category, Object firstProvider,
+        Object secondProvider)
+    {
+      if ((firstProvider == null) || (secondProvider == null))
+      {
+        throw new IllegalArgumentException("provider should be != NULL");
+      }
+      if (firstProvider == secondProvider)
+      {
+        throw new IllegalArgumentException("providers should be different");
+      }
+      ProviderList list = lookup(category);
+      if (null == list)
+      {
+        throw new IllegalArgumentException("Unknown category: " + category);
+      }
+      if ((contains(firstProvider, category) == false)
+          || (contains(secondProvider, category) == false))
+      {
+        throw new IllegalArgumentException("provider is not registered in category: "
+            + category);
+      }
+      if (getRegistered(firstProvider) == getRegistered(secondProvider))
+      {
+        /* A provider and the descriptor it was instantiated from */
+        throw new IllegalArgumentException("providers should be different");
+      }
+      return list;
+    }
+
+    /**
+     * Adds the to named.
+     * 
+     * @param provider
+     *          the provider.
+     * @param category
+     *          the category.
+     * @return true, if successful.
+     */
+    private boolean addToNamed(Object provider, Class<?> category)
+    {
+      ProviderList list = lookup(category);
+      if (null == list)
+      {
+        throw new IllegalArgumentException("Unknown category: " + category);
+      }
+      return link(list, provider);
+    }
+
+    /**
+     * Find and add this provider to each category it implements.
+     * 
+     * @param provider
+     *          the provider.
+     * @return true, if successful.
+     */
+    private boolean findAndAdd(Object provider)
+    {
+      boolean rt = false;
+      ProviderList[] lists = getProviderCategories(provider);
+      for (int i = 0; i < lists.length; i++)
+      {
+        rt |= link(lists[i], provider);
+      }
+      return rt;
+    }
+
+    /**
+     * Returns the categories of the specified provider: the categories its
+     * class is assignable to, or for a {@link ServiceProviderDescriptor} the
+     * categories it was declared for, so that its class is not loaded. Must be
+     * called while holding the lock of this list.
+     */
+    private ProviderList[] getProviderCategories(Object provider)
+    {
+      if (provider instanceof ServiceProviderDescriptor)
+      {
+        ServiceProviderDescriptor descriptor = (ServiceProviderDescriptor) provider;
+        List<ProviderList> matches = new ArrayList<ProviderList>();
+        for (Entry<Class<?>, ProviderList> e : categories.entrySet())
+        {
+          if (descriptor.isDeclaredFor(e.getKey().getName()))
+          {
+            matches.add(e.getValue());
+          }
+        }
+        return matches.toArray(new ProviderList[matches.size()]);
+      }
+      return getAssignableCategories(provider.getClass());
+    }
+
+    /**
+     * Returns the key of the provider in the class index: its class, or its
+     * class name for a {@link ServiceProviderDescriptor}.
+     */
+    private static Object getClassKey(Object provider)
+    {
+      if (provider instanceof ServiceProviderDescriptor)
+      {
+        return ((ServiceProviderDescriptor) provider).getClassName();
+      }
+      return provider.getClass();
+    }
+
+    /**
+     * Returns the categories the specified provider class is assignable to.
+     * The result is computed once per class and cached until a new category
+     * is added. Must be called while holding the lock of this list.
+     * 
+     * @param providerClass
+     *          the provider class.
+     * @return the categories of this provider class.
+     */
+    private ProviderList[] getAssignableCategories(Class<?> providerClass)
+    {
+      ProviderList[] lists = assignableCategories.get(providerClass);
+      if (lists == null)
+      {
+        List<ProviderList> matches = new ArrayList<ProviderList>();
+        for (Entry<Class<?>, ProviderList> e : categories.entrySet())
+        {
+          if (e.getKey().isAssignableFrom(providerClass))
+          {
+            matches.add(e.getValue());
+          }
+        }
+        lists = matches.toArray(new ProviderList[matches.size()]);
+        assignableCategories.put(providerClass, lists);
+      }
+      return lists;
+    }
+
+    /**
+     * Adds the provider to the specified category, unless it is already a
+     * member of it. Must be called while holding the lock of this list.
+     * 
+     * @param list
+     *          the category to add to.
+     * @param provider
+     *          the provider.
+     * @return true if the provider was added, false if already present.
+     */
+    private boolean link(ProviderList list, Object provider)
+    {
+      ProviderEntry entry = providers.get(provider);
+      if ((entry != null) && entry.isMember(list.index))
+      {
+        return false;
+      }
+      list.append(provider);
+      enter(list, provider);
+      return true;
+    }
+
+    /**
+     * Records in the index that the provider, already published in the
+     * snapshot of the specified category, is a member of it. Must be called
+     * while holding the lock of this list.
+     * 
+     * @param list
+     *          the category the provider was added to.
+     * @param provider
+     *          the provider.
+     */
+    private void enter(ProviderList list, Object provider)
+    {
+      ProviderEntry entry = providers.get(provider);
+      if (entry == null)
+      {
+        entry = new ProviderEntry();
+        entry.setMember(list.index, true);
+        providers.put(provider, entry);
+        indexClass(provider);
+      } else
+      {
+        entry.setMember(list.index, true);
+      }
+    }
+
+    /**
+     * Removes the provider from the specified category. Must be called while
+     * holding the lock of this list.
+     * 
+     * @param list
+     *          the category to remove from.
+     * @param provider
+     *          the provider.
+     * @return true if the provider was removed, false if not present.
+     */
+    private boolean unlink(ProviderList list, Object provider)
+    {
+      ProviderEntry entry = providers.get(provider);
+      if ((entry == null) || (entry.isMember(list.index) == false))
+      {
+        return false;
+      }
+      entry.setMember(list.index, false);
+      list.removeElement(provider);
+      if (entry.isEmpty())
+      {
+        providers.remove(provider);
+        unindexClass(provider);
+      }
+      return true;
+    }
+
+    /**
+     * Returns the registered object standing for a provider: the provider
+     * itself if it is registered, else the registered descriptor it was
+     * instantiated from, or the registered instance of a descriptor. A
+     * provider registered through its descriptor can therefore be looked up,
+     * ordered and deregistered with the instance returned by lookups.
+     * 
+     * @param provider
+     *          the provider instance or descriptor.
+     * @return the registered object, or <code>null</code> if the provider is
+     *         not registered.
+     */
+    private Object getRegistered(Object provider)
+    {
+      if (providers.containsKey(provider))
+      {
+        return provider;
+      }
+      if (provider instanceof ServiceProviderDescriptor)
+      {
+        ServiceProviderDescriptor descriptor = (ServiceProviderDescriptor) provider;
+        if (descriptor.isInstantiated() && providers.containsKey(descriptor.getInstance()))
+        {
+          return descriptor.getInstance();
+        }
+        return null;
+      }
+      /* The descriptors are indexed by class name */
+      Object[] descriptors = instancesByClass.get(provider.getClass().getName());
+      if (descriptors != null)
+      {
+        for (int i = descriptors.length - 1; i >= 0; i--)
+        {
+          ServiceProviderDescriptor descriptor = (ServiceProviderDescriptor) descriptors[i];
+          if (descriptor.isInstantiated() && (descriptor.getInstance() == provider))
+          {
+            return descriptor;
+          }
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns the registered object standing for a provider, or the provider
+     * itself if it is not registered.
+     */
+    private Object getRegisteredOrSelf(Object provider)
+    {
+      Object registered = getRegistered(provider);
+      return (registered == null) ? provider : registered;
+    }
+
+    /**
+     * Checks if a provider with the specified plugin ID is registered in some
+     * category, as an instance or through a descriptor.
+     * 
+     * @param pluginId
+     *          the plugin ID.
+     * @return true if such a provider is registered.
+     * @see ServiceProviderUtilities#getPluginId
+     */
+    boolean containsPluginId(String pluginId)
+    {
+      return pluginIds.containsKey(pluginId);
+    }
+
+    /**
+     * Adds the providers of the class index to a list, if there are some.
+     */
+    private static void addAll(List<Object> list, Object[] providers)
+    {
+      if (providers != null)
+      {
+        list.addAll(Arrays.asList(providers));
+      }
+    }
+
+    /**
+     * Returns the most recently registered provider of a class key, or
+     * <code>null</code> if none is registered.
+     */
+    private Object getLatestByClass(Object key)
+    {
+      Object[] instances = instancesByClass.get(key);
+      return (instances == null) ? null : instances[instances.length - 1];
+    }
+
+    /**
+     * Adds a newly registered provider to the class index. Must be called
+     * while holding the lock of this list.
+     */
+    private void indexClass(Object provider)
+    {
+      String id = getPluginId(provider);
+      Integer count = pluginIds.get(id);
+      pluginIds.put(id, Integer.valueOf((count == null) ? 1 : count.intValue() + 1));
+      Object key = getClassKey(provider);
+      Object[] instances = instancesByClass.get(key);
+      if (instances == null)
+      {
+        instances = new Object[] { provider };
+      } else
+      {
+        Object[] grown = new Object[instances.length + 1];
+        System.arraycopy(instances, 0, grown, 0, instances.length);
+        grown[instances.length] = provider;
+        instances = grown;
+      }
+      instancesByClass.put(key, instances);
+    }
+
+    /**
+     * Removes a provider from the class index, the previously registered
+     * instance of the same class, if any, becoming the most recent one.
+     * Must be called while holding the lock of this list.
+     */
+    private void unindexClass(Object provider)
+    {
+      Object key = getClassKey(provider);
+      Object[] instances = instancesByClass.get(key);
+      int index = (instances == null) ? -1 : indexOf(instances, provider);
+      if (index < 0)
+      {
+        return;
+      }
+      String id = getPluginId(provider);
+      int count = pluginIds.get(id).intValue();
+      if (count == 1)
+      {
+        pluginIds.remove(id);
+      } else
+      {
+        pluginIds.put(id, Integer.valueOf(count - 1));
+      }
+      if (instances.length == 1)
+      {
+        instancesByClass.remove(key);
+        return;
+      }
+      Object[] shrunk = new Object[instances.length - 1];
+      System.arraycopy(instances, 0, shrunk, 0, index);
+      System.arraycopy(instances, index + 1, shrunk, index, shrunk.length - index);
+      instancesByClass.put(key, shrunk);
+    }
+
+    /**
+     * Read-only view of a snapshot that returns the provider instances,
+     * instantiating the providers registered through a descriptor when
+     * they are accessed.
+     */
+    private final class ResolvedList extends AbstractList<Object>
+    {
+      private final Object[] snapshot;
+
+      ResolvedList(Object[] snapshot)
+      {
+        this.snapshot = snapshot;
+      }
+
+      @Override
+      public Object get(int index)
+      {
+        return resolve(snapshot[index]);
+      }
+
+      @Override
+      public int size()
+      {
+        return snapshot.length;
+      }
+    }
+
+    /**
+     * Returns the index of the provider in the specified snapshot.
+     * 
+     * @param providers
+     *          the snapshot to search in.
+     * @param provider
+     *          the provider to search for.
+     * @return the index of the provider, or -1 if it is not present.
+     */
+    static int indexOf(Object[] providers, Object provider)
+    {
+      for (int i = 0; i < providers.length; i++)
+      {
+        if (provider.equals(providers[i]))
+        {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * The providers registered in a single category. The providers are kept
+     * in an immutable array that is replaced on each modification, the
+     * modification methods must be called while holding the lock of the
+     * owning service list.
+     */
+    static final class ProviderList
+    {
+      /** An empty snapshot. */
+      static final Object[] EMPTY = new Object[0];
+
+      /** The category of these providers. */
+      final Class<?> category;
+
+      /** The dense index of this category. */
+      final int index;
+
+      /** The providers in registration order, never modified once published. */
+      volatile Object[] snapshot = EMPTY;
+
+      /**
+       * The providers sorted so that they honour the ordering constraints,
+       * never modified once published.
+       */
+      volatile Object[] ordered = EMPTY;
+
+      /**
+       * The source of the epochs of all categories. Drawing them from a single
+       * counter keeps them increasing when a category is replaced, and makes
+       * the epochs of distinct categories distinct.
+       */
+      private static final AtomicLong EPOCHS = new AtomicLong();
+
+      /**
+       * The modification epoch, replaced by a greater one after each
+       * published change.
+       */
+      volatile long epoch = EPOCHS.incrementAndGet();
+
+      /**
+       * The ordering constraints, mapping each provider to the providers that
+       * must follow it. Created on the first ordering that is set.
+       */
+      Map<Object, Set<Object>> successors;
+
+      ProviderList(Class<?> category, int index)
+      {
+        this.category = category;
+        this.index = index;
+      }
+
+      /**
+       * Publishes a new snapshot with the provider appended.
+       */
+      void append(Object provider)
+      {
+        /* A new provider has no ordering constraint, so it can go last in both views */
+        ordered = appendElement(ordered, provider);
+        snapshot = appendElement(snapshot, provider);
+        epoch = EPOCHS.incrementAndGet();
+      }
+
+      /**
+       * Publishes a new snapshot with several providers appended.
+       */
+      void appendAll(Object[] providers)
+      {
+        ordered = appendElements(ordered, providers);
+        snapshot = appendElements(snapshot, providers);
+        epoch = EPOCHS.incrementAndGet();
+      }
+
+      /**
+       * Publishes a new snapshot without the provider, and drops the
+       * orderings this provider takes part in.
+       */
+      void removeElement(Object provider)
+      {
+        /* Removing a provider never invalidates the relative order of the others */
+        ordered = removeElement(ordered, provider);
+        snapshot = removeElement(snapshot, provider);
+        epoch = EPOCHS.incrementAndGet();
+        if (successors != null)
+        {
+          successors.remove(provider);
+          Iterator<Set<Object>> it = successors.values().iterator();
+          while (it.hasNext())
+          {
+            Set<Object> followers = it.next();
+            followers.remove(provider);
+            if (followers.isEmpty())
+            {
+              it.remove();
+            }
+          }
+        }
+      }
+
+      /**
+       * Adds an ordering constraint, re-sorting the ordered view only if the
+       * current one does not already honour it.
+       * 
+       * @return true if the constraint was not already set.
+       */
+      boolean addOrdering(Object first, Object second)
+      {
+        if (successors == null)
+        {
+          successors = new HashMap<Object, Set<Object>>();
+        }
+        Set<Object> followers = successors.get(first);
+        if ((followers != null) && followers.contains(second))
+        {
+          return false;
+        }
+        if (isReachable(second, first))
+        {
+          throw new IllegalArgumentException("Ordering would introduce a cycle in category: "
+              + category);
+        }
+        if (followers == null)
+        {
+          followers = new HashSet<Object>();
+          successors.put(first, followers);
+        }
+        followers.add(second);
+        Object[] current = ordered;
+        if (indexOf(current, first) > indexOf(current, second))
+        {
+          ordered = sort();
+          epoch = EPOCHS.incrementAndGet();
+        }
+        return true;
+      }
+
+      /**
+       * Removes an ordering constraint. The ordered view still honours the
+       * remaining constraints, so it is left as is.
+       * 
+       * @return true if the constraint was set.
+       */
+      boolean removeOrdering(Object first, Object second)
+      {
+        if (successors == null)
+        {
+          return false;
+        }
+        Set<Object> followers = successors.get(first);
+        if ((followers == null) || (followers.remove(second) == false))
+        {
+          return false;
+        }
+        if (followers.isEmpty())
+        {
+          successors.remove(first);
+        }
+        return true;
+      }
+
+      /**
+       * Checks if <code>to</code> must follow <code>from</code> through the
+       * current ordering constraints.
+       */
+      private boolean isReachable(Object from, Object to)
+      {
+        Set<Object> visited = new HashSet<Object>();
+        LinkedList<Object> pending = new LinkedList<Object>();
+        pending.add(from);
+        while (pending.isEmpty() == false)
+        {
+          Object node = pending.removeFirst();
+          if (node.equals(to))
+          {
+            return true;
+          }
+          Set<Object> followers = successors.get(node);
+          if ((followers != null) && visited.add(node))
+          {
+            pending.addAll(followers);
+          }
+        }
+        return false;
+      }
+
+      /**
+       * Topologically sorts the providers according to the ordering
+       * constraints, keeping registration order between unconstrained
+       * providers. The constraints are known to be acyclic.
+       */
+      private Object[] sort()
+      {
+        Object[] providers = snapshot;
+        Map<Object, Integer> positions = new HashMap<Object, Integer>();
+        for (int i = 0; i < providers.length; i++)
+        {
+          positions.put(providers[i], Integer.valueOf(i));
+        }
+        int[] inDegree = new int[providers.length];
+        for (Set<Object> followers : successors.values())
+        {
+          for (Object follower : followers)
+          {
+            inDegree[positions.get(follower).intValue()]++;
+          }
+        }
+        PriorityQueue<Integer> ready = new PriorityQueue<Integer>();
+        for (int i = 0; i < providers.length; i++)
+        {
+          if (inDegree[i] == 0)
+          {
+            ready.add(Integer.valueOf(i));
+          }
+        }
+        Object[] result = new Object[providers.length];
+        int count = 0;
+        while (ready.isEmpty() == false)
+        {
+          Object provider = providers[ready.poll().intValue()];
+          result[count++] = provider;
+          Set<Object> followers = successors.get(provider);
+          if (followers == null)
+          {
+            continue;
+          }
+          for (Object follower : followers)
+          {
+            int position = positions.get(follower).intValue();
+            if (--inDegree[position] == 0)
+            {
+              ready.add(Integer.valueOf(position));
+            }
+          }
+        }
+        return result;
+      }
+
+      private static Object[] appendElement(Object[] current, Object provider)
+      {
+        Object[] next = new Object[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = provider;
+        return next;
+      }
+
+      private static Object[] appendElements(Object[] current, Object[] providers)
+      {
+        Object[] next = new Object[current.length + providers.length];
+        System.arraycopy(current, 0, next, 0, current.length);
+        System.arraycopy(providers, 0, next, current.length, providers.length);
+        return next;
+      }
+
+      private static Object[] removeElement(Object[] current, Object provider)
+      {
+        int position = indexOf(current, provider);
+        if (position < 0)
+        {
+          return current;
+        }
+        if (current.length == 1)
+        {
+          return EMPTY;
+        }
+        Object[] next = new Object[current.length - 1];
+        System.arraycopy(current, 0, next, 0, position);
+        System.arraycopy(current, position + 1, next, position, current.length - position - 1);
+        return next;
+      }
+    }
+
+    /**
+     * The union of the providers of several categories, valid while each of
+     * these categories remains at the same epoch.
+     */
+    static final class UnionSnapshot
+    {
+      /** The categories of this union. */
+      final ProviderList[] members;
+
+      /** The epoch of each category when the union was computed. */
+      final long[] epochs;
+
+      /** The providers in category then registration order. */
+      final Object[] snapshot;
+
+      /** The providers in category then ordering order. */
+      final Object[] ordered;
+
+      UnionSnapshot(ProviderList[] members)
+      {
+        this.members = members;
+        /* The epochs must be read before the providers they validate */
+        epochs = new long[members.length];
+        for (int i = 0; i < members.length; i++)
+        {
+          epochs[i] = members[i].epoch;
+        }
+        Set<Object> providers = new LinkedHashSet<Object>();
+        Set<Object> sorted = new LinkedHashSet<Object>();
+        for (int i = 0; i < members.length; i++)
+        {
+          providers.addAll(Arrays.asList(members[i].snapshot));
+          sorted.addAll(Arrays.asList(members[i].ordered));
+        }
+        snapshot = providers.toArray();
+        ordered = sorted.toArray();
+      }
+
+      boolean isCurrent(ProviderList[] current)
+      {
+        if (current != members)
+        {
+          return false;
+        }
+        for (int i = 0; i < members.length; i++)
+        {
+          if (members[i].epoch != epochs[i])
+          {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+
+    /**
+     * The categories of a frozen list compiled into flat arrays, indexed by a
+     * two level perfect hash of the identity hash codes of the categories.
+     * The first level hashes a category to a bucket, and each bucket has its
+     * own multiplier and a size that is the square of its number of
+     * categories, chosen so that no two categories of a bucket share a slot.
+     * The multipliers are chosen so that the total number of slots stays
+     * within four times the number of categories. A category whose identity
+     * hash code is shared with another one is left out of the table, and
+     * looked up in the category map instead.
+     */
+    static final class FrozenTable
+    {
+      /** The category of each slot, or null for unused slots. */
+      final Class<?>[] keys;
+
+      /** The providers of each slot in registration order. */
+      final Object[][] providers;
+
+      /** The providers of each slot sorted according to the orderings. */
+      final Object[][] ordered;
+
+      /** The first level hash multiplier. */
+      final int multiplier;
+
+      /** The number of bits of a bucket number. */
+      final int bits;
+
+      /** The first slot of each bucket. */
+      final int[] bucketOffsets;
+
+      /** The hash multiplier of each bucket. */
+      final int[] bucketMultipliers;
+
+      /** The number of bits of a slot within each bucket. */
+      final int[] bucketBits;
+
+      FrozenTable(Collection<ProviderList> lists)
+      {
+        /* Identical hash codes cannot be told apart by any multiplier */
+        Set<Integer> seen = new HashSet<Integer>();
+        List<ProviderList> unique = new ArrayList<ProviderList>();
+        for (ProviderList list : lists)
+        {
+          if (seen.add(Integer.valueOf(System.identityHashCode(list.category))))
+          {
+            unique.add(list);
+          }
+        }
+        ProviderList[] entries = unique.toArray(new ProviderList[unique.size()]);
+        int[] hashes = new int[entries.length];
+        for (int i = 0; i < entries.length; i++)
+        {
+          hashes[i] = System.identityHashCode(entries[i].category);
+        }
+        Random random = new Random(entries.length);
+        int bucketCount = 1;
+        int b = 0;
+        while (bucketCount < entries.length)
+        {
+          bucketCount <<= 1;
+          b++;
+        }
+        bits = b;
+        /* First level: spread the categories so that the squared sizes stay small */
+        int[] bucketSizes = new int[bucketCount];
+        int seed;
+        do
+        {
+          seed = random.nextInt() | 1;
+          Arrays.fill(bucketSizes, 0);
+          for (int i = 0; i < hashes.length; i++)
+          {
+            bucketSizes[hash(hashes[i], seed, bits)]++;
+          }
+        } while (squaredSize(bucketSizes) > 4 * Math.max(entries.length, 1));
+        multiplier = seed;
+
+        /* Second level: a collision free multiplier for each bucket */
+        bucketOffsets = new int[bucketCount];
+        bucketMultipliers = new int[bucketCount];
+        bucketBits = new int[bucketCount];
+        int slots = 0;
+        for (int bucket = 0; bucket < bucketCount; bucket++)
+        {
+          int count = 0;
+          int[] members = new int[bucketSizes[bucket]];
+          for (int i = 0; i < hashes.length; i++)
+          {
+            if (hash(hashes[i], multiplier, bits) == bucket)
+            {
+              members[count++] = hashes[i];
+            }
+          }
+          int memberBits = 0;
+          while ((1 << memberBits) < count * count)
+          {
+            memberBits++;
+          }
+          int memberSeed;
+          do
+          {
+            memberSeed = random.nextInt() | 1;
+          } while (isPerfect(members, memberSeed, memberBits) == false);
+          bucketOffsets[bucket] = slots;
+          bucketMultipliers[bucket] = memberSeed;
+          bucketBits[bucket] = memberBits;
+          slots += 1 << memberBits;
+        }
+
+        keys = new Class<?>[slots];
+        providers = new Object[slots][];
+        ordered = new Object[slots][];
+        for (int i = 0; i < entries.length; i++)
+        {
+          int slot = slot(hashes[i]);
+          keys[slot] = entries[i].category;
+          providers[slot] = entries[i].snapshot;
+          ordered[slot] = entries[i].ordered;
+        }
+      }
+
+      /**
+       * Returns the slot of the specified category, or -1 if it is not a
+       * category of this table.
+       */
+      int slot(Class<?> category)
+      {
+        int slot = slot(System.identityHashCode(category));
+        return (keys[slot] == category) ? slot : -1;
+      }
+
+      private int slot(int hash)
+      {
+        int bucket = hash(hash, multiplier, bits);
+        return bucketOffsets[bucket] + hash(hash, bucketMultipliers[bucket], bucketBits[bucket]);
+      }
+
+      /**
+       * Multiplicative hash of the specified number of bits.
+       */
+      private static int hash(int hash, int multiplier, int bits)
+      {
+        return (int) (((hash * multiplier) & 0xFFFFFFFFL) >>> (32 - bits));
+      }
+
+      private static int squaredSize(int[] bucketSizes)
+      {
+        int total = 0;
+        for (int i = 0; i < bucketSizes.length; i++)
+        {
+          total += bucketSizes[i] * bucketSizes[i];
+        }
+        return total;
+      }
+
+      private static boolean isPerfect(int[] hashes, int multiplier, int bits)
+      {
+        BitSet used = new BitSet(1 << bits);
+        for (int i = 0; i < hashes.length; i++)
+        {
+          int slot = hash(hashes[i], multiplier, bits);
+          if (used.get(slot))
+          {
+            return false;
+          }
+          used.set(slot);
+        }
+        return true;
+      }
+    }
+
+    /**
+     * The membership of a registered provider: the bitset of the indexes of
+     * the categories it belongs to. The bitset is replaced
+     * on each modification so that it can be read without locking, the
+     * modification methods must be called while holding the lock of the
+     * owning service list.
+     */
+    static final class ProviderEntry
+    {
+      /** An empty bitset. */
+      static final long[] NONE = new long[0];
+
+      /** The bitset of category indexes, never modified once published. */
+      volatile long[] bits = NONE;
+
+      boolean isMember(int index)
+      {
+        long[] current = bits;
+        int word = index >>> 6;
+        return (word < current.length) && ((current[word] & (1L << index)) != 0);
+      }
+
+      void setMember(int index, boolean member)
+      {
+        long[] current = bits;
+        int word = index >>> 6;
+        long[] next;
+        if (word < current.length)
+        {
+          next = current.clone();
+        } else if (member)
+        {
+          next = new long[word + 1];
+          System.arraycopy(current, 0, next, 0, current.length);
+        } else
+        {
+          return;
+        }
+        if (member)
+        {
+          next[word] |= (1L << index);
+        } else
+        {
+          next[word] &= ~(1L << index);
+        }
+        bits = next;
+      }
+
+      /**
+       * Returns the indexes of the categories of this provider.
+       */
+      int[] indexes()
+      {
+        long[] current = bits;
+        int count = 0;
+        for (int i = 0; i < current.length; i++)
+        {
+          count += Long.bitCount(current[i]);
+        }
+        int[] result = new int[count];
+        count = 0;
+        for (int i = 0; i < current.length; i++)
+        {
+          long word = current[i];
+          while (word != 0)
+          {
+            result[count++] = (i << 6) + Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+          }
+        }
+        return result;
+      }
+
+      boolean isEmpty()
+      {
+        long[] current = bits;
+        for (int i = 0; i < current.length; i++)
+        {
+          if (current[i] != 0)
+          {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+
+  }
+
+  /**
+   * Returns a list of all service providers, both searched through the class
+   * loader implementing the specified categories, as well as those which are
+   * manually registered. The providers found through the class loader are
+   * registered as {@link ServiceProviderDescriptor} objects, and are only
+   * instantiated when first returned by a lookup.
+   * 
+   * @param serviceRegistry
+   *          [in] Service registry that will be used to lookup loaded dynamically
+   *          loaded service providers.
+   * @param additionalProviders
+   *          [in] A list of additional service providers specifically defined
+   *          by the developer to be returned.
+   * @param categories
+   *          [in] The categories to look for for dynamically loaded service
+   *          providers.
+   * @return A list of all service providers.
+   */
+  public static ServiceList getProviders(ServiceRegistry serviceRegistry,
+      Object[] additionalProviders, Class categories[])
+  {
+    ServiceList serviceList = new ServiceList();
+    for (int i = 0; i < categories.length; i++)
+    {
+      serviceList.addCategory(categories[i]);
+    }
+
+    /* Lookup all non-registered plugins first, they are only instantiated when used. */
+    Iterator iterator = ServiceRegistry.lookupProviderDescriptors(categories, null);
+    while (iterator.hasNext())
+    {
+      Object provider = iterator.next();
+      serviceList.addProvider(provider, null);
     }
 
     /* Lookup for all registered plugins. */
@@ -435,14 +2397,20 @@ public class ServiceProviderUtilities
    * @param dataType
    *          [in] The expected datatype.
    * @param value
-   *          [in] The actual value
+   *          [in] The actual value, or null, which is accepted for every
+   *          datatype so that a property can be unset.
    * @return The value converted to the expected datatype.
    * @throws IllegalArgumentException
    *           In case the value cannot be converted to the expected datatype or
    *           value is not valid.
+   * @see PropertyValidator
    */
   public static Object validateValue(Object dataType, Object value) throws IllegalArgumentException
   {
+    if (value == null)
+    {
+      return null;
+    }
     boolean valid = false;
     /* Choice of integers */
     if (dataType instanceof Integer[])
@@ -452,7 +2420,7 @@ public class ServiceProviderUtilities
       {
       } else if (value instanceof String)
       {
-        value = new Integer((String) value);
+        value = Integer.valueOf((String) value);
       } else
       {
         throw new IllegalArgumentException("value must of type Integer or String");
@@ -478,7 +2446,7 @@ public class ServiceProviderUtilities
         valid = true;
       } else if (value instanceof String)
       {
-        value = new Integer((String) value);
+        value = Integer.valueOf((String) value);
       } else
       {
         throw new IllegalArgumentException("value must of type Integer or String");
@@ -530,9 +2498,94 @@ public class ServiceProviderUtilities
         throw new IllegalArgumentException("value must of type Boolean");
       }
     }
+    /* A URI or URL value */
+    if ((dataType instanceof URI) && ((value instanceof URI) == false))
+    {
+      throw new IllegalArgumentException("value must of type URI");
+    }
+    if ((dataType instanceof URL) && ((value instanceof URL) == false))
+    {
+      throw new IllegalArgumentException("value must of type URL");
+    }
     return value;
   }
 
+  /**
+   * Sets a property of a configurable service provider, after validating and
+   * converting the value with the {@link PropertyValidator} of the property.
+   * 
+   * @param provider
+   *          [in] The service provider to configure.
+   * @param name
+   *          [in] The property name.
+   * @param value
+   *          [in] The value.
+   * @throws IllegalArgumentException
+   *           If the property name is not recognized or the value is not
+   *           valid, the property is then not set.
+   */
+  public static void setProperty(ServiceConfiguration provider, String name, Object value)
+      throws IllegalArgumentException
+  {
+    provider.setProperty(name, validateProperty(provider, name, value));
+  }
+
+  /**
+   * Validates and converts the value of a property with its
+   * {@link PropertyValidator}, naming the property in the error raised.
+   */
+  private static Object validateProperty(ServiceConfiguration provider, String name, Object value)
+      throws IllegalArgumentException
+  {
+    try
+    {
+      return PropertyValidator.getValidator(provider, name).validate(value);
+    } catch (IllegalArgumentException ex)
+    {
+      IllegalArgumentException error = new IllegalArgumentException("Invalid value of property "
+          + name + ": " + ex.getMessage());
+      error.initCause(ex);
+      throw error;
+    }
+  }
+
+  /**
+   * Sets several properties of a configurable service provider at once. All
+   * the values are validated and converted with the {@link PropertyValidator}
+   * of their property before any of them is set, so that no property is
+   * modified if one of the values is invalid.
+   * 
+   * @param provider
+   *          [in] The service provider to configure.
+   * @param values
+   *          [in] The values, by property name, set in the iteration order of
+   *          the map.
+   * @throws IllegalArgumentException
+   *           If a property name is not recognized or a value is not valid,
+   *           no property is then set, or if the provider rejects a value,
+   *           the properties before it are then set. Providers implementing
+   *           {@link VersionedConfiguration} receive all the values in one
+   *           call and publish them in a single snapshot.
+   */
+  public static void setProperties(ServiceConfiguration provider, Map<String, ?> values)
+      throws IllegalArgumentException
+  {
+    Map<String, Object> converted = new LinkedHashMap<String, Object>();
+    for (Entry<String, ?> e : values.entrySet())
+    {
+      converted.put(e.getKey(), validateProperty(provider, e.getKey(), e.getValue()));
+    }
+    if (provider instanceof VersionedConfiguration)
+    {
+      ((VersionedConfiguration) provider).setProperties(converted);
+      return;
+    }
+    for (Entry<String, Object> e : converted.entrySet())
+    {
+      provider.setProperty(e.getKey(), e.getValue());
+    }
+  }
+
   /**
    * This is a general purpose utility that permits to load a service list from
    * disk for a specific category and returns the available services, as well as
@@ -567,6 +2620,9 @@ public class ServiceProviderUtilities
    *     as the first non blank character</li>
    *   <li>The name of the file is the actual category name.</li>
    * </ul>
+   * Lines without a key-value separator are ignored, and only the first line
+   * of a plugin ID is used. The changes recorded in the journal of the file
+   * by a {@link ServiceListJournal} are replayed over it.
    * 
    * @param directory
    *          [in] The directory where the configuration data will be loaded from.
@@ -585,95 +2641,112 @@ public class ServiceProviderUtilities
   public static void loadServiceList(File directory, ServiceList list, ServiceRegistry registry,
       Object[] additionalProviders, Class category)
   {
-
-    String s;
-    String className;
-    boolean enabled;
-    boolean found;
-    Vector additionalProvider = new Vector();
-    Vector<String[]> config = new Vector<String[]>();
     ServiceList foundPluginList = ServiceProviderUtilities.getProviders(registry,
         additionalProviders, new Class[] { category });
-    File fileList = new File(directory, category.getName()
-        + ".properties");
-    if (fileList.exists() == false)
+    loadServiceList(directory, foundPluginList, list, registry, category);
+  }
+
+  /**
+   * Loads the service lists of several categories from disk, like
+   * {@link #loadServiceList(File, ServiceList, ServiceRegistry, Object[], Class)}
+   * for each of them, but discovers the available providers of all the
+   * categories in a single pass.
+   * 
+   * @param directory
+   *          [in] The directory where the configuration data will be loaded from.
+   * @param list
+   *          [in,out] The populated service list of all available services discovered,
+   *          ordered from the order on disk.
+   * @param registry
+   *          [in,out] The populated registry of all services that were activated in the
+   *          configuration files.
+   * @param additionalProviders
+   *          [in] additional providers to add when listing available services, in
+   *          each of the categories they implement, this can be an empty array,
+   *          if there are none.
+   * @param categories
+   *          [in] The categories of the services, each one has its own
+   *          configuration file.
+   */
+  public static void loadServiceLists(File directory, ServiceList list, ServiceRegistry registry,
+      Object[] additionalProviders, Class categories[])
+  {
+    ServiceList foundPluginList = ServiceProviderUtilities.getProviders(registry,
+        additionalProviders, categories);
+    for (int i = 0; i < categories.length; i++)
     {
-      saveServiceList(directory, foundPluginList, registry, category);
+      loadServiceList(directory, foundPluginList, list, registry, categories[i]);
     }
+  }
 
-    try
+  /**
+   * Loads the service list of a category from disk, from the already
+   * discovered providers. The discovered providers are indexed by plugin ID,
+   * and each entry of the configuration, the snapshot with its journal
+   * replayed, is then looked up in this index, so that the providers are
+   * added in the order of the configuration. Malformed lines and entries
+   * naming unavailable providers are skipped.
+   */
+  private static void loadServiceList(File directory, ServiceList foundPluginList,
+      ServiceList list, ServiceRegistry registry, Class category)
+  {
+    if ((ServiceListJournal.getSnapshotFile(directory, category).exists() == false)
+        && (ServiceListJournal.getJournalFile(directory, category).exists() == false))
     {
-      Reader reader = new FileReader(fileList);
-      BufferedReader fileReader = new BufferedReader(reader);
+      saveServiceList(directory, foundPluginList, registry, category);
+    }
 
-      /* Read plugin list configuration file */
-      while ((s = fileReader.readLine()) != null)
+    /** Index all plugin list items that actually exist, without instantiating them */
+    Map<String, Object> available = new LinkedHashMap<String, Object>();
+    Iterator it = foundPluginList.getRegisteredProviders(category);
+    while (it.hasNext())
+    {
+      Object provider = it.next();
+      String pluginId = getPluginId(provider);
+      if (available.containsKey(pluginId) == false)
       {
-        String s1 = s.trim();
-        /* Supported comment charaters as first non-blacnk character in the
-         * properties file 
-         */
-        if (s1.startsWith("!") || s1.startsWith("#"))
-        {
-            continue;
-        }
-        String[] tokens = s.split("=");
-        /* Get the class name and enabled state */
-        config.add(tokens);
+        available.put(pluginId, provider);
       }
+    }
 
-      /** Go through all plugin list items that actually exist */
-      Iterator it = foundPluginList.getProviders(category);
-      while (it.hasNext())
+    try
+    {
+      ServiceListJournal journal = ServiceListJournal.getInstance(directory, category);
+      for (Iterator<Entry<String, Boolean>> entries = journal.getEntries().entrySet().iterator(); entries
+          .hasNext();)
       {
-        Object provider = it.next();
-        found = false;
-        /* Now add all known entries that were present in the configuration list in the correct order */
-        for (int i = 0; i < config.size(); i++)
+        Entry<String, Boolean> entry = entries.next();
+        /* The provider is only added once */
+        Object provider = available.remove(entry.getKey());
+        if (provider == null)
         {
-          /* Get the class name and enabled state */
-          String[] tokens = config.elementAt(i);
-          className = tokens[0];
-          enabled = Boolean.parseBoolean(tokens[1]);
-          /* Found ? */
-          if (className.equals(provider.getClass().getName()))
-          {
-            list.addProvider(provider, category);
-            if (enabled == true)
-            {
-              registry.registerServiceProvider(provider, category);
-            }
-            found = true;
-            /* Go to next provider */
-            break;
-          }
-        } /* end for loop */
-
-        /** If not found, add to list of things to add at end. */
-        if (found == false)
+          continue;
+        }
+        list.addProvider(provider, category);
+        if (entry.getValue().booleanValue())
         {
-          additionalProvider.add(provider);
+          registry.registerServiceProvider(provider, category);
         }
       }
-      fileReader.close();
-      reader.close();
-
-      /**
-       * All additional discovered providers which are not in the configuration
-       * list.
-       */
-      for (int i = 0; i < additionalProvider.size(); i++)
-      {
-        list.addProvider(additionalProvider.elementAt(i), category);
-      }
     } catch (IOException e)
     {
-      e.printStackTrace();
+      Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+          "Cannot read the service list of " + category.getName(), e);
     }
 
+    /**
+     * All additional discovered providers which are not in the configuration
+     * list.
+     */
+    for (Iterator<Object> providers = available.values().iterator(); providers.hasNext();)
+    {
+      list.addProvider(providers.next(), category);
+    }
   }
 
-  /** Saves the service list to a file, saving it in registry order.
+  /** Saves the service list to a file, saving it in registry order. The
+   *  file is replaced atomically, and the journal of the changes made to the
+   *  previous file, if any, is discarded.
    *
    * @param directory
    *          [in] The directory where the configuration data will be saved to.
@@ -685,41 +2758,69 @@ public class ServiceProviderUtilities
    *          [in] The categories of the services.
    *
    * @see #loadServiceList
+   * @see ServiceListJournal
    */
   public static void saveServiceList(File directory, ServiceList list, ServiceRegistry registry,
       Class category)
   {
-    try
+    Map<String, Boolean> entries = new LinkedHashMap<String, Boolean>();
+    Iterator it = list.getRegisteredProviders(category);
+    /* Check if it is in the registry. */
+    while (it.hasNext())
     {
-      File fileList = new File(directory, category.getName()
-          + ".properties");
-      Writer writer = new FileWriter(fileList);
-      BufferedWriter fileWriter = new BufferedWriter(writer);
-
-      Iterator it = list.getProviders(category);
-      /* Check if it is in the registry. */
-      while (it.hasNext())
+      Object provider = it.next();
+      String s = getPluginId(provider);
+      if (entries.containsKey(s) == false)
       {
-        Object provider = it.next();
-        String s = provider.getClass().getName();
-        if (registry.contains(provider, category))
-        {
-          s = s + "=" + Boolean.TRUE.toString();
-        } else
-        {
-          s = s + "=" + Boolean.FALSE.toString();
-        }
-        fileWriter.write(s + "\n");
+        entries.put(s, Boolean.valueOf(registry.contains(provider, category)));
       }
-      fileWriter.close();
-      writer.close();
+    }
+    try
+    {
+      ServiceListJournal.getInstance(directory, category).replace(entries);
     } catch (IOException e)
     {
-      e.printStackTrace();
+      Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+          "Cannot save the service list of " + category.getName(), e);
     }
   }
   
   
+  /** The default plugins directory, relative to the working directory of the
+   *  application. */
+  public static final File PLUGINS_DIRECTORY = new File("../plugins");
+
+  /** Discovery mode where each plugin directory has its own class loader
+   *  and is searched in a separate service loader pass. */
+  public static final int DISCOVERY_SEPARATE_LOADERS = 0;
+  /** Discovery mode where all plugin jars share a single class loader searched
+   *  in one service loader pass. */
+  public static final int DISCOVERY_SHARED_LOADER = 1;
+
+  /** The class loader shared by all plugin jars, or null if not created yet. */
+  private static URLClassLoader pluginClassLoader;
+  /** The path, size and modification time of each jar of the shared class
+   *  loader, by path. */
+  private static Map<String, String> pluginClassLoaderJars;
+
+  /** The threads listing the plugin directories, one per directory. They are
+   *  reused across calls and stop once idle. */
+  private static final ThreadPoolExecutor directoryScanner = new ThreadPoolExecutor(3, 3, 30,
+      TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+      {
+        public Thread newThread(Runnable r)
+        {
+          Thread thread = new Thread(r, "plugin-directory-scanner");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  static
+  {
+    directoryScanner.allowCoreThreadTimeOut(true);
+  }
+
   /** Uses the service loader to load and instantiate all service providers
    *  that conform to the specified interface. Contrary to the standard 
    *  {@link java.util.ServiceLoader} class, this automatically searches
@@ -732,6 +2833,12 @@ public class ServiceProviderUtilities
    *  
    *  This is based on the application being run.
    *  
+   *  When the same plugin, as identified by {@link #getPluginId(Object)}, is
+   *  found several times, only the copy with the highest version, as returned
+   *  by {@link #getPackedPluginVersion(Object)}, is instantiated and
+   *  returned; on equal versions the first one in search order is kept. If
+   *  that copy cannot be instantiated, the next one in this order is used.
+   *  
    * @param provider The service interface that needs to be searched 
    *   for.
    * @return List of service providers implementing the specified
@@ -739,108 +2846,367 @@ public class ServiceProviderUtilities
    */
   public static <S> List<S> loadServiceProviders(Class<S> provider)
   {
-    ServiceLoader<S> sl;
-    Iterator<S> apit;
-    File loc;
+    return loadServiceProviders(provider, DISCOVERY_SEPARATE_LOADERS);
+  }
 
-    Vector<S> exporter = new Vector<S>();
+  /** Loads and instantiates all service providers that conform to the
+   *  specified interface from the plugin directories, as described in
+   *  {@link #loadServiceProviders(Class)}, using the specified discovery mode.
+   *  
+   *  In the {@link #DISCOVERY_SHARED_LOADER} mode, the jars are ordered by
+   *  directory (bin, lib, then the plugins directory) and then by name, and
+   *  the class loader is reused across calls as long as the plugin jars and
+   *  their sizes and modification times are unchanged, so that classes
+   *  shared by several plugins are only defined once.
+   *  
+   * @param provider The service interface that needs to be searched 
+   *   for.
+   * @param discoveryMode {@link #DISCOVERY_SEPARATE_LOADERS} or 
+   *   {@link #DISCOVERY_SHARED_LOADER}.
+   * @return List of service providers implementing the specified
+   *   provider interface.
+   * @throws IllegalArgumentException If the discovery mode is invalid.
+   */
+  public static <S> List<S> loadServiceProviders(Class<S> provider, int discoveryMode)
+  {
+    return loadServiceProviders(provider, PLUGINS_DIRECTORY, discoveryMode);
+  }
 
-    loc = new File("../plugins/bin");
-    if (loc.exists())
+  /** Loads and instantiates all service providers that conform to the
+   *  specified interface from the plugin directories of the specified
+   *  plugins directory, like {@link #loadServiceProviders(Class, int)}.
+   *  
+   * @param provider The service interface that needs to be searched 
+   *   for.
+   * @param pluginsDirectory The root plugins directory, searched along with
+   *   its <code>bin</code> and <code>lib</code> subdirectories.
+   * @param discoveryMode {@link #DISCOVERY_SEPARATE_LOADERS} or 
+   *   {@link #DISCOVERY_SHARED_LOADER}.
+   * @return List of service providers implementing the specified
+   *   provider interface.
+   * @throws IllegalArgumentException If the discovery mode is invalid.
+   */
+  public static <S> List<S> loadServiceProviders(Class<S> provider, File pluginsDirectory,
+      int discoveryMode)
+  {
+    Vector<S> exporter = new Vector<S>();
+    if (discoveryMode == DISCOVERY_SHARED_LOADER)
     {
-      File[] flist = loc.listFiles(new FileFilter()
+      File[] flist = listPluginJars(pluginsDirectory);
+      if (flist != null)
       {
-        public boolean accept(File file)
+        ClassLoader loader = getPluginClassLoader(flist);
+        List<PluginJar> jars = new ArrayList<PluginJar>();
+        for (int i = 0; i < flist.length; i++)
         {
-          return file.getPath().toLowerCase().endsWith(".jar");
+          try
+          {
+            jars.add(PluginJar.scan(flist[i]));
+          } catch (IOException e)
+          {
+            Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+                "Cannot read plugin " + flist[i], e);
+          }
         }
-      });
-      URL[] urls = new URL[flist.length];
+        List<ServiceProviderDescriptor> descriptors = toList(ServiceRegistry
+            .lookupProviderDescriptors(provider, loader.getParent()));
+        describePluginJars(provider, jars, loader, descriptors);
+        instantiateLatest(provider, descriptors, exporter);
+      }
+      logLoadedProviders(exporter);
+      return exporter;
+    }
+    if (discoveryMode != DISCOVERY_SEPARATE_LOADERS)
+    {
+      throw new IllegalArgumentException("Invalid discovery mode: " + discoveryMode);
+    }
+
+    /* Duplicate plugins are only known once all directories are searched */
+    List<ServiceProviderDescriptor> descriptors = new ArrayList<ServiceProviderDescriptor>();
+    File[] directories = getPluginDirectories(pluginsDirectory);
+    for (int j = 0; j < directories.length; j++)
+    {
+      File loc = directories[j];
+      if (loc.exists() == false)
+      {
+        continue;
+      }
+      File[] flist = listJarFiles(loc);
+      List<URL> urls = new ArrayList<URL>(flist.length);
       for (int i = 0; i < flist.length; i++)
         try
         {
-          urls[i] = flist[i].toURI().toURL();
+          urls.add(flist[i].toURI().toURL());
         } catch (MalformedURLException e)
         {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
+          /* Skipped, a null location would fail the whole class loader */
+          Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+              "Invalid plugin location " + flist[i], e);
         }
-      URLClassLoader ucl = new URLClassLoader(urls);
+      URLClassLoader ucl = new URLClassLoader(urls.toArray(new URL[urls.size()]));
+
+      /* Find those in the plugins directory */
+      Iterator<ServiceProviderDescriptor> it = ServiceRegistry.lookupProviderDescriptors(provider,
+          ucl);
+      while (it.hasNext())
+        descriptors.add(it.next());
+    }
+
+    instantiateLatest(provider, descriptors, exporter);
+    logLoadedProviders(exporter);
+    return exporter;
+  }
+
+  /** Loads and instantiates all service providers that conform to the
+   *  specified interface from the plugin directories, like
+   *  {@link #loadServiceProviders(Class)}, but reads the provider
+   *  declarations of the plugin jars from a persistent discovery index.
+   *  
+   *  Jars that are unchanged since the index was last saved are not opened,
+   *  only new or modified jars are scanned, and the index is saved again if
+   *  any jar had to be scanned. Providers declared on the application class
+   *  path are returned once, before those of the plugin directories.
+   *  
+   * @param provider The service interface that needs to be searched 
+   *   for.
+   * @param index The discovery index of the plugin jars.
+   * @return List of service providers implementing the specified
+   *   provider interface.
+   */
+  public static <S> List<S> loadServiceProviders(Class<S> provider, ServiceDiscoveryIndex index)
+  {
+    Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    Vector<S> exporter = new Vector<S>();
+
+    File[] flist = listPluginJars(PLUGINS_DIRECTORY);
+    if (flist == null)
+    {
+      logLoadedProviders(exporter);
+      return exporter;
+    }
+
+    /* Providers of the class path */
+    List<ServiceProviderDescriptor> descriptors = toList(ServiceRegistry
+        .lookupProviderDescriptors(provider, ClassLoader.getSystemClassLoader()));
 
-      /* Load those in the plugins directory */
-      sl = ServiceLoader.load(provider, ucl);
-      apit = sl.iterator();
-      while (apit.hasNext())
+    List<PluginJar> jars = new ArrayList<PluginJar>();
+    for (int i = 0; i < flist.length; i++)
+    {
+      try
+      {
+        jars.add(index.resolve(flist[i]));
+      } catch (IOException e)
       {
-        exporter.add(apit.next());
+        logger.log(Level.WARNING, "Cannot read plugin " + flist[i], e);
       }
     }
+    describePluginJars(provider, jars, getPluginClassLoader(flist), descriptors);
+    instantiateLatest(provider, descriptors, exporter);
+
+    try
+    {
+      index.save();
+    } catch (IOException e)
+    {
+      logger.log(Level.WARNING, "Cannot save discovery index", e);
+    }
+    logLoadedProviders(exporter);
+    return exporter;
+  }
 
-    loc = new File("../plugins/lib");
-    if (loc.exists())
+  /** Returns the directories searched for plugin jars, in search order.
+   *
+   * @param pluginsDirectory The root plugins directory.
+   * @return The <code>bin</code> and <code>lib</code> subdirectories and the
+   *   root plugins directory.
+   */
+  static File[] getPluginDirectories(File pluginsDirectory)
+  {
+    return new File[] { new File(pluginsDirectory, "bin"), new File(pluginsDirectory, "lib"),
+        pluginsDirectory };
+  }
+
+  /** Returns the jar files of a directory.
+   *
+   * @param directory The directory.
+   * @return The jar files, an empty array if the directory cannot be listed.
+   */
+  static File[] listJarFiles(File directory)
+  {
+    File[] flist = directory.listFiles(new FileFilter()
     {
-      File[] flist = loc.listFiles(new FileFilter()
+      public boolean accept(File file)
       {
-        public boolean accept(File file)
-        {
-          return file.getPath().toLowerCase().endsWith(".jar");
-        }
-      });
-      URL[] urls = new URL[flist.length];
-      for (int i = 0; i < flist.length; i++)
-        try
-        {
-          urls[i] = flist[i].toURI().toURL();
-        } catch (MalformedURLException e)
+        return file.getPath().toLowerCase().endsWith(".jar");
+      }
+    });
+    return (flist == null) ? new File[0] : flist;
+  }
+
+  /** Lists the jar files of all plugin directories concurrently.
+   *
+   * @param pluginsDirectory The root plugins directory.
+   * @return The jar files ordered by directory, as returned by
+   *   {@link #getPluginDirectories(File)}, and then by name, or null
+   *   if none of the plugin directories exists.
+   */
+  public static File[] listPluginJars(File pluginsDirectory)
+  {
+    File[] directories = getPluginDirectories(pluginsDirectory);
+    List<Future<File[]>> listings = new ArrayList<Future<File[]>>(directories.length);
+    for (int i = 0; i < directories.length; i++)
+    {
+      final File directory = directories[i];
+      try
+      {
+        listings.add(directoryScanner.submit(new Callable<File[]>()
         {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
-        }
-      URLClassLoader ucl = new URLClassLoader(urls);
+          public File[] call()
+          {
+            return listSortedJarFiles(directory);
+          }
+        }));
+      } catch (RejectedExecutionException e)
+      {
+        /* Listed on the calling thread below */
+        listings.add(null);
+      }
+    }
+
+    List<File> result = new ArrayList<File>();
+    boolean found = false;
+    for (int i = 0; i < directories.length; i++)
+    {
+      File[] flist;
+      try
+      {
+        flist = (listings.get(i) == null) ? listSortedJarFiles(directories[i]) : listings.get(i)
+            .get();
+      } catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        flist = listSortedJarFiles(directories[i]);
+      } catch (ExecutionException e)
+      {
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+            "Cannot list plugin directory " + directories[i], e.getCause());
+        flist = null;
+      }
+      if (flist != null)
+      {
+        found = true;
+        result.addAll(Arrays.asList(flist));
+      }
+    }
+    return found ? result.toArray(new File[result.size()]) : null;
+  }
+
+  /** Returns the jar files of a directory sorted by name, or null if the
+   *  directory does not exist.
+   */
+  private static File[] listSortedJarFiles(File directory)
+  {
+    if (directory.exists() == false)
+    {
+      return null;
+    }
+    File[] flist = listJarFiles(directory);
+    Arrays.sort(flist);
+    return flist;
+  }
 
-      /* Load those in the plugins directory */
-      sl = ServiceLoader.load(provider, ucl);
-      apit = sl.iterator();
-      while (apit.hasNext())
-        exporter.add(apit.next());
+  /** Returns the class loader shared by all plugin jars. The current loader
+   *  is reused if it was created for the same jars, in the same order, with
+   *  the same sizes and modification times, so that plugin classes are not
+   *  defined again on each discovery.
+   *
+   *  A jar replaced under the same name makes the current loader serve the
+   *  previous, or a corrupted, content, so a new loader is then created. The
+   *  previous loader is never closed: the providers it loaded may still be
+   *  registered and load their classes lazily. It is released, with its
+   *  open jar files, once these providers are no longer reachable.
+   *
+   * @param jars The plugin jars, in search order.
+   * @return The plugin class loader.
+   */
+  static synchronized ClassLoader getPluginClassLoader(File[] jars)
+  {
+    Map<String, String> fingerprints = new LinkedHashMap<String, String>();
+    for (int i = 0; i < jars.length; i++)
+    {
+      fingerprints.put(jars[i].getAbsolutePath(), jars[i].length() + ","
+          + jars[i].lastModified());
+    }
+    URL[] urls = toURLs(jars);
+    if ((pluginClassLoader != null) && Arrays.equals(pluginClassLoader.getURLs(), urls)
+        && fingerprints.equals(pluginClassLoaderJars))
+    {
+      return pluginClassLoader;
     }
+    pluginClassLoader = new URLClassLoader(urls);
+    pluginClassLoaderJars = fingerprints;
+    return pluginClassLoader;
+  }
 
-    loc = new File("../plugins");
-    if (loc.exists())
+  /** Returns the URLs of the specified files.
+   */
+  static URL[] toURLs(File[] files)
+  {
+    List<URL> urls = new ArrayList<URL>(files.length);
+    for (int i = 0; i < files.length; i++)
     {
-      File[] flist = loc.listFiles(new FileFilter()
+      try
       {
-        public boolean accept(File file)
-        {
-          return file.getPath().toLowerCase().endsWith(".jar");
-        }
-      });
-      URL[] urls = new URL[flist.length];
-      for (int i = 0; i < flist.length; i++)
-        try
-        {
-          urls[i] = flist[i].toURI().toURL();
-        } catch (MalformedURLException e)
-        {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
-        }
-      URLClassLoader ucl = new URLClassLoader(urls);
+        urls.add(files[i].toURI().toURL());
+      } catch (MalformedURLException e)
+      {
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+            "Invalid plugin location " + files[i], e);
+      }
+    }
+    return urls.toArray(new URL[urls.size()]);
+  }
 
-      /* Load those in the plugins directory */
-      sl = ServiceLoader.load(provider, ucl);
-      apit = sl.iterator();
-      while (apit.hasNext())
-        exporter.add(apit.next());
+  /** Loads and instantiates a provider class declared for a service.
+   *
+   * @param provider The service interface.
+   * @param className The provider class name.
+   * @param loader The class loader of the provider.
+   * @return The provider instance, or <code>null</code> if the provider cannot be
+   *   instantiated, in which case the error is logged.
+   */
+  static <S> S instantiate(Class<S> provider, String className, ClassLoader loader)
+  {
+    try
+    {
+      Class<?> c = Class.forName(className, false, loader);
+      if (provider.isAssignableFrom(c) == false)
+      {
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).warning(
+            "Provider " + className + " is not a subtype of " + provider.getName());
+        return null;
+      }
+      return provider.cast(c.newInstance());
+    } catch (Exception e)
+    {
+      Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+          "Provider " + className + " could not be instantiated", e);
+    } catch (LinkageError e)
+    {
+      Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+          "Provider " + className + " could not be loaded", e);
     }
+    return null;
+  }
 
-    /* Dump all exporter plugins */
+  /** Dump all loaded plugins. */
+  private static void logLoadedProviders(List<?> exporter)
+  {
     Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
     for (int i = 0; i < exporter.size(); i++)
     {
       logger.info("Loaded " + exporter.get(i).getClass().getName() + " plugin.");
     }
-    return exporter;
   }
 
 
@@ -0,0 +1,57 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/   
+package org.plugin;
+
+import java.util.Collections;
+import java.util.Map;
+
+/** Exception raised when one or more service providers of a batch
+ *  could not be registered or activated. Each failure is reported
+ *  with the provider it concerns, the other providers of the batch
+ *  are not affected.
+ *  
+ * @author Carl Eric Codere
+ *
+ */
+public class ServiceRegistrationException extends ServiceProviderException
+{
+  private static final long serialVersionUID = 1L;
+
+  /** The failures, keyed by provider. */
+  private final Map<Object, Throwable> failures;
+
+  public ServiceRegistrationException(String msg, Map<Object, Throwable> failures)
+  {
+    super(INTERNAL_ERROR, msg + " (" + failures.size() + " failure(s))");
+    this.failures = Collections.unmodifiableMap(failures);
+    if (failures.isEmpty() == false)
+    {
+      initCause(failures.values().iterator().next());
+    }
+  }
+
+  /** Returns the failures of this batch. Each key is a service provider,
+   *  or the plugin ID of the provider if it could not be instantiated,
+   *  and each value is the error it raised.
+   * 
+   * @return The failures, in the order in which the providers were
+   *  submitted.
+   */
+  public Map<Object, Throwable> getFailures()
+  {
+    return failures;
+  }
+
+}
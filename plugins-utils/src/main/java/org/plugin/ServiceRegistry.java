@@ -19,13 +19,47 @@
  */
 package org.plugin;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.ServiceConfigurationError;
 import java.util.ServiceLoader;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.plugin.ServiceProviderUtilities.ServiceList;
+import org.plugin.index.ServiceProviderIndex;
+import org.plugin.spi.DependentService;
 import org.plugin.spi.RegisterableService;
+import org.plugin.spi.WarmableService;
 
 /**
  * The ServiceRegistry class provides ability to register, deregister, look up
@@ -35,9 +69,23 @@ import org.plugin.spi.RegisterableService;
  * Each category is defined by a class or interface. Only a single instance of a
  * each class is allowed to be registered as a category.
  * 
+ * Lookups may also be made by any supertype of the registered categories, for
+ * example by a common parent interface, in which case the providers of all the
+ * categories that are subtypes of it are returned.
+ * 
  * Service providers should be lightweight and should rely on as little dependencies
  * as possible. 
  * 
+ * The registry may be shared between threads: lookups read an immutable
+ * snapshot of each category without any locking, while registrations and
+ * deregistrations atomically publish a new snapshot. An iterator obtained
+ * from a lookup is never affected by registrations made after it was created.
+ * 
+ * A provider registered through a {@link ServiceProviderDescriptor} is only
+ * instantiated when first returned by a lookup. Once instantiated, the
+ * instance and the descriptor stand for the same registered provider: either
+ * can be used to check, order, register again or deregister it.
+ * 
  * This implementation is a generic re-implementation of the imageIO 
  * service registry.
  * 
@@ -46,11 +94,52 @@ import org.plugin.spi.RegisterableService;
  */
 public class ServiceRegistry
 {
+  /**
+   * Freeze policy where registrations made after {@link #freeze(int)} fail
+   * with an <code>IllegalStateException</code>.
+   */
+  public static final int FREEZE_FAIL_FAST = ServiceList.FREEZE_FAIL_FAST;
+
+  /**
+   * Freeze policy where registrations made after {@link #freeze(int)} are
+   * applied and the frozen lookup structure is rebuilt.
+   */
+  public static final int FREEZE_REBUILD = ServiceList.FREEZE_REBUILD;
+
   /**
    * The categories.
    */
   CategoriesMap categories = new CategoriesMap(this);
 
+  /**
+   * The maximum number of memoized results of {@link #getCachedServiceProviders},
+   * the least recently used one is discarded beyond.
+   */
+  static final int FILTER_CACHE_SIZE = 256;
+
+  /**
+   * The memoized results of the cached filter queries, in access order.
+   * Guarded by itself.
+   */
+  private final Map<FilterQuery, FilterResult> filterCache = new FilterCache(FILTER_CACHE_SIZE);
+
+  /**
+   * The number of cached filter queries answered from the cache.
+   */
+  private final AtomicLong filterCacheHits = new AtomicLong();
+
+  /**
+   * The number of cached filter queries that had to run the filter.
+   */
+  private final AtomicLong filterCacheMisses = new AtomicLong();
+
+  /**
+   * The service declarations found in each class loader, by service name.
+   * Weakly keyed, and the declarations only hold names and locations, so the
+   * cache never keeps a class loader alive. Guarded by itself.
+   */
+  private static final Map<ClassLoader, Map<String, Declaration[]>> discoveryCache = new WeakHashMap<ClassLoader, Map<String, Declaration[]>>();
+
   /**
    * Instantiates a new ServiceRegistry with the specified categories.
    * 
@@ -72,19 +161,25 @@ public class ServiceRegistry
 
   /**
    * Looks up and instantiates the available providers of this service using the
-   * specified class loader.
+   * specified class loader. The service declarations found in each class
+   * loader are cached, so only the first lookup of a service in a class loader
+   * reads them, and the providers are instantiated as the iterator advances.
    * 
    * @param providerClass
    *          the Class object of the provider to be looked up.
    * @param loader
-   *          the class loader to be used.
+   *          the class loader to be used, or <code>null</code> for the context
+   *          class loader.
    * @return the iterator of providers objects for this service.
+   * @throws ServiceConfigurationError
+   *           if the service declarations cannot be read.
+   * @see #clearDiscoveryCache()
    */
   public static <T> Iterator<T> lookupProviders(Class<T> providerClass, ClassLoader loader)
   {
-    /** List of all dynamically loaded plugins */
-    ServiceLoader<T> serviceLoader =  ServiceLoader.load(providerClass);
-    return serviceLoader.iterator();
+    loader = getDiscoveryLoader(loader);
+    return new ProviderIterator<T>(providerClass, getDeclarations(loader, providerClass.getName()),
+        loader);
   }
 
   /**
@@ -94,12 +189,284 @@ public class ServiceRegistry
    * @param providerClass
    *          the Class object of the provider to be looked up.
    * @return the iterator of providers objects for this service.
+   * @see #lookupProviders(Class, ClassLoader)
    */
   public static <T> Iterator<T> lookupProviders(Class<T> providerClass)
   {
-    /** List of all dynamically loaded plugins */
-    ServiceLoader<T> serviceLoader =  ServiceLoader.load(providerClass);
-    return serviceLoader.iterator();
+    return lookupProviders(providerClass, null);
+  }
+
+  /**
+   * Discards the cached service declarations of all class loaders, so that the
+   * next lookups read them again. This is only needed when new declarations
+   * become visible to an existing class loader.
+   */
+  public static void clearDiscoveryCache()
+  {
+    synchronized (discoveryCache)
+    {
+      discoveryCache.clear();
+    }
+  }
+
+  /**
+   * Looks up the available providers of this service using the specified
+   * class loader, without loading or instantiating them. Each provider is
+   * described by a {@link ServiceProviderDescriptor} that can be registered in
+   * place of the provider and is instantiated on first use.
+   * 
+   * @param providerClass
+   *          the Class object of the service to be looked up.
+   * @param loader
+   *          the class loader to be used, or <code>null</code> for the context
+   *          class loader.
+   * @return the iterator of provider descriptors for this service.
+   * @throws ServiceConfigurationError
+   *           if the service declarations cannot be read.
+   */
+  public static Iterator<ServiceProviderDescriptor> lookupProviderDescriptors(
+      Class<?> providerClass, ClassLoader loader)
+  {
+    return lookupProviderDescriptors(new Class<?>[] { providerClass }, loader);
+  }
+
+  /**
+   * Looks up the available providers of several services using the specified
+   * class loader, without loading or instantiating them. A provider declared
+   * for several of these services is described by a single
+   * {@link ServiceProviderDescriptor} declared for all of them.
+   * 
+   * @param providerClasses
+   *          the Class objects of the services to be looked up.
+   * @param loader
+   *          the class loader to be used, or <code>null</code> for the context
+   *          class loader.
+   * @return the iterator of provider descriptors for these services, in
+   *         declaration order.
+   * @throws ServiceConfigurationError
+   *           if the service declarations cannot be read.
+   */
+  public static Iterator<ServiceProviderDescriptor> lookupProviderDescriptors(
+      Class<?>[] providerClasses, ClassLoader loader)
+  {
+    loader = getDiscoveryLoader(loader);
+    /* The services each provider class is declared for, and where it was first declared */
+    Map<String, List<String>> declarations = new LinkedHashMap<String, List<String>>();
+    Map<String, Declaration> sources = new HashMap<String, Declaration>();
+    for (int i = 0; i < providerClasses.length; i++)
+    {
+      String service = providerClasses[i].getName();
+      Declaration[] found = getDeclarations(loader, service);
+      for (int j = 0; j < found.length; j++)
+      {
+        String className = found[j].className;
+        List<String> services = declarations.get(className);
+        if (services == null)
+        {
+          services = new ArrayList<String>();
+          declarations.put(className, services);
+          sources.put(className, found[j]);
+        }
+        if (services.contains(service) == false)
+        {
+          services.add(service);
+        }
+      }
+    }
+    List<ServiceProviderDescriptor> descriptors = new ArrayList<ServiceProviderDescriptor>(
+        declarations.size());
+    /* The indexes of the indexed providers, by class name */
+    Map<String, ServiceProviderIndex> indexes = new HashMap<String, ServiceProviderIndex>();
+    for (Entry<String, List<String>> e : declarations.entrySet())
+    {
+      List<String> services = e.getValue();
+      Declaration first = sources.get(e.getKey());
+      ServiceProviderIndex index = null;
+      if (first.indexClassName != null)
+      {
+        index = indexes.get(first.indexClassName);
+        if ((index == null) && (indexes.containsKey(first.indexClassName) == false))
+        {
+          index = loadIndex(loader, first.indexClassName);
+          indexes.put(first.indexClassName, index);
+        }
+      }
+      descriptors.add(new ServiceProviderDescriptor(e.getKey(), first.source, services
+          .toArray(new String[services.size()]), loader, first.version, index, first.position));
+    }
+    return descriptors.iterator();
+  }
+
+  /**
+   * Returns the class loader used by lookups for the specified loader: the
+   * context class loader, or the system class loader, if it is null.
+   */
+  private static ClassLoader getDiscoveryLoader(ClassLoader loader)
+  {
+    if (loader == null)
+    {
+      loader = Thread.currentThread().getContextClassLoader();
+      if (loader == null)
+      {
+        loader = ClassLoader.getSystemClassLoader();
+      }
+    }
+    return loader;
+  }
+
+  /**
+   * Returns the providers declared for a service in a class loader, reading
+   * the declarations on the first lookup of this service in this loader.
+   * 
+   * @param loader
+   *          the class loader.
+   * @param service
+   *          the service interface name.
+   * @return the declarations, each provider class once, in declaration order.
+   * @throws ServiceConfigurationError
+   *           if the service declarations cannot be read.
+   */
+  private static Declaration[] getDeclarations(ClassLoader loader, String service)
+  {
+    Map<String, Declaration[]> services;
+    synchronized (discoveryCache)
+    {
+      services = discoveryCache.get(loader);
+      if (services == null)
+      {
+        services = new ConcurrentHashMap<String, Declaration[]>();
+        discoveryCache.put(loader, services);
+      }
+    }
+    Declaration[] declarations = services.get(service);
+    if (declarations == null)
+    {
+      /* Concurrent first lookups may both read the declarations, with the same result */
+      declarations = readDeclarations(loader, service);
+      services.put(service, declarations);
+    }
+    return declarations;
+  }
+
+  /**
+   * Reads the providers declared for a service in the
+   * {@link ServiceProviderIndex} classes and in all the
+   * <code>META-INF/services</code> resources visible to a class loader. The
+   * indexes are authoritative for the services they list: when at least one
+   * index lists a provider of the service, the <code>META-INF/services</code>
+   * resources are neither looked up nor parsed, so the providers of such a
+   * service must all be indexed. The other services are read from their
+   * declarations.
+   */
+  private static Declaration[] readDeclarations(ClassLoader loader, String service)
+  {
+    Map<String, Declaration> declarations = new LinkedHashMap<String, Declaration>();
+    if (service.equals(ServiceProviderIndex.class.getName()) == false)
+    {
+      Declaration[] indexes = getDeclarations(loader, ServiceProviderIndex.class.getName());
+      for (int i = 0; i < indexes.length; i++)
+      {
+        ServiceProviderIndex index = loadIndex(loader, indexes[i].className);
+        if (index == null)
+        {
+          continue;
+        }
+        for (int j = 0; j < index.size(); j++)
+        {
+          String className = index.getClassName(j);
+          if ((declarations.containsKey(className) == false)
+              && Arrays.asList(index.getCategoryNames(j)).contains(service))
+          {
+            declarations.put(className, new Declaration(className, indexes[i].source,
+                indexes[i].className, j, index.getVersion(j)));
+          }
+        }
+      }
+      if (declarations.isEmpty() == false)
+      {
+        return declarations.values().toArray(new Declaration[declarations.size()]);
+      }
+    }
+    try
+    {
+      Enumeration<URL> resources = loader.getResources(PluginJar.SERVICES_DIRECTORY + service);
+      while (resources.hasMoreElements())
+      {
+        URL resource = resources.nextElement();
+        List<String> classNames;
+        /* Bypass the cache of opened jars, it serves the previous content of
+         * a jar replaced under the same name.
+         */
+        URLConnection connection = resource.openConnection();
+        connection.setUseCaches(false);
+        InputStream in = connection.getInputStream();
+        try
+        {
+          classNames = PluginJar.parseServiceDeclaration(in);
+        } finally
+        {
+          in.close();
+        }
+        for (int j = 0; j < classNames.size(); j++)
+        {
+          String className = classNames.get(j);
+          if (declarations.containsKey(className) == false)
+          {
+            declarations.put(className, new Declaration(className, getSourceLocation(resource),
+                null, -1, null));
+          }
+        }
+      }
+    } catch (IOException e)
+    {
+      throw new ServiceConfigurationError("Cannot read the declarations of " + service, e);
+    }
+    return declarations.values().toArray(new Declaration[declarations.size()]);
+  }
+
+  /**
+   * Instantiates a build time provider index.
+   * 
+   * @return the index, or <code>null</code> if it cannot be instantiated, in
+   *         which case its providers are found through their service
+   *         declarations.
+   */
+  private static ServiceProviderIndex loadIndex(ClassLoader loader, String className)
+  {
+    try
+    {
+      return (ServiceProviderIndex) Class.forName(className, true, loader).newInstance();
+    } catch (Exception e)
+    {
+      Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+          "Ignoring provider index " + className, e);
+    } catch (LinkageError e)
+    {
+      Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+          "Ignoring provider index " + className, e);
+    }
+    return null;
+  }
+
+  /**
+   * Returns the location of the jar containing the specified service
+   * declaration, or the declaration itself if it is not in a jar.
+   */
+  private static URL getSourceLocation(URL resource)
+  {
+    String spec = resource.toString();
+    int separator = spec.indexOf("!/");
+    if (spec.startsWith("jar:") && (separator > 0))
+    {
+      try
+      {
+        return new URL(spec.substring("jar:".length(), separator));
+      } catch (MalformedURLException e)
+      {
+        /* Keep the declaration itself */
+      }
+    }
+    return resource;
   }
 
   /**
@@ -132,6 +499,462 @@ public class ServiceRegistry
     }
   }
 
+  /**
+   * Registers a batch of service providers in all categories. All providers
+   * are staged and published at once, so each category publishes a single
+   * snapshot for the whole batch. The {@link RegisterableService#onRegistration}
+   * callbacks of the newly registered providers are then run in parallel on
+   * the specified executor, and this method waits for all of them.
+   * 
+   * @param providers
+   *          the list of service providers.
+   * @param executor
+   *          the executor running the registration callbacks, or
+   *          <code>null</code> to run them on the calling thread. The
+   *          callbacks the executor rejects, for instance once it is shut
+   *          down or its queue is full, also run on the calling thread.
+   * @param timeout
+   *          the maximum time to wait for each callback, including the time
+   *          it waits for an executor thread, or 0 to wait without limit. A
+   *          callback that did not complete in time is cancelled, and fails
+   *          whether it started or not.
+   * @param unit
+   *          the unit of <code>timeout</code>.
+   * @throws ServiceRegistrationException
+   *           if some callbacks failed or timed out, with the failure of each of
+   *           these providers. All the providers of the batch remain registered.
+   */
+  public void registerServiceProviders(Iterator<?> providers, Executor executor, long timeout,
+      TimeUnit unit) throws ServiceRegistrationException
+  {
+    List<Object> batch = new ArrayList<Object>();
+    while (providers.hasNext())
+    {
+      batch.add(providers.next());
+    }
+    Object[] staged = batch.toArray();
+    boolean[] added = categories.addProviders(staged, null);
+
+    List<RegistrationTask> tasks = new ArrayList<RegistrationTask>();
+    for (int i = 0; i < staged.length; i++)
+    {
+      if (added[i] && (staged[i] instanceof RegisterableService))
+      {
+        RegistrationTask task = new RegistrationTask((RegisterableService) staged[i]);
+        tasks.add(task);
+        if (executor == null)
+        {
+          task.run();
+        } else
+        {
+          try
+          {
+            executor.execute(task);
+          } catch (RejectedExecutionException e)
+          {
+            /* The providers are already published, their callback must run */
+            task.run();
+          }
+        }
+      }
+    }
+
+    Map<Object, Throwable> failures = new LinkedHashMap<Object, Throwable>();
+    long limit = unit.toNanos(timeout);
+    for (int i = 0; i < tasks.size(); i++)
+    {
+      RegistrationTask task = tasks.get(i);
+      Throwable error = task.await(limit);
+      if (error != null)
+      {
+        failures.put(task.provider, error);
+      }
+    }
+    if (failures.isEmpty() == false)
+    {
+      throw new ServiceRegistrationException("Registration callbacks failed", failures);
+    }
+  }
+
+  /**
+   * Constructs and activates a set of service providers in dependency order.
+   * The providers submitted as a {@link ServiceProviderDescriptor} are first
+   * instantiated in parallel, and are registered through their descriptor,
+   * like the providers of a stored service list. The providers are then
+   * activated in waves: each wave contains the providers
+   * whose dependencies, declared with {@link DependentService}, are all
+   * active. The {@link RegisterableService#onRegistration} callbacks of the
+   * providers of a wave run in parallel on the specified executor, then the
+   * providers whose callback succeeded are registered at once, before the
+   * next wave starts. A provider whose callback fails is never visible in
+   * the registry.
+   * 
+   * Failures are isolated: a provider that cannot be instantiated, whose
+   * callback fails, or whose dependency is missing, failed, or part of a
+   * cycle, is not registered and neither are the providers depending on it,
+   * while all other providers are activated.
+   * 
+   * @param providers
+   *          the service providers or provider descriptors.
+   * @param executor
+   *          the executor running the constructions and callbacks of each
+   *          wave, or <code>null</code> to run them on the calling thread.
+   * @throws ServiceRegistrationException
+   *           if some providers could not be activated, with the failure of
+   *           each of them.
+   */
+  public void activateServiceProviders(Iterator<?> providers, ExecutorService executor)
+      throws ServiceRegistrationException
+  {
+    Map<Object, Throwable> failures = new LinkedHashMap<Object, Throwable>();
+
+    /* Construct the providers described by a descriptor */
+    List<Object> submitted = new ArrayList<Object>();
+    List<Callable<Object>> constructions = new ArrayList<Callable<Object>>();
+    while (providers.hasNext())
+    {
+      final Object provider = providers.next();
+      submitted.add(provider);
+      constructions.add(new Callable<Object>()
+      {
+        public Object call()
+        {
+          if (provider instanceof ServiceProviderDescriptor)
+          {
+            return ((ServiceProviderDescriptor) provider).getInstance();
+          }
+          return provider;
+        }
+      });
+    }
+    List<Future<Object>> constructed = invokeAll(executor, constructions);
+    /* The objects registered, the descriptors of the providers submitted as such */
+    List<Object> registered = new ArrayList<Object>();
+    List<Object> instances = new ArrayList<Object>();
+    for (int i = 0; i < constructed.size(); i++)
+    {
+      Throwable error = getFailure(constructed.get(i));
+      if (error == null)
+      {
+        registered.add(submitted.get(i));
+        instances.add(getResult(constructed.get(i)));
+      } else
+      {
+        failures.put(ServiceProviderUtilities.getPluginId(submitted.get(i)), error);
+      }
+    }
+
+    /* The dependencies of each provider on the providers of the batch */
+    int count = instances.size();
+    List<List<Dependency>> prerequisites = new ArrayList<List<Dependency>>(count);
+    Map<String, Set<Integer>> byId = new HashMap<String, Set<Integer>>();
+    for (int i = 0; i < count; i++)
+    {
+      String id = ServiceProviderUtilities.getPluginId(instances.get(i));
+      Set<Integer> positions = byId.get(id);
+      if (positions == null)
+      {
+        positions = new HashSet<Integer>();
+        byId.put(id, positions);
+      }
+      positions.add(Integer.valueOf(i));
+    }
+    boolean[] failed = new boolean[count];
+    for (int i = 0; i < count; i++)
+    {
+      List<Dependency> required = new ArrayList<Dependency>();
+      prerequisites.add(required);
+      Object provider = instances.get(i);
+      if ((provider instanceof DependentService) == false)
+      {
+        continue;
+      }
+      try
+      {
+        String[] ids = ((DependentService) provider).getPluginDependencies();
+        for (int j = 0; j < ids.length; j++)
+        {
+          Set<Integer> positions = new HashSet<Integer>();
+          if (byId.containsKey(ids[j]))
+          {
+            positions.addAll(byId.get(ids[j]));
+            positions.remove(Integer.valueOf(i));
+          }
+          required.add(new Dependency(ids[j], positions, isActive(ids[j])));
+        }
+        Class<?>[] dependencies = ((DependentService) provider).getCategoryDependencies();
+        for (int j = 0; j < dependencies.length; j++)
+        {
+          Set<Integer> positions = new HashSet<Integer>();
+          for (int k = 0; k < count; k++)
+          {
+            if ((k != i) && dependencies[j].isInstance(instances.get(k)))
+            {
+              positions.add(Integer.valueOf(k));
+            }
+          }
+          required.add(new Dependency(dependencies[j].getName(), positions,
+              hasActiveProvider(dependencies[j])));
+        }
+      } catch (Throwable e)
+      {
+        failed[i] = true;
+        failures.put(registered.get(i), e);
+      }
+    }
+
+    /* Activate the providers in waves */
+    boolean[] active = new boolean[count];
+    boolean progress = true;
+    while (progress)
+    {
+      progress = false;
+      List<Integer> wave = new ArrayList<Integer>();
+      for (int i = 0; i < count; i++)
+      {
+        if (active[i] || failed[i])
+        {
+          continue;
+        }
+        boolean ready = true;
+        for (Dependency dependency : prerequisites.get(i))
+        {
+          /* Wait for all the providers of the batch that can satisfy it */
+          boolean settled = true;
+          boolean satisfied = dependency.registered;
+          for (Integer position : dependency.positions)
+          {
+            int j = position.intValue();
+            settled &= active[j] || failed[j];
+            satisfied |= active[j];
+          }
+          if (settled && (satisfied == false))
+          {
+            failed[i] = true;
+            failures.put(registered.get(i), new ServiceProviderException(
+                dependency.positions.isEmpty() ? ServiceProviderException.NOT_FOUND
+                    : ServiceProviderException.INTERNAL_ERROR, (dependency.positions
+                    .isEmpty() ? "Missing dependency: " : "Dependency failed: ")
+                    + dependency.name));
+            progress = true;
+            ready = false;
+            break;
+          }
+          ready &= settled;
+        }
+        if (ready)
+        {
+          wave.add(Integer.valueOf(i));
+        }
+      }
+      if (wave.isEmpty())
+      {
+        if (progress == false)
+        {
+          /* Blocked, fail the providers of the cycles so that the others can go on */
+          progress = failCycles(prerequisites, active, failed, registered, failures);
+        }
+        continue;
+      }
+      progress = true;
+      Object[] staged = new Object[wave.size()];
+      List<Callable<Object>> callbacks = new ArrayList<Callable<Object>>();
+      for (int i = 0; i < staged.length; i++)
+      {
+        staged[i] = registered.get(wave.get(i).intValue());
+        final Object provider = instances.get(wave.get(i).intValue());
+        callbacks.add(new Callable<Object>()
+        {
+          public Object call() throws Exception
+          {
+            if (provider instanceof RegisterableService)
+            {
+              ((RegisterableService) provider).onRegistration(null);
+            }
+            return null;
+          }
+        });
+      }
+      List<Future<Object>> results = invokeAll(executor, callbacks);
+      List<Object> succeeded = new ArrayList<Object>(staged.length);
+      for (int i = 0; i < staged.length; i++)
+      {
+        int position = wave.get(i).intValue();
+        Throwable error = getFailure(results.get(i));
+        if (error == null)
+        {
+          active[position] = true;
+          /* Its callback ran here, not when the descriptor is first resolved */
+          categories.setNotified(staged[i]);
+          succeeded.add(staged[i]);
+        } else
+        {
+          failed[position] = true;
+          failures.put(staged[i], error);
+        }
+      }
+      /* Only published once their callback succeeded */
+      categories.addProviders(succeeded.toArray(), null);
+    }
+    if (failures.isEmpty() == false)
+    {
+      throw new ServiceRegistrationException("Some providers could not be activated", failures);
+    }
+  }
+
+  /**
+   * Marks the pending providers that depend on themselves, directly or
+   * through other pending providers, as failed.
+   * 
+   * @return true if some providers were marked as failed.
+   */
+  private static boolean failCycles(List<List<Dependency>> prerequisites, boolean[] active,
+      boolean[] failed, List<Object> providers, Map<Object, Throwable> failures)
+  {
+    int count = providers.size();
+    boolean[] cyclic = new boolean[count];
+    for (int i = 0; i < count; i++)
+    {
+      if (active[i] || failed[i])
+      {
+        continue;
+      }
+      /* Search the pending providers reachable from this one */
+      boolean[] visited = new boolean[count];
+      LinkedList<Integer> pending = new LinkedList<Integer>();
+      pending.add(Integer.valueOf(i));
+      while ((pending.isEmpty() == false) && (cyclic[i] == false))
+      {
+        int j = pending.removeFirst().intValue();
+        for (Dependency dependency : prerequisites.get(j))
+        {
+          for (Integer position : dependency.positions)
+          {
+            int k = position.intValue();
+            if (k == i)
+            {
+              cyclic[i] = true;
+            } else if ((active[k] == false) && (failed[k] == false) && (visited[k] == false))
+            {
+              visited[k] = true;
+              pending.add(position);
+            }
+          }
+        }
+      }
+    }
+    boolean found = false;
+    for (int i = 0; i < count; i++)
+    {
+      if (cyclic[i])
+      {
+        failed[i] = true;
+        failures.put(providers.get(i), new ServiceProviderException(
+            ServiceProviderException.INTERNAL_ERROR, "Dependency cycle"));
+        found = true;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Checks if a provider with the specified plugin ID is registered.
+   */
+  private boolean isActive(String pluginId)
+  {
+    return categories.containsPluginId(pluginId);
+  }
+
+  /**
+   * Checks if at least one provider of the specified type is registered.
+   */
+  private boolean hasActiveProvider(Class<?> category)
+  {
+    try
+    {
+      return categories.getSnapshot(category, false).length > 0;
+    } catch (IllegalArgumentException e)
+    {
+      /* Neither a category nor a supertype of one */
+      return false;
+    }
+  }
+
+  /**
+   * Submits the specified tasks to the executor, or runs them on the calling
+   * thread if it is <code>null</code>. A task the executor rejects, because
+   * it is shut down or saturated, runs on the calling thread instead. The
+   * results are awaited by {@link #getFailure}.
+   */
+  private static List<Future<Object>> invokeAll(ExecutorService executor,
+      List<Callable<Object>> tasks)
+  {
+    List<Future<Object>> results = new ArrayList<Future<Object>>(tasks.size());
+    for (int i = 0; i < tasks.size(); i++)
+    {
+      Future<Object> result = null;
+      if (executor != null)
+      {
+        try
+        {
+          result = executor.submit(tasks.get(i));
+        } catch (RejectedExecutionException e)
+        {
+          /* Run it here */
+        }
+      }
+      if (result == null)
+      {
+        FutureTask<Object> task = new FutureTask<Object>(tasks.get(i));
+        task.run();
+        result = task;
+      }
+      results.add(result);
+    }
+    return results;
+  }
+
+  /**
+   * Waits for a task and returns the error it raised, or <code>null</code>.
+   * A task that is still running when the calling thread is interrupted is
+   * cancelled and reported as failed.
+   */
+  private static Throwable getFailure(Future<Object> result)
+  {
+    try
+    {
+      result.get();
+      return null;
+    } catch (ExecutionException e)
+    {
+      return e.getCause();
+    } catch (CancellationException e)
+    {
+      return e;
+    } catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      result.cancel(true);
+      return e;
+    }
+  }
+
+  /**
+   * Returns the result of a task that completed successfully.
+   */
+  private static Object getResult(Future<Object> result)
+  {
+    try
+    {
+      return result.get();
+    } catch (Exception e)
+    {
+      IllegalStateException error = new IllegalStateException(e.getMessage());
+      error.initCause(e);
+      throw error;
+    }
+  }
+
   /**
    * Registers the specified service provider object in all categories. 
    * 
@@ -155,60 +978,291 @@ public class ServiceRegistry
    */
   public boolean deregisterServiceProvider(Object provider, Class<?> category)
   {
-    return categories.deleteProvider(provider, category);
+    return categories.deleteProvider(provider, category);
+  }
+
+  /**
+   * Deregisters the specified service provider from all categories. If this
+   * instance is not registered, all the registered providers of the same
+   * class are deregistered instead, and each receives the deregistration
+   * callback.
+   * 
+   * @param provider
+   *          the specified service provider.
+   */
+  public void deregisterServiceProvider(Object provider)
+  {
+    categories.deleteProvider(provider, null);
+  }
+
+  /**
+   * Gets an Iterator of registered service providers in the specified category
+   * which satisfy the specified Filter. The useOrdering parameter indicates
+   * whether the iterator will return all of the server provider objects in a
+   * set order.
+   * 
+   * @param category
+   *          the specified category.
+   * @param filter
+   *          the specified filter.
+   * @param useOrdering
+   *          the flag indicating that providers are ordered in the returned
+   *          Iterator.
+   * @return the iterator of registered service providers.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> Iterator<T> getServiceProviders(Class<T> category, Filter filter, boolean useOrdering)
+  {
+    return new FilteredIterator<T>(filter, (Iterator<T>) categories.getProviders(category, useOrdering));
+  }
+
+  /**
+   * Gets an Iterator of registered service providers in the specified category
+   * which satisfy the specified Filter, memoizing the result. This is the
+   * cached equivalent of {@link #getServiceProviders(Class, Filter, boolean)}:
+   * the filter is only run again once the providers of the category have been
+   * modified since the result was memoized.
+   * 
+   * The filter must be stable, its result for a given provider must not change
+   * over time. Results are memoized by filter identity, or by filter equality if
+   * the filter overrides <code>equals</code>, so the same filter instance should
+   * be reused across calls. Only the {@value #FILTER_CACHE_SIZE} most recently
+   * used results are kept, and the results of a category are discarded when
+   * the category is added again.
+   * 
+   * @param category
+   *          the specified category.
+   * @param filter
+   *          the specified filter.
+   * @param useOrdering
+   *          the flag indicating that providers are ordered in the returned
+   *          Iterator.
+   * @return the iterator of registered service providers.
+   * @see #getFilterCacheHits()
+   * @see #getFilterCacheMisses()
+   */
+  @SuppressWarnings("unchecked")
+  public <T> Iterator<T> getCachedServiceProviders(Class<T> category, Filter filter, boolean useOrdering)
+  {
+    if (filter == null)
+    {
+      throw new IllegalArgumentException("filter should be != NULL");
+    }
+    FilterQuery query = new FilterQuery(category, filter, useOrdering);
+    /* The epoch must be read before the providers it validates */
+    long epoch = categories.getEpoch(category);
+    FilterResult result;
+    synchronized (filterCache)
+    {
+      result = filterCache.get(query);
+    }
+    if ((result != null) && (result.epoch == epoch))
+    {
+      filterCacheHits.incrementAndGet();
+    } else
+    {
+      filterCacheMisses.incrementAndGet();
+      Object[] providers = categories.getSnapshot(category, useOrdering);
+      List<Object> matches = new ArrayList<Object>(providers.length);
+      for (int i = 0; i < providers.length; i++)
+      {
+        Object provider = categories.resolve(providers[i]);
+        if (filter.filter(provider))
+        {
+          matches.add(provider);
+        }
+      }
+      result = new FilterResult(epoch, matches.toArray());
+      synchronized (filterCache)
+      {
+        filterCache.put(query, result);
+      }
+    }
+    return (Iterator<T>) Arrays.asList(result.providers).iterator();
+  }
+
+  /**
+   * Returns the number of calls to {@link #getCachedServiceProviders} that were
+   * answered from the cache.
+   * 
+   * @return the number of cache hits.
+   */
+  public long getFilterCacheHits()
+  {
+    return filterCacheHits.get();
+  }
+
+  /**
+   * Returns the number of calls to {@link #getCachedServiceProviders} that had
+   * to run the filter.
+   * 
+   * @return the number of cache misses.
+   */
+  public long getFilterCacheMisses()
+  {
+    return filterCacheMisses.get();
+  }
+
+  /**
+   * Discards all the memoized results of {@link #getCachedServiceProviders}.
+   */
+  public void clearFilterCache()
+  {
+    synchronized (filterCache)
+    {
+      filterCache.clear();
+    }
+  }
+
+  /**
+   * Discards the memoized results of the queries on a category, or on one of
+   * its supertypes, which can no longer be valid once the category is reset.
+   * 
+   * @param category
+   *          the category.
+   */
+  void clearFilterCache(Class<?> category)
+  {
+    synchronized (filterCache)
+    {
+      for (Iterator<FilterQuery> it = filterCache.keySet().iterator(); it.hasNext();)
+      {
+        if (it.next().category.isAssignableFrom(category))
+        {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets an Iterator of all registered service providers in the specified
+   * category. The useOrdering parameter indicates whether the iterator will
+   * return all of the server provider objects in a set order.
+   * 
+   * @param category
+   *          the specified category.
+   * @param useOrdering
+   *          the flag indicating that providers are ordered in the returned
+   *          Iterator.
+   * @return the Iterator of service providers.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> Iterator<T> getServiceProviders(Class<T> category, boolean useOrdering)
+  {
+    return (Iterator<T>) categories.getProviders(category, useOrdering);
+  }
+  
+  
+  /**
+   * Returns the first registered service provider of the specified category
+   * which satisfies the specified Filter. Providers are visited in the order
+   * set with {@link #setOrdering}, which is registration order when no ordering
+   * is set. The search stops at the first match and allocates no iterator.
+   * 
+   * @param category
+   *          the specified category.
+   * @param filter
+   *          the specified filter, or <code>null</code> to accept any provider.
+   * @return the first matching service provider, or <code>null</code> if there
+   *         is none.
+   * @throws ServiceConfigurationError
+   *           if a provider registered through a
+   *           {@link ServiceProviderDescriptor} is reached and cannot be
+   *           instantiated, the search then stops.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T findFirst(Class<T> category, Filter filter)
+  {
+    Object[] providers = categories.getSnapshot(category, true);
+    for (int i = 0; i < providers.length; i++)
+    {
+      Object provider = categories.resolve(providers[i]);
+      if ((filter == null) || filter.filter(provider))
+      {
+        return (T) provider;
+      }
+    }
+    return null;
   }
 
   /**
-   * Deregisters the specified service provider from all categories.
+   * Visits the registered service providers of the specified category in the
+   * order set with {@link #setOrdering}, until the visitor asks to stop. The
+   * providers visited are those registered when the call is made, and no
+   * iterator is allocated.
    * 
-   * @param provider
-   *          the specified service provider.
+   * @param category
+   *          the specified category.
+   * @param visitor
+   *          the visitor to call for each provider.
+   * @return true if all providers were visited, false if the visitor stopped
+   *         the visit.
+   * @throws ServiceConfigurationError
+   *           if a provider registered through a
+   *           {@link ServiceProviderDescriptor} cannot be instantiated, the
+   *           visit then stops.
    */
-  public void deregisterServiceProvider(Object provider)
+  public boolean forEach(Class<?> category, Visitor visitor)
   {
-    categories.deleteProvider(provider, null);
+    if (visitor == null)
+    {
+      throw new IllegalArgumentException("visitor should be != NULL");
+    }
+    Object[] providers = categories.getSnapshot(category, true);
+    for (int i = 0; i < providers.length; i++)
+    {
+      if (visitor.visit(categories.resolve(providers[i])) == false)
+      {
+        return false;
+      }
+    }
+    return true;
   }
 
   /**
-   * Gets an Iterator of registered service providers in the specified category
-   * which satisfy the specified Filter. The useOrdering parameter indicates
-   * whether the iterator will return all of the server provider objects in a
-   * set order.
+   * Counts the registered service providers of the specified category which
+   * satisfy the specified Filter, without allocating an iterator. Without a
+   * filter, providers registered through a {@link ServiceProviderDescriptor}
+   * are counted without being instantiated.
    * 
    * @param category
    *          the specified category.
    * @param filter
-   *          the specified filter.
-   * @param useOrdering
-   *          the flag indicating that providers are ordered in the returned
-   *          Iterator.
-   * @return the iterator of registered service providers.
+   *          the specified filter, or <code>null</code> to count all providers.
+   * @return the number of matching service providers.
+   * @throws ServiceConfigurationError
+   *           if a filter is given and a provider registered through a
+   *           {@link ServiceProviderDescriptor} cannot be instantiated.
    */
-  @SuppressWarnings("unchecked")
-  public <T> Iterator<T> getServiceProviders(Class<T> category, Filter filter, boolean useOrdering)
+  public int count(Class<?> category, Filter filter)
   {
-    return new FilteredIterator<T>(filter, (Iterator<T>) categories.getProviders(category));
+    Object[] providers = categories.getSnapshot(category, false);
+    if (filter == null)
+    {
+      return providers.length;
+    }
+    int count = 0;
+    for (int i = 0; i < providers.length; i++)
+    {
+      if (filter.filter(categories.resolve(providers[i])))
+      {
+        count++;
+      }
+    }
+    return count;
   }
 
   /**
-   * Gets an Iterator of all registered service providers in the specified
-   * category. The useOrdering parameter indicates whether the iterator will
-   * return all of the server provider objects in a set order.
+   * Gets an unmodifiable list of all registered service providers in the
+   * specified category. The list is a snapshot and is not affected by
+   * subsequent registrations.
    * 
    * @param category
    *          the specified category.
-   * @param useOrdering
-   *          the flag indicating that providers are ordered in the returned
-   *          Iterator.
-   * @return the Iterator of service providers.
+   * @return the list of service providers.
    */
   @SuppressWarnings("unchecked")
-  public <T> Iterator<T> getServiceProviders(Class<T> category, boolean useOrdering)
-  {
-    return (Iterator<T>) categories.getProviders(category);
-  }
-  
-  
   public <T> List<T> getServiceProvidersAsList(Class<T> category)
   {
     return (List<T>) categories.getProvidersAsList(category);
@@ -220,11 +1274,12 @@ public class ServiceRegistry
    * 
    * @param providerClass
    *          the specified provider class.
-   * @return the service provider object.
+   * @return the service provider object, or <code>null</code> if no provider
+   *         of this class is registered.
    */
   public <T> T getServiceProviderByClass(Class<T> providerClass)
   {
-    throw new UnsupportedOperationException("Not supported yet");
+    return categories.getProviderByClass(providerClass);
   }
 
   /**
@@ -238,10 +1293,14 @@ public class ServiceRegistry
    * @param secondProvider
    *          the second provider.
    * @return true, if a previously unset order was set.
+   * @throws IllegalArgumentException
+   *           if a provider is not registered in the category, if both
+   *           providers are the same, or if the ordering would introduce a
+   *           cycle with the orderings already set.
    */
   public <T> boolean setOrdering(Class<T> category, T firstProvider, T secondProvider)
   {
-    throw new UnsupportedOperationException("Not supported yet");
+    return categories.setOrdering(category, firstProvider, secondProvider);
   }
 
   /**
@@ -254,11 +1313,14 @@ public class ServiceRegistry
    *          the first provider.
    * @param secondProvider
    *          the second provider.
-   * @return true, if a previously unset order was removed.
+   * @return true, if a previously set order was removed.
+   * @throws IllegalArgumentException
+   *           if a provider is not registered in the category or if both
+   *           providers are the same.
    */
   public <T> boolean unsetOrdering(Class<T> category, T firstProvider, T secondProvider)
   {
-    throw new UnsupportedOperationException("Not supported yet");
+    return categories.unsetOrdering(category, firstProvider, secondProvider);
   }
 
   /**
@@ -322,6 +1384,50 @@ public class ServiceRegistry
 	return categories.contains(provider, category);
   }
 
+  /**
+   * Freezes this registry, failing on any registration or deregistration made
+   * afterwards.
+   * 
+   * @see #freeze(int)
+   */
+  public void freeze()
+  {
+    freeze(FREEZE_FAIL_FAST);
+  }
+
+  /**
+   * Freezes this registry once its set of categories and providers is
+   * complete. The categories are compiled into an immutable lookup structure
+   * with a perfect hash over the category classes, so that lookups skip the
+   * map indirection entirely.
+   * 
+   * @param policy
+   *          what happens on registrations and deregistrations made while
+   *          frozen, either {@link #FREEZE_FAIL_FAST} or {@link #FREEZE_REBUILD}.
+   */
+  public void freeze(int policy)
+  {
+    categories.freeze(policy);
+  }
+
+  /**
+   * Unfreezes this registry, allowing modifications again.
+   */
+  public void unfreeze()
+  {
+    categories.unfreeze();
+  }
+
+  /**
+   * Checks if this registry is frozen.
+   * 
+   * @return true if this registry is frozen.
+   */
+  public boolean isFrozen()
+  {
+    return categories.isFrozen();
+  }
+
   /**
    * Gets an iterator of Class objects representing the current categories.
    * 
@@ -332,6 +1438,26 @@ public class ServiceRegistry
     return categories.list();
   }
 
+  /**
+   * Starts warming up the registered providers implementing
+   * {@link WarmableService} in the background.
+   * 
+   * @param threadPriority
+   *          the priority of the warm-up thread.
+   * @param cpuBudget
+   *          the maximum CPU time of the warm-up, or 0 for no limit.
+   * @param unit
+   *          the unit of <code>cpuBudget</code>.
+   * @return the started warm-up, which reports when each category is hot.
+   * @see ServiceWarmUp
+   */
+  public ServiceWarmUp startWarmUp(int threadPriority, long cpuBudget, TimeUnit unit)
+  {
+    ServiceWarmUp warmUp = new ServiceWarmUp(this, threadPriority, cpuBudget, unit);
+    warmUp.start();
+    return warmUp;
+  }
+
   /**
    * The ServiceRegistry.Filter interface is used by
    * ServiceRegistry.getServiceProviders to filter providers according to the
@@ -351,6 +1477,23 @@ public class ServiceRegistry
      */
     boolean filter(Object provider);
   }
+
+  /**
+   * The ServiceRegistry.Visitor interface is used by ServiceRegistry.forEach
+   * to process the providers of a category.
+   * 
+   */
+  public static interface Visitor
+  {
+    /**
+     * Processes the specified provider.
+     * 
+     * @param provider
+     *          the provider.
+     * @return true to continue with the next provider, false to stop.
+     */
+    boolean visit(Object provider);
+  }
   
   public static class CategoriesMap extends ServiceList
   {
@@ -359,6 +1502,12 @@ public class ServiceRegistry
      * The registry.
      */
     ServiceRegistry registry;
+
+    /**
+     * The providers registered through a descriptor whose registration
+     * callback was run, when they were instantiated.
+     */
+    private final Map<Object, Boolean> notified = new ConcurrentHashMap<Object, Boolean>();
     
     public CategoriesMap(ServiceRegistry registry)
     {      
@@ -366,21 +1515,105 @@ public class ServiceRegistry
       this.registry = registry;
     }
 
+    /**
+     * Runs the registration callback of a provider registered through a
+     * descriptor the first time it is instantiated, for each category it is
+     * registered in. The callbacks run while holding the lock of the
+     * descriptor, so that other threads resolving the same descriptor wait
+     * for them, while the other descriptors are resolved concurrently.
+     */
+    @Override
+    Object resolve(Object provider)
+    {
+      Object instance = super.resolve(provider);
+      if ((instance != provider) && (instance instanceof RegisterableService)
+          && (notified.containsKey(provider) == false))
+      {
+        synchronized (provider)
+        {
+          if (notified.containsKey(provider) == false)
+          {
+            /* Recorded first, a callback resolving its own descriptor is not run again */
+            notified.put(provider, Boolean.TRUE);
+            for (Iterator<Class<?>> it = getCategories(provider); it.hasNext();)
+            {
+              Class<?> category = it.next();
+              try
+              {
+                ((RegisterableService) instance).onRegistration(category);
+              } catch (ServiceProviderException e)
+              {
+                Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+                    "Registration callback of " + instance.getClass().getName() + " failed for "
+                        + category.getName(), e);
+              }
+            }
+          }
+        }
+      }
+      return instance;
+    }
+
+    /**
+     * Runs the deregistration callback of the providers that were actually
+     * removed, which are the other instances of the same class when
+     * <code>provider</code> itself is not registered.
+     */
     @Override
     public boolean deleteProvider(Object provider, Class<?> category)
     {
-      boolean rt = super.deleteProvider(provider, category);
-      if (provider instanceof RegisterableService)
+      List<Object> removed = deleteRegistered(provider, category);
+      for (int i = 0; i < removed.size(); i++)
       {
-        try
+        Object instance = removed.get(i);
+        if (notified.containsKey(removed.get(i)))
         {
-          ((RegisterableService) provider).onDeregistration(category);
-        } catch (ServiceProviderException e)
+          /* Instantiated from its descriptor, it was told of its registration */
+          instance = ((ServiceProviderDescriptor) removed.get(i)).getInstance();
+        }
+        if (instance instanceof RegisterableService)
+        {
+          try
+          {
+            ((RegisterableService) instance).onDeregistration(category);
+          } catch (ServiceProviderException e)
+          {
+            Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+                "Deregistration callback of " + instance.getClass().getName() + " failed", e);
+          }
+        }
+        if (contains(removed.get(i)) == false)
         {
-          e.printStackTrace();
+          /* No longer registered, its next registration is notified again */
+          notified.remove(removed.get(i));
         }
       }
-      return rt;
+      return removed.isEmpty() == false;
+    }
+
+    /**
+     * Discards the memoized filter results of the category being reset.
+     */
+    @Override
+    public synchronized void addCategory(Class<?> category)
+    {
+      super.addCategory(category);
+      if (registry != null)
+      {
+        registry.clearFilterCache(category);
+      }
+    }
+
+    /**
+     * Records that the registration callback of a provider registered
+     * through a descriptor is run by the caller.
+     */
+    void setNotified(Object provider)
+    {
+      if (provider instanceof ServiceProviderDescriptor)
+      {
+        notified.put(provider, Boolean.TRUE);
+      }
     }
 
     @Override
@@ -394,8 +1627,8 @@ public class ServiceRegistry
           ((RegisterableService) provider).onRegistration(category);
         } catch (ServiceProviderException e)
         {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
+          Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+              "Registration callback of " + provider.getClass().getName() + " failed", e);
         }
       }
       return rt;
@@ -407,6 +1640,311 @@ public class ServiceRegistry
   }
 
 
+  /**
+   * A dependency of a provider activated by
+   * {@link ServiceRegistry#activateServiceProviders}, on a plugin ID or a
+   * category.
+   */
+  private static final class Dependency
+  {
+    /** The plugin ID or category name. */
+    final String name;
+    /** The positions of the providers of the batch that satisfy it. */
+    final Set<Integer> positions;
+    /** True if a registered provider already satisfies it. */
+    final boolean registered;
+
+    Dependency(String name, Set<Integer> positions, boolean registered)
+    {
+      this.name = name;
+      this.positions = positions;
+      this.registered = registered;
+    }
+  }
+
+  /**
+   * A provider declared for a service.
+   */
+  private static final class Declaration
+  {
+    /** The provider class name. */
+    final String className;
+    /** The location the provider was first declared in. */
+    final URL source;
+    /** The class name of the index listing the provider, or null. */
+    final String indexClassName;
+    /** The position of the provider in its index. */
+    final int position;
+    /** The version declared in the index, or null. */
+    final String version;
+
+    Declaration(String className, URL source, String indexClassName, int position,
+        String version)
+    {
+      this.className = className;
+      this.source = source;
+      this.indexClassName = indexClassName;
+      this.position = position;
+      this.version = version;
+    }
+  }
+
+  /**
+   * Instantiates the declared providers of a service as it advances, like
+   * the iterator of {@link ServiceLoader}. Indexed providers are created by
+   * their index, the others through reflection.
+   */
+  private static final class ProviderIterator<T> implements Iterator<T>
+  {
+    private final Class<T> service;
+    private final Declaration[] declarations;
+    private final ClassLoader loader;
+    private int next;
+    /** The indexes used so far, by class name. */
+    private Map<String, ServiceProviderIndex> indexes;
+
+    ProviderIterator(Class<T> service, Declaration[] declarations, ClassLoader loader)
+    {
+      this.service = service;
+      this.declarations = declarations;
+      this.loader = loader;
+    }
+
+    public boolean hasNext()
+    {
+      return next < declarations.length;
+    }
+
+    public T next()
+    {
+      if (hasNext() == false)
+      {
+        throw new NoSuchElementException();
+      }
+      Declaration declaration = declarations[next++];
+      String className = declaration.className;
+      if (declaration.indexClassName != null)
+      {
+        ServiceProviderIndex index = getIndex(declaration.indexClassName);
+        if (index != null)
+        {
+          Object provider;
+          try
+          {
+            provider = index.newInstance(declaration.position);
+          } catch (ServiceConfigurationError e)
+          {
+            throw e;
+          } catch (RuntimeException e)
+          {
+            throw new ServiceConfigurationError(service.getName() + ": Provider " + className
+                + " could not be instantiated", e);
+          } catch (LinkageError e)
+          {
+            throw new ServiceConfigurationError(service.getName() + ": Provider " + className
+                + " could not be instantiated", e);
+          }
+          if (service.isInstance(provider) == false)
+          {
+            throw new ServiceConfigurationError(service.getName() + ": Provider " + className
+                + " not a subtype");
+          }
+          return service.cast(provider);
+        }
+      }
+      Class<?> c;
+      try
+      {
+        c = Class.forName(className, false, loader);
+      } catch (ClassNotFoundException e)
+      {
+        throw new ServiceConfigurationError(service.getName() + ": Provider " + className
+            + " not found", e);
+      } catch (LinkageError e)
+      {
+        throw new ServiceConfigurationError(service.getName() + ": Provider " + className
+            + " could not be loaded", e);
+      }
+      if (service.isAssignableFrom(c) == false)
+      {
+        throw new ServiceConfigurationError(service.getName() + ": Provider " + className
+            + " not a subtype");
+      }
+      try
+      {
+        return service.cast(c.newInstance());
+      } catch (Exception e)
+      {
+        throw new ServiceConfigurationError(service.getName() + ": Provider " + className
+            + " could not be instantiated", e);
+      } catch (LinkageError e)
+      {
+        throw new ServiceConfigurationError(service.getName() + ": Provider " + className
+            + " could not be instantiated", e);
+      }
+    }
+
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    private ServiceProviderIndex getIndex(String indexClassName)
+    {
+      if (indexes == null)
+      {
+        indexes = new HashMap<String, ServiceProviderIndex>();
+      }
+      ServiceProviderIndex index = indexes.get(indexClassName);
+      if ((index == null) && (indexes.containsKey(indexClassName) == false))
+      {
+        index = loadIndex(loader, indexClassName);
+        indexes.put(indexClassName, index);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * The key of a memoized filter query.
+   */
+  private static final class FilterQuery
+  {
+    private final Class<?> category;
+    private final Filter filter;
+    private final boolean useOrdering;
+
+    FilterQuery(Class<?> category, Filter filter, boolean useOrdering)
+    {
+      this.category = category;
+      this.filter = filter;
+      this.useOrdering = useOrdering;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return (category.hashCode() * 31 + filter.hashCode()) * 31 + (useOrdering ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if ((obj instanceof FilterQuery) == false)
+      {
+        return false;
+      }
+      FilterQuery other = (FilterQuery) obj;
+      return (category == other.category) && (useOrdering == other.useOrdering)
+          && filter.equals(other.filter);
+    }
+  }
+
+  /**
+   * The memoized filter query results, bounded and in access order so that the
+   * least recently used result is discarded first.
+   */
+  private static final class FilterCache extends LinkedHashMap<FilterQuery, FilterResult>
+  {
+    private static final long serialVersionUID = 1L;
+
+    /** The maximum number of results. */
+    private final int capacity;
+
+    FilterCache(int capacity)
+    {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<FilterQuery, FilterResult> eldest)
+    {
+      return size() > capacity;
+    }
+  }
+
+  /**
+   * A memoized filter query result, valid while the category remains at the
+   * same epoch.
+   */
+  private static final class FilterResult
+  {
+    final long epoch;
+    final Object[] providers;
+
+    FilterResult(long epoch, Object[] providers)
+    {
+      this.epoch = epoch;
+      this.providers = providers;
+    }
+  }
+
+  /**
+   * Runs the registration callback of a provider of a batch, and records
+   * when it was submitted so that its timeout includes the time spent
+   * waiting for an executor thread.
+   */
+  private static final class RegistrationTask extends FutureTask<Object>
+  {
+    /** The provider. */
+    final RegisterableService provider;
+    /** The time the task was created at, before being submitted. */
+    private final long submitted = System.nanoTime();
+
+    RegistrationTask(final RegisterableService provider)
+    {
+      super(new Callable<Object>()
+      {
+        public Object call() throws Exception
+        {
+          provider.onRegistration(null);
+          return null;
+        }
+      });
+      this.provider = provider;
+    }
+
+    /**
+     * Waits for the callback to complete, and cancels it if it did not
+     * complete within the limit, counted from its submission.
+     * 
+     * @param limit
+     *          the maximum time in nanoseconds to wait for the callback, or 0.
+     * @return the error raised by the callback, or <code>null</code>.
+     */
+    Throwable await(long limit)
+    {
+      try
+      {
+        if (limit <= 0)
+        {
+          get();
+          return null;
+        }
+        long remaining = submitted + limit - System.nanoTime();
+        try
+        {
+          get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+          return null;
+        } catch (TimeoutException e)
+        {
+          /* Prevents the callback from starting if it is still queued */
+          cancel(true);
+          return new TimeoutException("onRegistration did not complete within "
+              + TimeUnit.NANOSECONDS.toMillis(limit) + " ms");
+        }
+      } catch (ExecutionException e)
+      {
+        return e.getCause();
+      } catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return e;
+      }
+    }
+  }
+
   /**
    * The Class FilteredIterator.
    */
@@ -424,6 +1962,10 @@ public class ServiceRegistry
      * The next obj.
      */
     private E nextObj;
+    /**
+     * True once nextObj has been searched for.
+     */
+    private boolean found;
 
     /**
      * Instantiates a new filtered iterator.
@@ -437,7 +1979,6 @@ public class ServiceRegistry
     {
       this.filter = filter;
       this.backend = backend;
-      findNext();
     }
 
     /**
@@ -447,12 +1988,13 @@ public class ServiceRegistry
      */
     public E next()
     {
-      if (nextObj == null)
+      if (hasNext() == false)
       {
         throw new NoSuchElementException();
       }
       E tmp = nextObj;
-      findNext();
+      nextObj = null;
+      found = false;
       return tmp;
     }
 
@@ -463,6 +2005,11 @@ public class ServiceRegistry
      */
     public boolean hasNext()
     {
+      if (found == false)
+      {
+        findNext();
+        found = true;
+      }
       return nextObj != null;
     }
 
@@ -476,7 +2023,8 @@ public class ServiceRegistry
 
     /**
      * Sets nextObj to a next provider matching the criterion given by the
-     * filter.
+     * filter. The filter is only run when the caller asks for the next
+     * provider.
      */
     private void findNext()
     {
@@ -492,4 +2040,4 @@ public class ServiceRegistry
       }
     }
   }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,348 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.plugin.spi.WarmableService;
+
+/** Warms up the providers of a {@link ServiceRegistry} in the background,
+ *  by calling {@link WarmableService#warmUp()} on each registered provider
+ *  implementing it, so that the first real calls to a provider do not pay
+ *  for class loading, just in time compilation and lazy initialization.
+ *
+ *  The warm-up runs on a single daemon thread of the specified priority.
+ *  Providers are warmed up once each, in decreasing order of
+ *  {@link WarmableService#getWarmUpPriority()}. Providers registered through
+ *  a {@link ServiceProviderDescriptor} are only instantiated if their class
+ *  implements <code>WarmableService</code>. A provider whose warm-up fails
+ *  is logged and remains registered.
+ *
+ *  The CPU time used by the warm-up thread is measured, and no further
+ *  provider is warmed up once it exceeds the CPU budget. When the Java
+ *  virtual machine does not measure thread CPU time, the elapsed time is
+ *  used instead.
+ *
+ *  A category is hot once all its warmable providers were warmed up. So
+ *  that callers waiting for a category are never blocked forever, all
+ *  categories are also reported hot once the warm-up ended, whether it
+ *  completed, exhausted its budget, failed or was stopped. Only the
+ *  categories of the registry at the time the warm-up is created are
+ *  tracked.
+ *
+ * @author Carl Eric Codere
+ *
+ */
+public class ServiceWarmUp
+{
+  /** The registry whose providers are warmed up. */
+  private final ServiceRegistry registry;
+  /** The priority of the warm-up thread. */
+  private final int threadPriority;
+  /** The CPU budget in nanoseconds, or 0 for no limit. */
+  private final long cpuBudget;
+  /** The latch released once each category is hot. */
+  private final Map<Class<?>, CountDownLatch> hot = new ConcurrentHashMap<Class<?>, CountDownLatch>();
+  /** The latch released once the warm-up ended. */
+  private final CountDownLatch completed = new CountDownLatch(1);
+  /** The CPU time used so far, in nanoseconds. */
+  private volatile long cpuTime;
+  /** True once the warm-up was requested to stop. */
+  private volatile boolean stopped;
+  /** The warm-up thread, null until started. Guarded by this. */
+  private Thread thread;
+
+  /** Creates a warm-up of the providers currently registered in a registry.
+   *
+   * @param registry The registry.
+   * @param threadPriority The priority of the warm-up thread, between
+   *   {@link Thread#MIN_PRIORITY} and {@link Thread#MAX_PRIORITY}.
+   * @param cpuBudget The maximum CPU time of the warm-up, or 0 for no limit.
+   * @param unit The unit of <code>cpuBudget</code>.
+   */
+  public ServiceWarmUp(ServiceRegistry registry, int threadPriority, long cpuBudget,
+      TimeUnit unit)
+  {
+    if (registry == null)
+    {
+      throw new IllegalArgumentException("registry should be != NULL");
+    }
+    if ((threadPriority < Thread.MIN_PRIORITY) || (threadPriority > Thread.MAX_PRIORITY))
+    {
+      throw new IllegalArgumentException("Invalid thread priority: " + threadPriority);
+    }
+    this.registry = registry;
+    this.threadPriority = threadPriority;
+    this.cpuBudget = unit.toNanos(cpuBudget);
+    for (Iterator<Class<?>> it = registry.getCategories(); it.hasNext();)
+    {
+      hot.put(it.next(), new CountDownLatch(1));
+    }
+  }
+
+  /** Starts the warm-up thread. Calling this method again has no effect. */
+  public synchronized void start()
+  {
+    if (thread != null)
+    {
+      return;
+    }
+    thread = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          warmUp();
+        } catch (RuntimeException e)
+        {
+          Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+              "Service warm-up failed", e);
+        } finally
+        {
+          for (Iterator<CountDownLatch> it = hot.values().iterator(); it.hasNext();)
+          {
+            it.next().countDown();
+          }
+          completed.countDown();
+        }
+      }
+    }, "service-warm-up");
+    thread.setDaemon(true);
+    thread.setPriority(threadPriority);
+    thread.start();
+  }
+
+  /** Stops the warm-up once the provider being warmed up returns. The
+   *  warm-up thread is interrupted. */
+  public synchronized void stop()
+  {
+    stopped = true;
+    if (thread != null)
+    {
+      thread.interrupt();
+    }
+  }
+
+  /** Checks if a category is hot.
+   *
+   * @param category The category.
+   * @return true if all the warmable providers of the category were warmed
+   *   up or the warm-up ended, false otherwise or if the category is not
+   *   tracked.
+   */
+  public boolean isCategoryHot(Class<?> category)
+  {
+    CountDownLatch latch = hot.get(category);
+    return (latch != null) && (latch.getCount() == 0);
+  }
+
+  /** Waits until a category is hot.
+   *
+   * @param category The category.
+   * @param timeout The maximum time to wait.
+   * @param unit The unit of <code>timeout</code>.
+   * @return true if the category is hot, false if the timeout elapsed or
+   *   the category is not tracked.
+   * @throws InterruptedException If the current thread was interrupted.
+   */
+  public boolean awaitCategory(Class<?> category, long timeout, TimeUnit unit)
+      throws InterruptedException
+  {
+    CountDownLatch latch = hot.get(category);
+    return (latch != null) && latch.await(timeout, unit);
+  }
+
+  /** Checks if the warm-up ended.
+   *
+   * @return true if the warm-up completed, exhausted its budget, failed or
+   *   was stopped.
+   */
+  public boolean isCompleted()
+  {
+    return completed.getCount() == 0;
+  }
+
+  /** Waits until the warm-up ended.
+   *
+   * @param timeout The maximum time to wait.
+   * @param unit The unit of <code>timeout</code>.
+   * @return true if the warm-up ended, false if the timeout elapsed.
+   * @throws InterruptedException If the current thread was interrupted.
+   */
+  public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    return completed.await(timeout, unit);
+  }
+
+  /** Returns the CPU time used by the warm-up so far.
+   *
+   * @return The CPU time in nanoseconds.
+   */
+  public long getCpuTime()
+  {
+    return cpuTime;
+  }
+
+  /** Warms up the providers, on the warm-up thread. */
+  private void warmUp()
+  {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    boolean measured = bean.isCurrentThreadCpuTimeSupported() && bean.isThreadCpuTimeEnabled();
+    long start = measured ? bean.getCurrentThreadCpuTime() : System.nanoTime();
+
+    /* The warmable providers, each with the categories it is registered in */
+    Map<Object, Target> targets = new IdentityHashMap<Object, Target>();
+    List<Target> order = new ArrayList<Target>();
+    Map<Class<?>, int[]> pending = new IdentityHashMap<Class<?>, int[]>();
+    for (Iterator<Map.Entry<Class<?>, CountDownLatch>> it = hot.entrySet().iterator(); it
+        .hasNext();)
+    {
+      Map.Entry<Class<?>, CountDownLatch> entry = it.next();
+      Class<?> category = entry.getKey();
+      int count = 0;
+      for (Iterator<?> providers = registry.categories.getRegisteredProviders(category); providers
+          .hasNext();)
+      {
+        Object provider = getWarmableProvider(providers.next());
+        if (provider == null)
+        {
+          continue;
+        }
+        Target target = targets.get(provider);
+        if (target == null)
+        {
+          target = new Target((WarmableService) provider);
+          targets.put(provider, target);
+          order.add(target);
+        }
+        target.categories.add(category);
+        count++;
+      }
+      if (count == 0)
+      {
+        entry.getValue().countDown();
+      } else
+      {
+        pending.put(category, new int[] { count });
+      }
+    }
+    Collections.sort(order, new Comparator<Target>()
+    {
+      public int compare(Target o1, Target o2)
+      {
+        return (o1.priority < o2.priority) ? 1 : ((o1.priority == o2.priority) ? 0 : -1);
+      }
+    });
+
+    for (int i = 0; i < order.size(); i++)
+    {
+      cpuTime = (measured ? bean.getCurrentThreadCpuTime() : System.nanoTime()) - start;
+      if (stopped || Thread.currentThread().isInterrupted())
+      {
+        return;
+      }
+      if ((cpuBudget > 0) && (cpuTime >= cpuBudget))
+      {
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).info(
+            "Service warm-up budget exhausted, " + (order.size() - i)
+                + " providers were not warmed up");
+        return;
+      }
+      Target target = order.get(i);
+      try
+      {
+        target.provider.warmUp();
+      } catch (Exception e)
+      {
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+            "Warm-up of " + target.provider.getClass().getName() + " failed", e);
+      } catch (LinkageError e)
+      {
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+            "Warm-up of " + target.provider.getClass().getName() + " failed", e);
+      }
+      for (int j = 0; j < target.categories.size(); j++)
+      {
+        Class<?> category = target.categories.get(j);
+        int[] count = pending.get(category);
+        if (--count[0] == 0)
+        {
+          hot.get(category).countDown();
+        }
+      }
+    }
+    cpuTime = (measured ? bean.getCurrentThreadCpuTime() : System.nanoTime()) - start;
+  }
+
+  /**
+   * Returns the provider to warm up for a registered entry, instantiating a
+   * descriptor only if its class is warmable.
+   *
+   * @return the provider, or <code>null</code> if it is not warmable.
+   */
+  private Object getWarmableProvider(Object provider)
+  {
+    if (provider instanceof ServiceProviderDescriptor)
+    {
+      try
+      {
+        if (WarmableService.class.isAssignableFrom(((ServiceProviderDescriptor) provider)
+            .getProviderClass()) == false)
+        {
+          return null;
+        }
+        provider = registry.categories.resolve(provider);
+      } catch (ServiceConfigurationError e)
+      {
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).log(Level.WARNING,
+            "Cannot warm up " + provider, e);
+        return null;
+      }
+    }
+    return (provider instanceof WarmableService) ? provider : null;
+  }
+
+  /** A provider to warm up. */
+  private static final class Target
+  {
+    /** The provider. */
+    final WarmableService provider;
+    /** Its warm-up priority. */
+    final int priority;
+    /** The tracked categories it is registered in. */
+    final List<Class<?>> categories = new ArrayList<Class<?>>();
+
+    Target(WarmableService provider)
+    {
+      this.provider = provider;
+      this.priority = provider.getWarmUpPriority();
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.plugin.ServiceProviderUtilities.ServiceList;
+import org.plugin.spi.ServiceConfiguration;
+
+/** Tests of the validation and restoration of a {@link RegistryImage}.
+ *
+ */
+public class RegistryImageTest extends TestCase
+{
+  /** A category. */
+  public static interface Category
+  {
+  }
+
+  /** A provider. */
+  public static class Provider implements Category
+  {
+  }
+
+  /** A configurable category. */
+  public static interface ConfiguredCategory
+  {
+  }
+
+  /** A provider with a single String property. */
+  public static class ConfiguredProvider implements ConfiguredCategory, ServiceConfiguration
+  {
+    private Object name;
+
+    public String[] getParameterNames()
+    {
+      return new String[] { "name" };
+    }
+
+    public void setProperty(String name, Object value)
+    {
+      this.name = value;
+    }
+
+    public Object getProperty(String name)
+    {
+      return this.name;
+    }
+
+    public Object getPropertyDatatype(String name)
+    {
+      return "";
+    }
+
+    public String getPropertyHelp(String name, String locale)
+    {
+      return null;
+    }
+  }
+
+  private File directory;
+  private File jar;
+  private File image;
+
+  protected void setUp() throws IOException
+  {
+    directory = TestFiles.createDirectory("image");
+    /* Never opened as a jar, only hashed */
+    jar = new File(directory, "plugin.jar");
+    TestFiles.write(jar, "first content");
+    image = new File(directory, "registry.image");
+
+    ServiceRegistry registry = newRegistry();
+    registry.registerServiceProvider(new Provider(), Category.class);
+    RegistryImage.save(image, directory, null, registry);
+  }
+
+  protected void tearDown()
+  {
+    TestFiles.delete(directory);
+  }
+
+  private static ServiceRegistry newRegistry()
+  {
+    List<Class<?>> categories = new ArrayList<Class<?>>();
+    categories.add(Category.class);
+    return new ServiceRegistry(categories.iterator());
+  }
+
+  public void testRestore()
+  {
+    ServiceRegistry registry = newRegistry();
+    assertTrue(RegistryImage.restore(image, directory, null, registry));
+    assertTrue(registry.findFirst(Category.class, null) instanceof Provider);
+  }
+
+  public void testPendingPropertiesAreSavedAgain() throws IOException
+  {
+    List<Class<?>> categories = new ArrayList<Class<?>>();
+    categories.add(ConfiguredCategory.class);
+    ServiceRegistry registry = new ServiceRegistry(categories.iterator());
+    ConfiguredProvider provider = new ConfiguredProvider();
+    provider.setProperty("name", "saved");
+    registry.registerServiceProvider(provider, ConfiguredCategory.class);
+    RegistryImage.save(image, directory, null, registry);
+
+    /* Saved again before the restored provider is instantiated */
+    registry = new ServiceRegistry(categories.iterator());
+    assertTrue(RegistryImage.restore(image, directory, null, registry));
+    RegistryImage.save(image, directory, null, registry);
+
+    registry = new ServiceRegistry(categories.iterator());
+    assertTrue(RegistryImage.restore(image, directory, null, registry));
+    provider = (ConfiguredProvider) registry.findFirst(ConfiguredCategory.class, null);
+    assertEquals("saved", provider.getProperty("name"));
+  }
+
+  public void testJarModifiedWithSameSizeAndTime() throws IOException
+  {
+    long modified = jar.lastModified();
+    TestFiles.write(jar, "other content");
+    jar.setLastModified(modified);
+    assertFalse(RegistryImage.restore(image, directory, null, newRegistry()));
+  }
+
+  public void testFrozenRegistryIsLeftUnchanged()
+  {
+    ServiceList list = new ServiceList();
+    list.addCategory(Category.class);
+    ServiceRegistry registry = newRegistry();
+    registry.freeze(ServiceRegistry.FREEZE_FAIL_FAST);
+    assertFalse(RegistryImage.restore(image, directory, list, registry));
+    assertFalse(list.getRegisteredProviders(Category.class).hasNext());
+    assertFalse(registry.getServiceProviders(Category.class, false).hasNext());
+  }
+}
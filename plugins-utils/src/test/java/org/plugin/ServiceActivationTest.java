@@ -0,0 +1,206 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.plugin.spi.DependentService;
+import org.plugin.spi.RegisterableService;
+
+/** Tests of {@link ServiceRegistry#activateServiceProviders}.
+ *
+ */
+public class ServiceActivationTest extends TestCase
+{
+  /** A category. */
+  public static interface Category
+  {
+  }
+
+  /** A provider recording its registration callbacks. */
+  public static class Provider implements Category, RegisterableService
+  {
+    final List<String> events = new ArrayList<String>();
+
+    public void onRegistration(Class category)
+    {
+      events.add("registered");
+    }
+
+    public void onDeregistration(Class category)
+    {
+      events.add("deregistered");
+    }
+  }
+
+  /** A provider depending on other plugins. */
+  public static class Dependent implements Category, DependentService
+  {
+    private final String[] ids;
+
+    public Dependent(String[] ids)
+    {
+      this.ids = ids;
+    }
+
+    public String[] getPluginDependencies()
+    {
+      return ids;
+    }
+
+    public Class[] getCategoryDependencies()
+    {
+      return new Class[0];
+    }
+  }
+
+  /** A provider that cannot be constructed. */
+  public static class BrokenProvider implements Category
+  {
+    public BrokenProvider()
+    {
+      throw new IllegalStateException("broken");
+    }
+  }
+
+  /** A provider whose registration callback fails, recording whether it
+   *  was visible in the registry meanwhile. */
+  public static class FailingProvider extends Provider
+  {
+    static ServiceRegistry registry;
+    boolean visible;
+
+    public void onRegistration(Class category)
+    {
+      super.onRegistration(category);
+      visible = registry.contains(this);
+      throw new IllegalStateException("failed");
+    }
+  }
+
+  private ServiceRegistry registry;
+
+  protected void setUp()
+  {
+    List<Class<?>> categories = new ArrayList<Class<?>>();
+    categories.add(Category.class);
+    registry = new ServiceRegistry(categories.iterator());
+  }
+
+  static ServiceProviderDescriptor describe(Class<?> providerClass)
+  {
+    return new ServiceProviderDescriptor(providerClass.getName(), null,
+        new String[] { Category.class.getName() }, ServiceActivationTest.class
+            .getClassLoader());
+  }
+
+  public void testDescriptorIsRegistered() throws ServiceRegistrationException
+  {
+    ServiceProviderDescriptor descriptor = describe(Provider.class);
+    registry.activateServiceProviders(Arrays.asList(new Object[] { descriptor }).iterator(),
+        null);
+    assertEquals(Arrays.asList(new Object[] { descriptor }), ServiceRegistryTest
+        .toList(registry.categories.getRegisteredProviders(Category.class)));
+
+    /* Notified on activation only */
+    Provider provider = (Provider) registry.findFirst(Category.class, null);
+    assertSame(descriptor.getInstance(), provider);
+    registry.findFirst(Category.class, null);
+    assertEquals(Arrays.asList(new String[] { "registered" }), provider.events);
+
+    registry.deregisterServiceProvider(provider);
+    assertFalse(registry.contains(descriptor));
+    assertEquals(Arrays.asList(new String[] { "registered", "deregistered" }), provider.events);
+  }
+
+  public void testDependencyOnRegisteredPlugin() throws ServiceRegistrationException
+  {
+    registry.registerServiceProvider(describe(Provider.class), Category.class);
+    Dependent dependent = new Dependent(new String[] { Provider.class.getName() });
+    registry.activateServiceProviders(Arrays.asList(new Object[] { dependent }).iterator(),
+        null);
+    assertTrue(registry.contains(dependent));
+
+    Dependent orphan = new Dependent(new String[] { "org.plugin.Missing" });
+    try
+    {
+      registry.activateServiceProviders(Arrays.asList(new Object[] { orphan }).iterator(),
+          null);
+      fail("The missing dependency should be reported");
+    } catch (ServiceRegistrationException e)
+    {
+      ServiceProviderException error = (ServiceProviderException) e.getFailures().get(orphan);
+      assertEquals(ServiceProviderException.NOT_FOUND, error.getErrorCode());
+    }
+    assertFalse(registry.contains(orphan));
+  }
+
+  public void testConstructionFailure()
+  {
+    ServiceProviderDescriptor broken = describe(BrokenProvider.class);
+    ServiceProviderDescriptor working = describe(Provider.class);
+    try
+    {
+      registry.activateServiceProviders(Arrays.asList(new Object[] { broken, working })
+          .iterator(), null);
+      fail("The failed construction should be reported");
+    } catch (ServiceRegistrationException e)
+    {
+      Map<Object, Throwable> failures = e.getFailures();
+      assertEquals(1, failures.size());
+      assertTrue(failures.containsKey(BrokenProvider.class.getName()));
+    }
+    assertFalse(registry.contains(broken));
+    assertTrue(registry.contains(working));
+  }
+
+  public void testFailedCallbackIsNeverPublished()
+  {
+    FailingProvider.registry = registry;
+    FailingProvider failing = new FailingProvider();
+    Provider working = new Provider();
+    try
+    {
+      registry.activateServiceProviders(Arrays.asList(new Object[] { failing, working })
+          .iterator(), null);
+      fail("The failed callback should be reported");
+    } catch (ServiceRegistrationException e)
+    {
+      assertTrue(e.getFailures().containsKey(failing));
+    }
+    assertFalse(failing.visible);
+    assertFalse(registry.contains(failing));
+    assertEquals(Arrays.asList(new String[] { "registered" }), failing.events);
+    assertTrue(registry.contains(working));
+  }
+
+  public void testActivationWithShutdownExecutor() throws ServiceRegistrationException
+  {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    Provider provider = new Provider();
+    registry.activateServiceProviders(Arrays.asList(new Object[] { provider }).iterator(),
+        executor);
+    assertTrue(registry.contains(provider));
+    assertEquals(Arrays.asList(new String[] { "registered" }), provider.events);
+  }
+}
@@ -0,0 +1,108 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/** Tests of the persistence of a {@link ServiceDiscoveryIndex}.
+ *
+ */
+public class ServiceDiscoveryIndexTest extends TestCase
+{
+  private static final String SERVICE = "org.example.Service";
+
+  private File directory;
+  private File jar;
+  private File indexFile;
+
+  protected void setUp() throws IOException
+  {
+    directory = TestFiles.createDirectory("index");
+    jar = new File(directory, "plugin.jar");
+    Map<String, String> entries = new LinkedHashMap<String, String>();
+    entries.put(PluginJar.SERVICES_DIRECTORY + SERVICE,
+        "org.example.First\norg.example.Second\n");
+    TestFiles.writeJar(jar, entries);
+    indexFile = new File(directory, "discovery.index");
+  }
+
+  protected void tearDown()
+  {
+    TestFiles.delete(directory);
+  }
+
+  private void createIndex() throws IOException
+  {
+    ServiceDiscoveryIndex index = new ServiceDiscoveryIndex(indexFile);
+    index.resolve(jar);
+    assertTrue(index.isModified());
+    index.save();
+    assertTrue(indexFile.exists());
+    assertFalse(new File(indexFile.getPath() + ".tmp").exists());
+  }
+
+  public void testReload() throws IOException
+  {
+    createIndex();
+    ServiceDiscoveryIndex index = new ServiceDiscoveryIndex(indexFile);
+    PluginJar resolved = index.resolve(jar);
+    assertFalse(index.isModified());
+    assertEquals(Arrays.asList(new String[] { "org.example.First", "org.example.Second" }),
+        resolved.getProviderClassNames(SERVICE));
+  }
+
+  public void testTruncatedIndexIsIgnored() throws IOException
+  {
+    createIndex();
+    long length = indexFile.length();
+    /* Any cut before the last line drops the end line */
+    for (long cut = length - 2; cut >= 0; cut--)
+    {
+      TestFiles.truncate(indexFile, cut);
+      ServiceDiscoveryIndex index = new ServiceDiscoveryIndex(indexFile);
+      PluginJar resolved = index.resolve(jar);
+      assertTrue("cut at " + cut, index.isModified());
+      assertEquals("cut at " + cut, 2, resolved.getProviderClassNames(SERVICE).size());
+      createIndex();
+    }
+  }
+
+  public void testEntriesAfterTheEndAreRejected() throws IOException
+  {
+    createIndex();
+    ServiceDiscoveryIndex index = new ServiceDiscoveryIndex(indexFile);
+    index.resolve(jar);
+    assertFalse(index.isModified());
+
+    FileWriter writer = new FileWriter(indexFile, true);
+    try
+    {
+      writer.write("jar=" + jar.getAbsolutePath() + "\n");
+    } finally
+    {
+      writer.close();
+    }
+    index = new ServiceDiscoveryIndex(indexFile);
+    index.resolve(jar);
+    assertTrue(index.isModified());
+  }
+}
@@ -0,0 +1,118 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/** Tests of the recovery of a {@link ServiceListJournal}.
+ *
+ */
+public class ServiceListJournalTest extends TestCase
+{
+  /** A category. */
+  public static interface Category
+  {
+  }
+
+  private File directory;
+
+  protected void setUp() throws IOException
+  {
+    directory = TestFiles.createDirectory("journal");
+  }
+
+  protected void tearDown()
+  {
+    TestFiles.delete(directory);
+  }
+
+  private ServiceListJournal open() throws IOException
+  {
+    return new ServiceListJournal(directory, Category.class, 100);
+  }
+
+  private static Map<String, Boolean> entries(String[] ids, boolean[] states)
+  {
+    Map<String, Boolean> entries = new LinkedHashMap<String, Boolean>();
+    for (int i = 0; i < ids.length; i++)
+    {
+      entries.put(ids[i], Boolean.valueOf(states[i]));
+    }
+    return entries;
+  }
+
+  public void testTruncatedJournal() throws IOException
+  {
+    ServiceListJournal journal = open();
+    journal.setEnabled("a", true);
+    journal.setEnabled("b", true);
+    File file = ServiceListJournal.getJournalFile(directory, Category.class);
+    TestFiles.truncate(file, file.length() - 3);
+
+    /* The partly written record is dropped, and overwritten by the next one */
+    journal = open();
+    assertEquals(entries(new String[] { "a" }, new boolean[] { true }), journal.getEntries());
+    journal.setEnabled("c", false);
+    assertEquals(entries(new String[] { "a", "c" }, new boolean[] { true, false }), open()
+        .getEntries());
+  }
+
+  public void testChangeAfterCompactionByAnotherInstance() throws IOException
+  {
+    ServiceListJournal first = open();
+    first.setEnabled("a", true);
+    /* Deletes the journal the first instance appended to */
+    open().replace(entries(new String[] { "x" }, new boolean[] { true }));
+
+    first.setEnabled("b", true);
+    first.setEnabled("c", false);
+    Map<String, Boolean> expected = entries(new String[] { "x", "b", "c" }, new boolean[] {
+        true, true, false });
+    assertEquals(expected, first.getEntries());
+    assertEquals(expected, open().getEntries());
+  }
+
+  public void testSameLengthReplacementByAnotherInstance() throws IOException
+  {
+    ServiceListJournal first = open();
+    ServiceListJournal second = open();
+    first.replace(entries(new String[] { "a" }, new boolean[] { true }));
+    /* A snapshot of the same length, likely with the same modification time */
+    second.replace(entries(new String[] { "b" }, new boolean[] { true }));
+
+    first.setEnabled("c", true);
+    Map<String, Boolean> expected = entries(new String[] { "b", "c" }, new boolean[] { true,
+        true });
+    assertEquals(expected, first.getEntries());
+    assertEquals(expected, open().getEntries());
+  }
+
+  public void testSharedInstance() throws IOException
+  {
+    ServiceListJournal journal = ServiceListJournal.getInstance(directory, Category.class);
+    assertSame(journal, ServiceListJournal.getInstance(directory, Category.class));
+    journal.setEnabled("a", true);
+
+    /* Changes made outside are read again */
+    open().setEnabled("b", false);
+    assertEquals(entries(new String[] { "a", "b" }, new boolean[] { true, false }),
+        ServiceListJournal.getInstance(directory, Category.class).getEntries());
+  }
+}
@@ -0,0 +1,145 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.plugin.ServiceProviderUtilities.ServiceList;
+import org.plugin.spi.RegisterableService;
+
+/** Tests of the registries populated by
+ *  {@link ServiceProviderUtilities#loadServiceList}, which hold the
+ *  descriptors of the discovered providers.
+ *
+ */
+public class ServiceListStorageTest extends TestCase
+{
+  /** A category. */
+  public static interface Category
+  {
+  }
+
+  /** A discovered provider. */
+  public static class Provider implements Category, RegisterableService
+  {
+    static final List<String> events = new ArrayList<String>();
+
+    public void onRegistration(Class category)
+    {
+      events.add("registered");
+    }
+
+    public void onDeregistration(Class category)
+    {
+      events.add("deregistered");
+    }
+  }
+
+  private File directory;
+  private File configuration;
+  private ClassLoader contextLoader;
+  private ServiceList list;
+  private ServiceRegistry registry;
+
+  protected void setUp() throws IOException
+  {
+    directory = TestFiles.createDirectory("services");
+    File services = new File(directory, "classes/" + PluginJar.SERVICES_DIRECTORY);
+    services.mkdirs();
+    TestFiles.write(new File(services, Category.class.getName()), Provider.class.getName()
+        + "\n");
+    configuration = new File(directory, "configuration");
+    configuration.mkdir();
+    contextLoader = Thread.currentThread().getContextClassLoader();
+    Thread.currentThread().setContextClassLoader(new URLClassLoader(new URL[] { new File(
+        directory, "classes").toURI().toURL() }, getClass().getClassLoader()));
+    Provider.events.clear();
+
+    List<Class<?>> categories = new ArrayList<Class<?>>();
+    categories.add(Category.class);
+    registry = new ServiceRegistry(categories.iterator());
+    list = new ServiceList();
+    list.addCategory(Category.class);
+  }
+
+  protected void tearDown()
+  {
+    Thread.currentThread().setContextClassLoader(contextLoader);
+    TestFiles.delete(directory);
+  }
+
+  /** Loads the service list, with the provider enabled. */
+  private Provider load() throws IOException
+  {
+    TestFiles.write(ServiceListJournal.getSnapshotFile(configuration, Category.class),
+        Provider.class.getName() + "=true\n");
+    ServiceProviderUtilities.loadServiceList(configuration, list, registry, new Object[0],
+        Category.class);
+    assertEquals(1, registry.count(Category.class, null));
+    Object provider = registry.getServiceProviders(Category.class, false).next();
+    assertTrue(provider instanceof Provider);
+    return (Provider) provider;
+  }
+
+  private Boolean getSavedState() throws IOException
+  {
+    ServiceProviderUtilities.saveServiceList(configuration, list, registry, Category.class);
+    return new ServiceListJournal(configuration, Category.class).getEntries().get(
+        Provider.class.getName());
+  }
+
+  public void testInstanceIsContained() throws IOException
+  {
+    Provider provider = load();
+    assertTrue(registry.contains(provider));
+    assertTrue(registry.contains(provider, Category.class));
+    assertSame(provider, registry.getServiceProviderByClass(Provider.class));
+  }
+
+  public void testInstanceDeregistration() throws IOException
+  {
+    Provider provider = load();
+    assertEquals(1, Provider.events.size());
+    assertTrue(registry.deregisterServiceProvider(provider, Category.class));
+    assertFalse(registry.contains(provider));
+    assertEquals(0, registry.count(Category.class, null));
+    assertEquals("deregistered", Provider.events.get(1));
+    assertEquals(Boolean.FALSE, getSavedState());
+
+    /* Registered again as an instance */
+    assertTrue(registry.registerServiceProvider(provider, Category.class));
+    assertEquals(Boolean.TRUE, getSavedState());
+    registry.deregisterServiceProvider(provider);
+    assertEquals(0, registry.count(Category.class, null));
+    assertEquals(Boolean.FALSE, getSavedState());
+  }
+
+  public void testInstanceRegistrationIsNotDuplicated() throws IOException
+  {
+    Provider provider = load();
+    assertFalse(registry.registerServiceProvider(provider, Category.class));
+    registry.registerServiceProvider(provider);
+    assertEquals(1, registry.count(Category.class, null));
+    assertEquals(1, registry.getServiceProvidersAsList(Category.class).size());
+    assertEquals(Boolean.TRUE, getSavedState());
+  }
+}
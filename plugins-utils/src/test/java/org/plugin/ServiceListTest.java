@@ -0,0 +1,91 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.plugin.ServiceProviderUtilities.ServiceList;
+
+/** Tests of the modification epochs of a {@link ServiceList}.
+ *
+ */
+public class ServiceListTest extends TestCase
+{
+  /** A supertype which is not a category. */
+  public static interface Base
+  {
+  }
+
+  /** A category. */
+  public static interface First extends Base
+  {
+  }
+
+  /** Another category. */
+  public static interface Second extends Base
+  {
+  }
+
+  public static class FirstProvider implements First
+  {
+  }
+
+  public static class SecondProvider implements Second
+  {
+  }
+
+  public void testEpochAfterAddCategory()
+  {
+    ServiceList list = new ServiceList();
+    list.addCategory(First.class);
+    Set<Long> seen = new HashSet<Long>();
+    assertTrue(seen.add(Long.valueOf(list.getEpoch(First.class))));
+    list.addProvider(new FirstProvider(), First.class);
+    long before = list.getEpoch(First.class);
+    assertTrue(seen.add(Long.valueOf(before)));
+
+    /* The reset category goes through the same number of modifications */
+    list.addCategory(First.class);
+    assertTrue(list.getEpoch(First.class) > before);
+    assertTrue(seen.add(Long.valueOf(list.getEpoch(First.class))));
+    list.addProvider(new FirstProvider(), First.class);
+    assertTrue(seen.add(Long.valueOf(list.getEpoch(First.class))));
+  }
+
+  public void testSupertypeEpoch()
+  {
+    ServiceList list = new ServiceList();
+    list.addCategory(First.class);
+    list.addProvider(new FirstProvider(), First.class);
+    list.addProvider(new FirstProvider(), First.class);
+    Set<Long> seen = new HashSet<Long>();
+    assertTrue(seen.add(Long.valueOf(list.getEpoch(Base.class))));
+
+    /* A new, still empty, member category */
+    list.addCategory(Second.class);
+    assertTrue(seen.add(Long.valueOf(list.getEpoch(Base.class))));
+    list.addProvider(new SecondProvider(), Second.class);
+    assertTrue(seen.add(Long.valueOf(list.getEpoch(Base.class))));
+
+    /* A replaced member category */
+    list.addCategory(First.class);
+    assertTrue(seen.add(Long.valueOf(list.getEpoch(Base.class))));
+    list.addProvider(new FirstProvider(), First.class);
+    assertTrue(seen.add(Long.valueOf(list.getEpoch(Base.class))));
+  }
+}
@@ -0,0 +1,223 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import junit.framework.TestCase;
+
+/** Tests of the plugin discovery helpers of {@link ServiceProviderUtilities}.
+ *
+ */
+public class ServiceProviderUtilitiesTest extends TestCase
+{
+  private File directory;
+
+  protected void setUp() throws IOException
+  {
+    directory = TestFiles.createDirectory("plugins");
+  }
+
+  protected void tearDown()
+  {
+    TestFiles.delete(directory);
+  }
+
+  private static void writeJar(File file, String content) throws IOException
+  {
+    Map<String, String> entries = new LinkedHashMap<String, String>();
+    entries.put("content.txt", content);
+    TestFiles.writeJar(file, entries);
+  }
+
+  public void testPluginClassLoaderOfReplacedJar() throws IOException
+  {
+    File jar = new File(directory, "plugin.jar");
+    writeJar(jar, "first");
+    File[] jars = new File[] { jar };
+    ClassLoader loader = ServiceProviderUtilities.getPluginClassLoader(jars);
+    assertSame(loader, ServiceProviderUtilities.getPluginClassLoader(jars));
+
+    /* Replaced under the same name */
+    writeJar(jar, "second version");
+    jar.setLastModified(jar.lastModified() + 2000);
+    ClassLoader replaced = ServiceProviderUtilities.getPluginClassLoader(jars);
+    assertNotSame(loader, replaced);
+    assertSame(replaced, ServiceProviderUtilities.getPluginClassLoader(jars));
+  }
+
+  public void testReplacedLoaderStaysOpen() throws IOException
+  {
+    File jar = new File(directory, "plugin.jar");
+    Map<String, String> entries = new LinkedHashMap<String, String>();
+    entries.put("first.txt", "first");
+    entries.put("second.txt", "second");
+    TestFiles.writeJar(jar, entries);
+    File[] jars = new File[] { jar };
+    ClassLoader loader = ServiceProviderUtilities.getPluginClassLoader(jars);
+    assertNotNull(loader.getResource("first.txt"));
+
+    /* Replaced by a new file, the providers of the previous loader still use it */
+    File replacement = new File(directory, "plugin.tmp");
+    writeJar(replacement, "replaced");
+    assertTrue(jar.delete() && replacement.renameTo(jar));
+    jar.setLastModified(jar.lastModified() + 2000);
+    assertNotSame(loader, ServiceProviderUtilities.getPluginClassLoader(jars));
+    assertNotNull(loader.getResource("second.txt"));
+  }
+
+  public void testValidatorsAcceptNull() throws Exception
+  {
+    Object[] dataTypes = new Object[] { new Integer[] { new Integer(1) }, new Integer(0),
+        new String[] { "a" }, "", Boolean.FALSE, new URI("file:/"), new URL("file:/") };
+    for (int i = 0; i < dataTypes.length; i++)
+    {
+      assertNull(PropertyValidator.compile(dataTypes[i]).validate(null));
+      assertNull(ServiceProviderUtilities.validateValue(dataTypes[i], null));
+    }
+  }
+
+  public void testUrlValidator() throws Exception
+  {
+    PropertyValidator validator = PropertyValidator.compile(new URL("file:/"));
+    URL url = new URL("file:/plugins/");
+    assertSame(url, validator.validate(url));
+    try
+    {
+      validator.validate("file:/plugins/");
+      fail("A String should not be accepted as a URL");
+    } catch (IllegalArgumentException e)
+    {
+      /* Expected */
+    }
+  }
+
+  public void testListPluginJars() throws IOException
+  {
+    assertNull(ServiceProviderUtilities.listPluginJars(new File(directory, "missing")));
+    File lib = new File(directory, "lib");
+    lib.mkdir();
+    writeJar(new File(lib, "b.jar"), "b");
+    writeJar(new File(lib, "a.jar"), "a");
+    writeJar(new File(directory, "c.jar"), "c");
+    File[] jars = ServiceProviderUtilities.listPluginJars(directory);
+    assertEquals(3, jars.length);
+    assertEquals("a.jar", jars[0].getName());
+    assertEquals("b.jar", jars[1].getName());
+    assertEquals("c.jar", jars[2].getName());
+  }
+
+  /** Compiles a plugin providing a <code>Runnable</code> and writes it to a
+   *  jar of the specified implementation version.
+   *
+   * @return false if no compiler is available.
+   */
+  private boolean writePlugin(File jar, String version, String constructorBody)
+      throws IOException
+  {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null)
+    {
+      return false;
+    }
+    File sources = new File(directory, "src-" + version);
+    new File(sources, "p").mkdirs();
+    File source = new File(sources, "p/Impl.java");
+    TestFiles.write(source, "package p; public class Impl implements Runnable { public Impl() { "
+        + constructorBody + " } public void run() { } }");
+    assertEquals(0, compiler.run(null, null, null, "-d", sources.getPath(), source.getPath()));
+
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_VERSION, version);
+    JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+    try
+    {
+      out.putNextEntry(new JarEntry(PluginJar.SERVICES_DIRECTORY + Runnable.class.getName()));
+      out.write("p.Impl\n".getBytes("UTF-8"));
+      out.putNextEntry(new JarEntry("p/Impl.class"));
+      InputStream in = new FileInputStream(new File(sources, "p/Impl.class"));
+      try
+      {
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) > 0)
+        {
+          out.write(buffer, 0, count);
+        }
+      } finally
+      {
+        in.close();
+      }
+    } finally
+    {
+      out.close();
+    }
+    TestFiles.delete(sources);
+    return true;
+  }
+
+  private String loadVersion(int discoveryMode)
+  {
+    List<Runnable> providers = ServiceProviderUtilities.loadServiceProviders(Runnable.class,
+        directory, discoveryMode);
+    assertEquals(1, providers.size());
+    return providers.get(0).getClass().getPackage().getImplementationVersion();
+  }
+
+  public void testSharedLoaderKeepsLatestVersion() throws IOException
+  {
+    if (writePlugin(new File(directory, "a.jar"), "1.0", "") == false)
+    {
+      return;
+    }
+    writePlugin(new File(directory, "b.jar"), "2.0", "");
+    assertEquals("2.0", loadVersion(ServiceProviderUtilities.DISCOVERY_SHARED_LOADER));
+  }
+
+  public void testFallbackToNextVersion() throws IOException
+  {
+    if (writePlugin(new File(directory, "a.jar"), "1.0", "") == false)
+    {
+      return;
+    }
+    writePlugin(new File(directory, "b.jar"), "3.0", "throw new IllegalStateException();");
+    writePlugin(new File(directory, "c.jar"), "2.0", "");
+    assertEquals("2.0", loadVersion(ServiceProviderUtilities.DISCOVERY_SHARED_LOADER));
+
+    /* Copies of separate directories */
+    File lib = new File(directory, "lib");
+    lib.mkdir();
+    new File(directory, "a.jar").renameTo(new File(lib, "a.jar"));
+    new File(directory, "c.jar").delete();
+    assertEquals("1.0", loadVersion(ServiceProviderUtilities.DISCOVERY_SEPARATE_LOADERS));
+  }
+}
@@ -0,0 +1,511 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.plugin.index.ServiceProviderIndex;
+import org.plugin.spi.RegisterableService;
+
+/** Tests of the registration and deregistration of providers in a
+ *  {@link ServiceRegistry}.
+ *
+ */
+public class ServiceRegistryTest extends TestCase
+{
+  /** A category. */
+  public static interface Category
+  {
+  }
+
+  /** A provider recording its registration callbacks. */
+  public static class Provider implements Category, RegisterableService
+  {
+    final List<String> events = new ArrayList<String>();
+
+    public void onRegistration(Class category) throws ServiceProviderException
+    {
+      events.add("registered");
+    }
+
+    public void onDeregistration(Class category)
+    {
+      events.add("deregistered");
+    }
+  }
+
+  /** Returns the providers of an iterator. */
+  static List<Object> toList(Iterator<?> it)
+  {
+    List<Object> list = new ArrayList<Object>();
+    while (it.hasNext())
+    {
+      list.add(it.next());
+    }
+    return list;
+  }
+
+  /** A provider whose registration callback fails. */
+  public static class FailingProvider extends Provider
+  {
+    public void onRegistration(Class category) throws ServiceProviderException
+    {
+      super.onRegistration(category);
+      throw new ServiceProviderException(ServiceProviderException.INTERNAL_ERROR, "failed");
+    }
+  }
+
+  /** Another category. */
+  public static interface Other
+  {
+  }
+
+  /** A provider whose registration callback waits until it is released. */
+  public static class SlowProvider implements Category, RegisterableService
+  {
+    static final CountDownLatch started = new CountDownLatch(1);
+    static final CountDownLatch released = new CountDownLatch(1);
+
+    public void onRegistration(Class category)
+    {
+      started.countDown();
+      try
+      {
+        released.await();
+      } catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    public void onDeregistration(Class category)
+    {
+    }
+  }
+
+  /** A provider of the other category. */
+  public static class OtherProvider implements Other, RegisterableService
+  {
+    int registrations;
+
+    public void onRegistration(Class category)
+    {
+      registrations++;
+    }
+
+    public void onDeregistration(Class category)
+    {
+    }
+  }
+
+  /** A provider whose class cannot be initialized. */
+  public static class BrokenProvider implements Category
+  {
+    static
+    {
+      if (Boolean.TRUE.booleanValue())
+      {
+        throw new IllegalStateException("broken");
+      }
+    }
+  }
+
+  static ServiceRegistry newRegistry()
+  {
+    List<Class<?>> categories = new ArrayList<Class<?>>();
+    categories.add(Category.class);
+    categories.add(Other.class);
+    return new ServiceRegistry(categories.iterator());
+  }
+
+  static ServiceProviderDescriptor describe(Class<?> providerClass, Class<?> category)
+  {
+    return new ServiceProviderDescriptor(providerClass.getName(), null,
+        new String[] { category.getName() }, ServiceRegistryTest.class.getClassLoader());
+  }
+
+  public void testProviderByClassAfterRemoval()
+  {
+    ServiceRegistry registry = newRegistry();
+    Provider first = new Provider();
+    Provider second = new Provider();
+    Provider third = new Provider();
+    registry.registerServiceProvider(first);
+    registry.registerServiceProvider(second);
+    registry.registerServiceProvider(third);
+    assertSame(third, registry.getServiceProviderByClass(Provider.class));
+
+    registry.deregisterServiceProvider(second);
+    assertSame(third, registry.getServiceProviderByClass(Provider.class));
+    registry.deregisterServiceProvider(third);
+    assertSame(first, registry.getServiceProviderByClass(Provider.class));
+    registry.deregisterServiceProvider(first);
+    assertNull(registry.getServiceProviderByClass(Provider.class));
+  }
+
+  public void testDeregistrationCallbackOfRemovedInstance()
+  {
+    ServiceRegistry registry = newRegistry();
+    Provider registered = new Provider();
+    Provider other = new Provider();
+    registry.registerServiceProvider(registered);
+    registered.events.clear();
+
+    /* Not registered itself, the registered instance of its class is removed */
+    registry.deregisterServiceProvider(other);
+    assertFalse(registry.contains(registered));
+    assertEquals(Arrays.asList(new String[] { "deregistered" }), registered.events);
+    assertTrue(other.events.isEmpty());
+
+    /* Nothing left to remove, no callback */
+    registry.deregisterServiceProvider(other);
+    assertEquals(1, registered.events.size());
+    assertTrue(other.events.isEmpty());
+  }
+
+  public void testDeregistrationOfUnregisteredInstanceRemovesItsClass()
+  {
+    ServiceRegistry registry = newRegistry();
+    Provider first = new Provider();
+    Provider second = new Provider();
+    registry.registerServiceProvider(first);
+    registry.registerServiceProvider(second);
+
+    registry.deregisterServiceProvider(new Provider());
+    assertFalse(registry.contains(first));
+    assertFalse(registry.contains(second));
+    assertNull(registry.getServiceProviderByClass(Provider.class));
+    assertEquals("deregistered", first.events.get(first.events.size() - 1));
+    assertEquals("deregistered", second.events.get(second.events.size() - 1));
+  }
+
+  public void testCachedProvidersAfterCategoryReset()
+  {
+    ServiceRegistry registry = newRegistry();
+    ServiceRegistry.Filter all = new ServiceRegistry.Filter()
+    {
+      public boolean filter(Object provider)
+      {
+        return true;
+      }
+    };
+    Provider first = new Provider();
+    registry.registerServiceProvider(first, Category.class);
+    assertEquals(Arrays.asList(new Object[] { first }),
+        toList(registry.getCachedServiceProviders(Category.class, all, false)));
+
+    /* Same number of modifications since the category was added */
+    registry.categories.addCategory(Category.class);
+    Provider second = new Provider();
+    registry.registerServiceProvider(second, Category.class);
+    assertEquals(Arrays.asList(new Object[] { second }),
+        toList(registry.getCachedServiceProviders(Category.class, all, false)));
+  }
+
+  /** A filter accepting all providers, distinct from any other. */
+  static final class AcceptAll implements ServiceRegistry.Filter
+  {
+    public boolean filter(Object provider)
+    {
+      return true;
+    }
+  }
+
+  public void testFilterCacheIsBounded()
+  {
+    ServiceRegistry registry = newRegistry();
+    registry.registerServiceProvider(new Provider(), Category.class);
+    AcceptAll first = new AcceptAll();
+    registry.getCachedServiceProviders(Category.class, first, false);
+    registry.getCachedServiceProviders(Category.class, first, false);
+    assertEquals(1, registry.getFilterCacheHits());
+
+    for (int i = 0; i < ServiceRegistry.FILTER_CACHE_SIZE; i++)
+    {
+      registry.getCachedServiceProviders(Category.class, new AcceptAll(), false);
+    }
+    /* The least recently used result was discarded */
+    long misses = registry.getFilterCacheMisses();
+    registry.getCachedServiceProviders(Category.class, first, false);
+    assertEquals(misses + 1, registry.getFilterCacheMisses());
+  }
+
+  public void testBatchWithRejectingExecutor() throws ServiceRegistrationException
+  {
+    ServiceRegistry registry = newRegistry();
+    Executor rejecting = new Executor()
+    {
+      public void execute(Runnable command)
+      {
+        throw new RejectedExecutionException("shut down");
+      }
+    };
+    Provider first = new Provider();
+    Provider second = new Provider();
+    registry.registerServiceProviders(Arrays.asList(new Object[] { first, second }).iterator(),
+        rejecting, 0, TimeUnit.SECONDS);
+    assertEquals(Arrays.asList(new String[] { "registered" }), first.events);
+    assertEquals(Arrays.asList(new String[] { "registered" }), second.events);
+    assertTrue(registry.contains(first));
+    assertTrue(registry.contains(second));
+  }
+
+  public void testBatchTimeoutWithBusyExecutor() throws Exception
+  {
+    ServiceRegistry registry = newRegistry();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    final CountDownLatch released = new CountDownLatch(1);
+    try
+    {
+      executor.execute(new Runnable()
+      {
+        public void run()
+        {
+          try
+          {
+            released.await();
+          } catch (InterruptedException e)
+          {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+      Provider queued = new Provider();
+      try
+      {
+        registry.registerServiceProviders(Arrays.asList(new Object[] { queued }).iterator(),
+            executor, 100, TimeUnit.MILLISECONDS);
+        fail("The queued callback should time out");
+      } catch (ServiceRegistrationException e)
+      {
+        assertTrue(e.getFailures().get(queued) instanceof TimeoutException);
+      }
+      released.countDown();
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+      /* Cancelled before it started */
+      assertTrue(queued.events.isEmpty());
+    } finally
+    {
+      released.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  public void testBatchCallbackFailure()
+  {
+    ServiceRegistry registry = newRegistry();
+    Provider working = new Provider();
+    FailingProvider failing = new FailingProvider();
+    try
+    {
+      registry.registerServiceProviders(Arrays.asList(new Object[] { working, failing })
+          .iterator(), null, 0, TimeUnit.SECONDS);
+      fail("The failed callback should be reported");
+    } catch (ServiceRegistrationException e)
+    {
+      assertEquals(1, e.getFailures().size());
+      assertTrue(e.getFailures().containsKey(failing));
+    }
+    assertEquals(1, working.events.size());
+    assertTrue(registry.contains(working));
+    assertTrue(registry.contains(failing));
+  }
+
+  public void testSlowCallbackOnlyBlocksItsDescriptor() throws Exception
+  {
+    final ServiceRegistry registry = newRegistry();
+    registry.registerServiceProvider(describe(SlowProvider.class, Category.class),
+        Category.class);
+    registry.registerServiceProvider(describe(OtherProvider.class, Other.class), Other.class);
+
+    Thread slow = new Thread()
+    {
+      public void run()
+      {
+        registry.findFirst(Category.class, null);
+      }
+    };
+    slow.setDaemon(true);
+    slow.start();
+    assertTrue(SlowProvider.started.await(10, TimeUnit.SECONDS));
+
+    FutureTask<Object> other = new FutureTask<Object>(new Callable<Object>()
+    {
+      public Object call()
+      {
+        return registry.findFirst(Other.class, null);
+      }
+    });
+    Thread thread = new Thread(other);
+    thread.setDaemon(true);
+    thread.start();
+    try
+    {
+      OtherProvider provider = (OtherProvider) other.get(10, TimeUnit.SECONDS);
+      assertEquals(1, provider.registrations);
+    } finally
+    {
+      SlowProvider.released.countDown();
+    }
+    slow.join(10000);
+    assertFalse(slow.isAlive());
+  }
+
+  public void testFailedCallbackOfDescriptor()
+  {
+    ServiceRegistry registry = newRegistry();
+    ServiceProviderDescriptor descriptor = describe(FailingProvider.class, Category.class);
+    registry.registerServiceProvider(descriptor, Category.class);
+    FailingProvider provider = (FailingProvider) registry.findFirst(Category.class, null);
+    assertEquals(Arrays.asList(new String[] { "registered" }), provider.events);
+    /* Notified once only */
+    registry.findFirst(Category.class, null);
+    assertEquals(1, provider.events.size());
+
+    registry.deregisterServiceProvider(provider, Category.class);
+    assertEquals(Arrays.asList(new String[] { "registered", "deregistered" }), provider.events);
+  }
+
+  public void testLookupOfBrokenProvider() throws IOException
+  {
+    File directory = TestFiles.createDirectory("lookup");
+    try
+    {
+      File services = new File(directory, PluginJar.SERVICES_DIRECTORY);
+      services.mkdirs();
+      TestFiles.write(new File(services, Category.class.getName()), BrokenProvider.class
+          .getName()
+          + "\n");
+      ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() },
+          getClass().getClassLoader());
+      Iterator<Category> it = ServiceRegistry.lookupProviders(Category.class, loader);
+      assertTrue(it.hasNext());
+      try
+      {
+        it.next();
+        fail("The provider should not be instantiated");
+      } catch (ServiceConfigurationError e)
+      {
+        assertTrue(e.getCause() instanceof ExceptionInInitializerError);
+      }
+    } finally
+    {
+      TestFiles.delete(directory);
+    }
+  }
+
+  /** A provider recording whether it was created by its index. */
+  public static class IndexedProvider implements Category
+  {
+    final boolean indexed;
+
+    public IndexedProvider()
+    {
+      this(false);
+    }
+
+    IndexedProvider(boolean indexed)
+    {
+      this.indexed = indexed;
+    }
+  }
+
+  /** A build time index listing {@link IndexedProvider}. */
+  public static class Index implements ServiceProviderIndex
+  {
+    public int size()
+    {
+      return 1;
+    }
+
+    public String getClassName(int index)
+    {
+      return IndexedProvider.class.getName();
+    }
+
+    public String[] getCategoryNames(int index)
+    {
+      return new String[] { Category.class.getName() };
+    }
+
+    public String getVersion(int index)
+    {
+      return "1.0";
+    }
+
+    public String getTitle(int index)
+    {
+      return null;
+    }
+
+    public String getVendor(int index)
+    {
+      return null;
+    }
+
+    public Object newInstance(int index)
+    {
+      return new IndexedProvider(true);
+    }
+  }
+
+  public void testIndexedDescriptor() throws IOException
+  {
+    File directory = TestFiles.createDirectory("indexed");
+    try
+    {
+      File services = new File(directory, PluginJar.SERVICES_DIRECTORY);
+      services.mkdirs();
+      TestFiles.write(new File(services, ServiceProviderIndex.class.getName()), Index.class
+          .getName()
+          + "\n");
+      /* Not read, the index covers the service */
+      TestFiles.write(new File(services, Category.class.getName()), Provider.class.getName()
+          + "\n");
+      ClassLoader loader = new URLClassLoader(new URL[] { directory.toURI().toURL() },
+          getClass().getClassLoader());
+      List<Object> descriptors = toList(ServiceRegistry.lookupProviderDescriptors(
+          Category.class, loader));
+      assertEquals(1, descriptors.size());
+      ServiceProviderDescriptor descriptor = (ServiceProviderDescriptor) descriptors.get(0);
+      assertEquals(IndexedProvider.class.getName(), descriptor.getClassName());
+      assertEquals("1.0", descriptor.getDeclaredVersion());
+      assertTrue(((IndexedProvider) descriptor.getInstance()).indexed);
+    } finally
+    {
+      TestFiles.delete(directory);
+    }
+  }
+}
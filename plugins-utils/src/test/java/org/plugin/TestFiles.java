@@ -0,0 +1,110 @@
+/* Copyright 2020 Optima SC Inc.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.plugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/** File helpers of the tests.
+ *
+ */
+final class TestFiles
+{
+  private TestFiles()
+  {
+  }
+
+  /** Creates a new empty directory in the temporary directory. */
+  static File createDirectory(String prefix) throws IOException
+  {
+    File directory = File.createTempFile(prefix, "");
+    if ((directory.delete() == false) || (directory.mkdir() == false))
+    {
+      throw new IOException("Cannot create " + directory);
+    }
+    return directory;
+  }
+
+  /** Deletes a file, or a directory and its content. */
+  static void delete(File file)
+  {
+    File[] children = file.listFiles();
+    if (children != null)
+    {
+      for (int i = 0; i < children.length; i++)
+      {
+        delete(children[i]);
+      }
+    }
+    file.delete();
+  }
+
+  /** Writes a jar file.
+   *
+   * @param file The jar file.
+   * @param entries The content of each entry, by entry name.
+   */
+  static void writeJar(File file, Map<String, String> entries) throws IOException
+  {
+    JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+    try
+    {
+      for (Iterator<Entry<String, String>> it = entries.entrySet().iterator(); it.hasNext();)
+      {
+        Entry<String, String> e = it.next();
+        out.putNextEntry(new JarEntry(e.getKey()));
+        out.write(e.getValue().getBytes("UTF-8"));
+        out.closeEntry();
+      }
+    } finally
+    {
+      out.close();
+    }
+  }
+
+  /** Writes a file. */
+  static void write(File file, String content) throws IOException
+  {
+    OutputStream out = new FileOutputStream(file);
+    try
+    {
+      out.write(content.getBytes("UTF-8"));
+    } finally
+    {
+      out.close();
+    }
+  }
+
+  /** Truncates a file to the specified length. */
+  static void truncate(File file, long length) throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try
+    {
+      raf.setLength(length);
+    } finally
+    {
+      raf.close();
+    }
+  }
+}